@@ -0,0 +1,302 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.exception.RejectAPDUException;
+import com.serotonin.bacnet4j.service.acknowledgement.GetEventInformationAck;
+import com.serotonin.bacnet4j.service.acknowledgement.GetEventInformationAck.EventSummary;
+import com.serotonin.bacnet4j.service.confirmed.GetEventInformationRequest;
+import com.serotonin.bacnet4j.type.constructed.EventTransitionBits;
+import com.serotonin.bacnet4j.type.constructed.TimeStamp;
+import com.serotonin.bacnet4j.type.enumerated.EventState;
+import com.serotonin.bacnet4j.type.enumerated.NotifyType;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+
+/*
+ * A device's active events: objects that are not normal or have transitions
+ * waiting for acknowledgment. The list is read with GetEventInformation,
+ * following moreEvents a page at a time, and kept current between reads by
+ * the device's event notifications. The "get event information" and "get
+ * alarm summary" actions are answered from it; the device is re-read every
+ * RECONCILE_MINUTES to pick up anything the notifications missed. A re-read
+ * is merged rather than swapped in: what a notification changed while the
+ * device was being read is newer than the device's answer and is kept.
+ */
+class ActiveEventCache {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(ActiveEventCache.class);
+	}
+
+	static final long RECONCILE_MINUTES = 5;
+	// transition indexes, as in the event time stamps and priorities arrays
+	private static final int TO_OFFNORMAL = 0;
+	private static final int TO_FAULT = 1;
+	private static final int TO_NORMAL = 2;
+
+	private final DeviceNode device;
+	private final Map<ObjectIdentifier, Entry> entries = new LinkedHashMap<ObjectIdentifier, Entry>();
+	private boolean loaded = false;
+	// set once the device rejected GetEventInformation
+	private volatile boolean unsupported = false;
+	// reads in progress, and the objects notifications cleared during them, with when
+	private int reconciling = 0;
+	private final Map<ObjectIdentifier, Long> cleared = new HashMap<ObjectIdentifier, Long>();
+	private ScheduledFuture<?> reconcileFuture = null;
+
+	ActiveEventCache(DeviceNode device) {
+		this.device = device;
+	}
+
+	/*
+	 * Reads the device's event information if it has not been read yet and
+	 * starts the periodic reconciliation. The timer is on the polling
+	 * scheduler but the paged read it triggers runs on the discovery pool,
+	 * so that slow devices do not hold up polling.
+	 */
+	void ensureLoaded() throws BACnetException {
+		synchronized (this) {
+			if (loaded)
+				return;
+		}
+		reconcile();
+		synchronized (this) {
+			if (reconcileFuture == null) {
+				reconcileFuture = device.conn.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						device.conn.getDiscoveryPool().execute(new Runnable() {
+							public void run() {
+								try {
+									reconcile();
+								} catch (Exception e) {
+									LOGGER.debug("error: ", e);
+								}
+							}
+						});
+					}
+				}, RECONCILE_MINUTES, RECONCILE_MINUTES, TimeUnit.MINUTES);
+			}
+		}
+	}
+
+	synchronized void stop() {
+		if (reconcileFuture != null) {
+			reconcileFuture.cancel(false);
+			reconcileFuture = null;
+		}
+		loaded = false;
+		entries.clear();
+	}
+
+	/*
+	 * False once the device has rejected GetEventInformation, in which case
+	 * callers fall back to the older services.
+	 */
+	boolean isSupported() {
+		return !unsupported;
+	}
+
+	/*
+	 * Merges the device's full list of active events into the cache. Each
+	 * request continues after the last object of the previous page.
+	 */
+	void reconcile() throws BACnetException {
+		RemoteDevice rd = device.getRemoteDevice();
+		if (device.conn.localDevice == null || rd == null)
+			return;
+		if (rd.getServicesSupported() != null && !rd.getServicesSupported().isGetEventInformation())
+			unsupported = true;
+		if (unsupported)
+			throw new BACnetException("GetEventInformation is not supported by " + rd);
+		long start;
+		synchronized (this) {
+			reconciling++;
+			start = System.currentTimeMillis();
+		}
+		try {
+			Map<ObjectIdentifier, Entry> fresh = new LinkedHashMap<ObjectIdentifier, Entry>();
+			ObjectIdentifier last = null;
+			while (true) {
+				GetEventInformationAck ack;
+				try {
+					ack = (GetEventInformationAck) device.conn.localDevice
+							.send(rd, new GetEventInformationRequest(last)).get();
+				} catch (RejectAPDUException e) {
+					unsupported = true;
+					throw e;
+				}
+				for (EventSummary summ : ack.getListOfEventSummaries()) {
+					fresh.put(summ.getObjectIdentifier(), new Entry(summ));
+					last = summ.getObjectIdentifier();
+				}
+				if (last == null || ack.getMoreEvents() == null || !ack.getMoreEvents().booleanValue()
+						|| ack.getListOfEventSummaries().getCount() == 0)
+					break;
+			}
+			synchronized (this) {
+				merge(fresh, start);
+				loaded = true;
+			}
+		} finally {
+			synchronized (this) {
+				if (--reconciling == 0)
+					cleared.clear();
+			}
+		}
+	}
+
+	private void merge(Map<ObjectIdentifier, Entry> fresh, long start) {
+		for (Map.Entry<ObjectIdentifier, Long> c : cleared.entrySet()) {
+			if (c.getValue() >= start)
+				fresh.remove(c.getKey());
+		}
+		for (Entry e : entries.values()) {
+			if (e.updated >= start)
+				fresh.put(e.oid, e);
+		}
+		entries.clear();
+		entries.putAll(fresh);
+	}
+
+	/*
+	 * Applies an event notification. Notifications are only applied once the
+	 * cache has been loaded or while it is being read; otherwise the next read
+	 * picks them up.
+	 */
+	synchronized void eventReceived(ObjectIdentifier oid, TimeStamp timeStamp, UnsignedInteger priority,
+			NotifyType notifyType, boolean ackRequired, EventState toState) {
+		if (!loaded && reconciling == 0)
+			return;
+		int transition = transitionOf(toState);
+		Entry entry = entries.get(oid);
+		if (NotifyType.ackNotification.equals(notifyType)) {
+			if (entry != null)
+				entry.acked[transition] = true;
+		} else {
+			if (entry == null) {
+				entry = new Entry(oid);
+				entries.put(oid, entry);
+			}
+			entry.eventState = toState;
+			entry.notifyType = notifyType;
+			entry.timeStamps[transition] = timeStamp;
+			entry.priorities[transition] = priority != null ? priority.intValue() : 0;
+			entry.acked[transition] = !ackRequired;
+		}
+		if (entry == null)
+			return;
+		entry.updated = System.currentTimeMillis();
+		if (entry.isInactive()) {
+			entries.remove(oid);
+			if (reconciling > 0)
+				cleared.put(oid, entry.updated);
+		}
+	}
+
+	private static int transitionOf(EventState state) {
+		if (EventState.normal.equals(state))
+			return TO_NORMAL;
+		if (EventState.fault.equals(state))
+			return TO_FAULT;
+		return TO_OFFNORMAL;
+	}
+
+	/*
+	 * Rows for "get event information", one per active event.
+	 */
+	synchronized List<Row> getEventInformation() {
+		List<Row> rows = new ArrayList<Row>();
+		for (Entry e : entries.values()) {
+			rows.add(Row.make(new Value(e.oid.toString()),
+					new Value(e.notifyType != null ? e.notifyType.toString() : ""),
+					new Value(e.eventState != null ? e.eventState.toString() : ""), new Value(e.acked[TO_OFFNORMAL]),
+					new Value(e.acked[TO_FAULT]), new Value(e.acked[TO_NORMAL]), new Value(e.enabled[TO_OFFNORMAL]),
+					new Value(e.enabled[TO_FAULT]), new Value(e.enabled[TO_NORMAL]),
+					new Value(e.priorities[TO_OFFNORMAL]), new Value(e.priorities[TO_FAULT]),
+					new Value(e.priorities[TO_NORMAL]), new Value(timeStampString(e.timeStamps[TO_OFFNORMAL])),
+					new Value(timeStampString(e.timeStamps[TO_FAULT])),
+					new Value(timeStampString(e.timeStamps[TO_NORMAL]))));
+		}
+		return rows;
+	}
+
+	/*
+	 * Rows for "get alarm summary": the objects in alarm that report with
+	 * notify type alarm, as GetAlarmSummary would list them.
+	 */
+	synchronized List<Row> getAlarmSummary() {
+		List<Row> rows = new ArrayList<Row>();
+		for (Entry e : entries.values()) {
+			if (EventState.normal.equals(e.eventState) || !NotifyType.alarm.equals(e.notifyType))
+				continue;
+			rows.add(Row.make(new Value(e.oid.toString()), new Value(e.eventState.toString()),
+					new Value(e.acked[TO_OFFNORMAL]), new Value(e.acked[TO_FAULT]), new Value(e.acked[TO_NORMAL])));
+		}
+		return rows;
+	}
+
+	private static String timeStampString(TimeStamp ts) {
+		return ts != null ? Utils.timestampToString(ts) : "";
+	}
+
+	private static class Entry {
+		final ObjectIdentifier oid;
+		EventState eventState;
+		NotifyType notifyType;
+		final boolean[] acked = { true, true, true };
+		final boolean[] enabled = { true, true, true };
+		final int[] priorities = new int[3];
+		final TimeStamp[] timeStamps = new TimeStamp[3];
+		// when a notification last changed the entry, 0 if it came from a read
+		long updated = 0;
+
+		Entry(ObjectIdentifier oid) {
+			this.oid = oid;
+		}
+
+		Entry(EventSummary summ) {
+			this(summ.getObjectIdentifier());
+			eventState = summ.getEventState();
+			notifyType = summ.getNotifyType();
+			copy(summ.getAcknowledgedTransitions(), acked);
+			copy(summ.getEventEnable(), enabled);
+			for (int i = 0; i < 3; i++) {
+				UnsignedInteger prio = summ.getEventPriorities().get(i + 1);
+				priorities[i] = prio != null ? prio.intValue() : 0;
+				timeStamps[i] = summ.getEventTimeStamps().get(i + 1);
+			}
+		}
+
+		private static void copy(EventTransitionBits bits, boolean[] to) {
+			if (bits == null)
+				return;
+			to[TO_OFFNORMAL] = bits.isToOffnormal();
+			to[TO_FAULT] = bits.isToFault();
+			to[TO_NORMAL] = bits.isToNormal();
+		}
+
+		/*
+		 * Normal with every transition acknowledged: no longer reported by
+		 * GetEventInformation.
+		 */
+		boolean isInactive() {
+			return EventState.normal.equals(eventState) && acked[TO_OFFNORMAL] && acked[TO_FAULT]
+					&& acked[TO_NORMAL];
+		}
+	}
+}
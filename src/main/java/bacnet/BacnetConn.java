@@ -2,14 +2,25 @@ package bacnet;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import com.serotonin.bacnet4j.transport.DefaultTransport;
@@ -19,17 +30,20 @@ import com.serotonin.io.serial.SerialUtils;
 
 import bacnet.properties.LocalBacnetProperty;
 
+import org.dsa.iot.dslink.methods.StreamState;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.dslink.util.handler.Handler;
-import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,12 +66,14 @@ import com.serotonin.bacnet4j.type.constructed.DateTime;
 import com.serotonin.bacnet4j.type.constructed.PropertyValue;
 import com.serotonin.bacnet4j.type.constructed.Sequence;
 import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.constructed.ServicesSupported;
 import com.serotonin.bacnet4j.type.constructed.TimeStamp;
 import com.serotonin.bacnet4j.type.enumerated.EventState;
 import com.serotonin.bacnet4j.type.enumerated.EventType;
 import com.serotonin.bacnet4j.type.enumerated.MessagePriority;
 import com.serotonin.bacnet4j.type.enumerated.NotifyType;
 import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.enumerated.Segmentation;
 import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.notificationParameters.NotificationParameters;
 import com.serotonin.bacnet4j.type.primitive.Boolean;
@@ -84,6 +100,8 @@ abstract class BacnetConn {
 	static final String ACTION_RESTART = "restart";
 	static final String ACTION_DISCOVER_DEVICES = "discover devices";
 	static final String ACTION_ADD_DEVICE = "add device";
+	static final String ACTION_SUBSCRIBE_EVENTS = "subscribe events";
+	static final String ACTION_REPLAY_EVENTS = "replay events";
 
 	static final String ATTRIBUTE_NAME = "name";
 	static final String ATTRIBUTE_MAC_ADDRESS = "MAC address";
@@ -93,6 +111,17 @@ abstract class BacnetConn {
 	static final String ATTRIBUTE_POLLING_INTERVAL = "polling interval";
 	static final String ATTRIBUTE_COV_USAGE = "cov usage";
 	static final String ATTRIBUTE_COV_LEASE_TIME = "cov lease time (minutes)";
+	static final String ATTRIBUTE_RESTORE_CONCURRENCY = "restore concurrency";
+	static final String ATTRIBUTE_HISTORY_RETENTION_DAYS = "history retention days";
+	static final String ATTRIBUTE_EVENT_JOURNAL_MAX_MB = "event journal max MB";
+	static final String ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS = "event journal retention days";
+	static final String ATTRIBUTE_DATABASE_CHECK_MINUTES = "database check interval (minutes)";
+
+	// cached devices revalidated at once, each may wait out a WhoIs
+	static final int REVALIDATION_PARALLELISM = 4;
+
+	// device node config: when the device was last reached, orders restores
+	static final String CONFIG_LAST_HEALTHY = "lastHealthyTs";
 
 	static final String ATTRIBUTE_RESTORE_TYPE = "restore type";
 	static final String RESTORE_EDITABLE_FOLDER = "editable folder";
@@ -119,15 +148,34 @@ abstract class BacnetConn {
 	BacnetLink link;
 
 	final Set<DeviceNode> deviceNodes = new HashSet<DeviceNode>();
+	// (network number, MAC, instance number) -> device node, see deviceKey()
+	final Map<String, DeviceNode> deviceIndex = new ConcurrentHashMap<String, DeviceNode>();
+	// keys of configured devices whose restore task has not created a node yet
+	final Set<String> restoringDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, java.lang.Boolean>());
+	// devices built from the cache that have not answered yet, see revalidateDevice()
+	private final Map<RemoteDevice, Future<java.lang.Boolean>> revalidations = Collections
+			.synchronizedMap(new IdentityHashMap<RemoteDevice, Future<java.lang.Boolean>>());
 	LocalDeviceFolder localDeviceNode;
-	Map<BACnetObject, EditablePoint> ObjectToPoint = new HashMap<BACnetObject, EditablePoint>();
+	final LocalPropertyIndex localIndex = new LocalPropertyIndex();
+	final CovServer covServer = new CovServer(this);
 	final Map<Integer, OctetString> networkRouters = new HashMap<Integer, OctetString>();
 	final Map<String, Integer> bbmdIpToPort = new HashMap<String, Integer>();
 	private ScheduledFuture<?> reconnectFuture = null;
 	private int retryDelay = 1;
 
 	ScheduledThreadPoolExecutor stpe;
+	// object discovery blocks on requests, so it gets its own threads instead
+	// of holding up polling on stpe
+	ExecutorService discoveryPool;
+	// revalidating cached devices waits on requests and WhoIs too
+	ExecutorService revalidationPool;
 	DeviceEventListener listener;
+	DeviceCache deviceCache;
+	final RestoreQueue restoreQueue;
+	final WriteLatency writeLatency;
+	final TimeSeriesStore historyStore;
+	final EventJournal eventJournal;
+	final List<EventSubscription> eventSubscriptions = new CopyOnWriteArrayList<EventSubscription>();
 
 	BacnetConn(BacnetLink link, Node node) {
 		this.node = node;
@@ -142,12 +190,30 @@ abstract class BacnetConn {
 		localDeviceId = node.getAttribute("local device id").getNumber().intValue();
 		localDeviceName = node.getAttribute("local device name").getString();
 		localDeviceVendor = node.getAttribute("local device vendor").getString();
+		if (node.getAttribute(ATTRIBUTE_RESTORE_CONCURRENCY) == null)
+			node.setAttribute(ATTRIBUTE_RESTORE_CONCURRENCY, new Value(RestoreQueue.DEFAULT_CONCURRENCY));
+		if (node.getAttribute(ATTRIBUTE_HISTORY_RETENTION_DAYS) == null)
+			node.setAttribute(ATTRIBUTE_HISTORY_RETENTION_DAYS, new Value(TimeSeriesStore.DEFAULT_RETENTION_DAYS));
+		if (node.getAttribute(ATTRIBUTE_EVENT_JOURNAL_MAX_MB) == null)
+			node.setAttribute(ATTRIBUTE_EVENT_JOURNAL_MAX_MB, new Value(EventJournal.DEFAULT_MAX_MB));
+		if (node.getAttribute(ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS) == null)
+			node.setAttribute(ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS, new Value(EventJournal.DEFAULT_MAX_AGE_DAYS));
+		if (node.getAttribute(ATTRIBUTE_DATABASE_CHECK_MINUTES) == null)
+			node.setAttribute(ATTRIBUTE_DATABASE_CHECK_MINUTES, new Value(DeviceNode.DEFAULT_DATABASE_CHECK_MINUTES));
 
 		initializeScheduledThreadPoolExecutor();
+		deviceCache = new DeviceCache(node.getName(), stpe);
+		historyStore = new TimeSeriesStore(node.getName());
+		historyStore.setRetentionDays(node.getAttribute(ATTRIBUTE_HISTORY_RETENTION_DAYS).getNumber().intValue());
+		eventJournal = new EventJournal(node.getName());
+		eventJournal.setMaxMegabytes(node.getAttribute(ATTRIBUTE_EVENT_JOURNAL_MAX_MB).getNumber().intValue());
+		eventJournal.setMaxAgeDays(node.getAttribute(ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS).getNumber().intValue());
 
 		this.statnode = node.createChild(NODE_STATUS, true).setValueType(ValueType.STRING).setValue(new Value(""))
 				.build();
 		this.statnode.setSerializable(false);
+		this.restoreQueue = new RestoreQueue(node);
+		this.writeLatency = new WriteLatency(node);
 
 		this.listener = new EventListenerImpl();
 	}
@@ -155,12 +221,31 @@ abstract class BacnetConn {
 	void initializeScheduledThreadPoolExecutor() {
 		link.connections.add(this);
 		stpe = Objects.createDaemonThreadPool();
+		discoveryPool = createBlockingPool("bacnet-discovery-", DeviceFolder.DISCOVERY_PARALLELISM);
+		revalidationPool = createBlockingPool("bacnet-revalidation-", REVALIDATION_PARALLELISM);
+	}
+
+	private ExecutorService createBlockingPool(final String prefix, int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, prefix + node.getName());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
 	}
 
 	ScheduledThreadPoolExecutor getDaemonThreadPool() {
 		return stpe;
 	}
 
+	ExecutorService getDiscoveryPool() {
+		return discoveryPool;
+	}
+
 	void init() {
 		if (reconnectFuture != null) {
 			reconnectFuture.cancel(false);
@@ -220,6 +305,7 @@ abstract class BacnetConn {
 				// remove();
 				LOGGER.debug("error: ", e);
 				statnode.setValue(new Value("Error in initializing local device :" + e.getMessage()));
+				unregisterAsFeignDevice();
 				localDevice.terminate();
 				localDevice = null;
 			} finally {
@@ -245,6 +331,28 @@ abstract class BacnetConn {
 		else
 			anode.setAction(act);
 
+		act = getSubscribeEventsAction();
+		anode = node.getChild(ACTION_SUBSCRIBE_EVENTS, true);
+		if (anode == null)
+			node.createChild(ACTION_SUBSCRIBE_EVENTS, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
+
+		act = new Action(Permission.READ, new ReplayEventsHandler());
+		act.addParameter(new Parameter("from sequence", ValueType.NUMBER, new Value(1)));
+		act.addParameter(new Parameter("max events", ValueType.NUMBER, new Value(10000)));
+		act.addResult(new Parameter(EventJournal.KEY_SEQUENCE, ValueType.NUMBER));
+		act.addResult(new Parameter(EventJournal.KEY_RECEIVED, ValueType.NUMBER));
+		for (String field : EventBuffer.FIELDS)
+			act.addResult(new Parameter(field, ValueType.STRING));
+		act.addResult(new Parameter(EventJournal.KEY_DEVICE, ValueType.STRING));
+		act.setResultType(ResultType.TABLE);
+		anode = node.getChild(ACTION_REPLAY_EVENTS, true);
+		if (anode == null)
+			node.createChild(ACTION_REPLAY_EVENTS, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
+
 		if (localDevice != null) {
 			retryDelay = 1;
 			act = new Action(Permission.READ, new DeviceDiscoveryHandler());
@@ -313,6 +421,10 @@ abstract class BacnetConn {
 
 	}
 
+	void unregisterAsFeignDevice() {
+
+	}
+
 	static class SerialPortWrapperImpl extends SerialPortWrapper {
 
 		private SerialParameters params;
@@ -408,9 +520,83 @@ abstract class BacnetConn {
 				new Parameter("local device vendor", ValueType.STRING, node.getAttribute("local device vendor")));
 		double defint = node.getAttribute("default polling interval").getNumber().doubleValue() / 1000;
 		act.addParameter(new Parameter("default polling interval", ValueType.NUMBER, new Value(defint)));
+		act.addParameter(new Parameter(ATTRIBUTE_RESTORE_CONCURRENCY, ValueType.NUMBER,
+				node.getAttribute(ATTRIBUTE_RESTORE_CONCURRENCY)));
+		act.addParameter(new Parameter(ATTRIBUTE_HISTORY_RETENTION_DAYS, ValueType.NUMBER,
+				node.getAttribute(ATTRIBUTE_HISTORY_RETENTION_DAYS)));
+		act.addParameter(new Parameter(ATTRIBUTE_EVENT_JOURNAL_MAX_MB, ValueType.NUMBER,
+				node.getAttribute(ATTRIBUTE_EVENT_JOURNAL_MAX_MB)));
+		act.addParameter(new Parameter(ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS, ValueType.NUMBER,
+				node.getAttribute(ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS)));
+		act.addParameter(new Parameter(ATTRIBUTE_DATABASE_CHECK_MINUTES, ValueType.NUMBER,
+				node.getAttribute(ATTRIBUTE_DATABASE_CHECK_MINUTES)));
 		return act;
 	}
 
+	private Action getSubscribeEventsAction() {
+		Action act = new Action(Permission.READ, new SubscribeEventsHandler());
+		act.addParameter(new Parameter("devices", ValueType.STRING)
+				.setDescription("device names or instance numbers, comma separated; empty for all"));
+		act.addParameter(new Parameter("object types", ValueType.STRING)
+				.setDescription("e.g. Analog Input, Binary Value; empty for all"));
+		act.addParameter(new Parameter("notification classes", ValueType.STRING)
+				.setDescription("comma separated; empty for all"));
+		act.addParameter(new Parameter("min priority", ValueType.NUMBER, new Value(0)));
+		act.addParameter(new Parameter("max priority", ValueType.NUMBER, new Value(255)));
+		act.addParameter(new Parameter("to states", ValueType.STRING).setDescription(
+				"any of normal, fault, offnormal, highLimit, lowLimit, lifeSafetyAlarm; empty for all"));
+		for (String field : EventBuffer.FIELDS)
+			act.addResult(new Parameter(field, ValueType.STRING));
+		act.addResult(new Parameter("Device", ValueType.STRING));
+		act.setResultType(ResultType.STREAM);
+		return act;
+	}
+
+	private class SubscribeEventsHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			Table table = event.getTable();
+			table.setMode(Table.Mode.APPEND);
+			final EventSubscription sub;
+			try {
+				sub = new EventSubscription(table, event.getParameter("devices", new Value("")).getString(),
+						event.getParameter("object types", new Value("")).getString(),
+						event.getParameter("notification classes", new Value("")).getString(),
+						event.getParameter("min priority", new Value(0)).getNumber().intValue(),
+						event.getParameter("max priority", new Value(255)).getNumber().intValue(),
+						event.getParameter("to states", new Value("")).getString());
+			} catch (Exception e) {
+				LOGGER.debug("error: ", e);
+				table.close();
+				return;
+			}
+			event.setStreamState(StreamState.INITIALIZED);
+			event.setCloseHandler(new Handler<Void>() {
+				public void handle(Void v) {
+					eventSubscriptions.remove(sub);
+				}
+			});
+			eventSubscriptions.add(sub);
+		}
+	}
+
+	private class ReplayEventsHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			long from = event.getParameter("from sequence", new Value(1)).getNumber().longValue();
+			int max = event.getParameter("max events", new Value(10000)).getNumber().intValue();
+			Table table = event.getTable();
+			for (JsonObject entry : eventJournal.replay(from, max)) {
+				Row row = Row.make(new Value((Number) entry.get(EventJournal.KEY_SEQUENCE)),
+						new Value((Number) entry.get(EventJournal.KEY_RECEIVED)));
+				for (String field : EventBuffer.FIELDS) {
+					Object o = entry.get(field);
+					row.addValue(new Value(o == null ? "" : o.toString()));
+				}
+				row.addValue(new Value(String.valueOf((Object) entry.get(EventJournal.KEY_DEVICE))));
+				table.addRow(row);
+			}
+		}
+	}
+
 	private class StopHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			if (reconnectFuture != null) {
@@ -430,6 +616,10 @@ abstract class BacnetConn {
 	}
 
 	void stop() {
+		// a connected connection has no reconnectFuture, and the stop action
+		// clears it first, so these run before the check
+		covServer.clear();
+		unregisterAsFeignDevice();
 		if (null == reconnectFuture) {
 			return;
 		}
@@ -463,6 +653,16 @@ abstract class BacnetConn {
 			String localDeviceVendor = event.getParameter("local device vendor", ValueType.STRING).getString();
 			long intervalInMilliseconds = (long) (1000
 					* event.getParameter("default polling interval", ValueType.NUMBER).getNumber().doubleValue());
+			int restoreConcurrency = event.getParameter(ATTRIBUTE_RESTORE_CONCURRENCY, ValueType.NUMBER).getNumber()
+					.intValue();
+			int retentionDays = event.getParameter(ATTRIBUTE_HISTORY_RETENTION_DAYS, ValueType.NUMBER).getNumber()
+					.intValue();
+			int journalMaxMb = event.getParameter(ATTRIBUTE_EVENT_JOURNAL_MAX_MB, ValueType.NUMBER).getNumber()
+					.intValue();
+			int journalRetentionDays = event.getParameter(ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS, ValueType.NUMBER)
+					.getNumber().intValue();
+			int databaseCheckMinutes = event.getParameter(ATTRIBUTE_DATABASE_CHECK_MINUTES, ValueType.NUMBER)
+					.getNumber().intValue();
 
 			node.setAttribute("local network number", new Value(localNetworkNumber));
 			node.setAttribute("strict device comparisons", new Value(strict));
@@ -474,6 +674,14 @@ abstract class BacnetConn {
 			node.setAttribute("local device name", new Value(localDeviceName));
 			node.setAttribute("local device vendor", new Value(localDeviceVendor));
 			node.setAttribute("default polling interval", new Value(intervalInMilliseconds));
+			node.setAttribute(ATTRIBUTE_RESTORE_CONCURRENCY, new Value(restoreConcurrency));
+			node.setAttribute(ATTRIBUTE_HISTORY_RETENTION_DAYS, new Value(retentionDays));
+			historyStore.setRetentionDays(retentionDays);
+			node.setAttribute(ATTRIBUTE_EVENT_JOURNAL_MAX_MB, new Value(journalMaxMb));
+			node.setAttribute(ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS, new Value(journalRetentionDays));
+			eventJournal.setMaxMegabytes(journalMaxMb);
+			eventJournal.setMaxAgeDays(journalRetentionDays);
+			node.setAttribute(ATTRIBUTE_DATABASE_CHECK_MINUTES, new Value(databaseCheckMinutes));
 
 			stop();
 
@@ -501,18 +709,31 @@ abstract class BacnetConn {
 
 	private void remove() {
 		stop();
+		link.sourceBindings.unbindAll(node.getPath());
+		link.pointProxies.removeAll(node.getPath());
 		node.clearChildren();
 		link.connections.remove(getMe());
 		node.getParent().removeChild(node, false);
+		deviceCache.delete();
+		historyStore.delete();
+		eventJournal.delete();
 
 		shutdown();
 	}
 
 	void shutdown() {
+		deviceCache.close();
 		stpe.shutdown();
+		discoveryPool.shutdownNow();
+		revalidationPool.shutdownNow();
 	}
 
 	protected void rename(String name) {
+		// the copy loads its device cache, event journal and history from
+		// files under its own name, so they are moved there first
+		deviceCache.copyTo(name);
+		eventJournal.moveTo(name);
+		historyStore.moveTo(name);
 		duplicate(name);
 		remove();
 	}
@@ -563,6 +784,12 @@ abstract class BacnetConn {
 		DiscoveryListener dl = new DiscoveryListener(devs);
 		if (!mac.isEmpty() && instanceNum >= 0) {
 			Address address = Utils.toAddress(netNum, mac);
+			RemoteDevice cached = deviceCache.get(deviceKey(netNum, mac, instanceNum), address, instanceNum);
+			if (cached != null) {
+				localDevice.addRemoteDevice(cached);
+				revalidations.put(cached, revalidateDevice(cached, linkMac, interval, covtype, covlife));
+				return cached;
+			}
 			try {
 				return localDevice.findRemoteDevice(address, instanceNum);
 			} catch (BACnetException e) {
@@ -601,6 +828,103 @@ abstract class BacnetConn {
 		return devs.poll();
 	}
 
+	/*
+	 * A device built from the cache is used right away; this re-reads its
+	 * identity in the background. If it no longer answers at the cached
+	 * address it is looked up again by instance number. The result is whether
+	 * the device answered.
+	 */
+	private Future<java.lang.Boolean> revalidateDevice(final RemoteDevice d, final String linkMac,
+			final long interval, final CovType covtype, final int covlife) {
+		return revalidationPool.submit(new Callable<java.lang.Boolean>() {
+			public java.lang.Boolean call() {
+				LocalDevice ld = localDevice;
+				if (ld == null)
+					return false;
+				String oldKey = deviceKey(d);
+				try {
+					Map<PropertyIdentifier, Encodable> values = RequestUtils.getProperties(ld, d, null,
+							PropertyIdentifier.maxApduLengthAccepted, PropertyIdentifier.segmentationSupported,
+							PropertyIdentifier.vendorIdentifier, PropertyIdentifier.protocolServicesSupported);
+					Encodable enc = values.get(PropertyIdentifier.maxApduLengthAccepted);
+					if (enc instanceof UnsignedInteger)
+						d.setMaxAPDULengthAccepted(((UnsignedInteger) enc).intValue());
+					enc = values.get(PropertyIdentifier.segmentationSupported);
+					if (enc instanceof Segmentation)
+						d.setSegmentationSupported((Segmentation) enc);
+					enc = values.get(PropertyIdentifier.vendorIdentifier);
+					if (enc instanceof UnsignedInteger)
+						d.setVendorId(((UnsignedInteger) enc).intValue());
+					enc = values.get(PropertyIdentifier.protocolServicesSupported);
+					if (enc instanceof ServicesSupported)
+						d.setServicesSupported((ServicesSupported) enc);
+					getDeviceProperties(d);
+					contacted(d);
+					return true;
+				} catch (BACnetException e) {
+					LOGGER.debug("cached device " + d + " did not respond, looking it up again", e);
+				}
+
+				deviceCache.remove(oldKey);
+				RemoteDevice found = getDevice("", d.getInstanceNumber(), d.getAddress().getNetworkNumber().intValue(),
+						linkMac, interval, covtype, covlife);
+				if (found == null)
+					return false;
+				if (found == d) {
+					contacted(d);
+					return true;
+				}
+				d.setAddress(found.getAddress());
+				d.setMaxAPDULengthAccepted(found.getMaxAPDULengthAccepted());
+				d.setSegmentationSupported(found.getSegmentationSupported());
+				d.setVendorId(found.getVendorId());
+				d.setServicesSupported(found.getServicesSupported());
+				getDeviceProperties(d);
+				DeviceNode dn = deviceIndex.get(oldKey);
+				if (dn != null && dn.device == d) {
+					dn.node.setAttribute(ATTRIBUTE_MAC_ADDRESS, new Value(Utils.getMac(d)));
+					dn.node.setAttribute(ATTRIBUTE_NETWOR_NUMBER,
+							new Value(d.getAddress().getNetworkNumber().intValue()));
+					indexDevice(dn);
+				}
+				contacted(d);
+				return true;
+			}
+		});
+	}
+
+	private void contacted(RemoteDevice d) {
+		revalidations.remove(d);
+		DeviceNode dn = getDeviceNode(d);
+		if (dn != null && dn.device == d)
+			dn.node.setConfig(CONFIG_LAST_HEALTHY, new Value(System.currentTimeMillis()));
+	}
+
+	/*
+	 * Whether a device returned by getDevice() has answered. A device built
+	 * from the cache has not until its revalidation succeeds. With wait, this
+	 * waits for the revalidation and forgets it; otherwise a pending
+	 * revalidation counts as not contacted.
+	 */
+	boolean isContacted(RemoteDevice d, boolean wait) {
+		if (d == null)
+			return false;
+		Future<java.lang.Boolean> check = revalidations.get(d);
+		if (check == null)
+			return true;
+		if (!wait && !check.isDone())
+			return false;
+		try {
+			return check.get();
+		} catch (Exception e) {
+			LOGGER.debug("error: ", e);
+			return false;
+		} finally {
+			if (wait)
+				revalidations.remove(d);
+		}
+	}
+
 	private class MakeSlaveHandler implements Handler<ActionResult> {
 
 		public void handle(ActionResult event) {
@@ -652,22 +976,44 @@ abstract class BacnetConn {
 	}
 
 	private boolean devInTree(RemoteDevice d) {
-		if (node.getChildren() == null)
-			return false;
-		String deviceMacAddress = Utils.getMac(d);
-		int deviceInstanceNumber = d.getInstanceNumber();
-		int deviceNetworkNumber = d.getAddress().getNetworkNumber().intValue();
-		for (Node child : node.getChildren().values()) {
-			Value macAddress = child.getAttribute(ATTRIBUTE_MAC_ADDRESS);
-			Value instanceNumber = child.getAttribute(ATTRIBUTE_INSTANCE_NUMBER);
-			Value networkNumber = child.getAttribute(ATTRIBUTE_NETWOR_NUMBER);
-			if ((macAddress != null && deviceMacAddress.equals(macAddress.getString()))
-					&& (instanceNumber != null && instanceNumber.getNumber().intValue() == deviceInstanceNumber)
-					&& (networkNumber != null && networkNumber.getNumber().intValue() == deviceNetworkNumber)) {
-				return true;
-			}
+		String key = deviceKey(d);
+		return deviceIndex.containsKey(key) || restoringDevices.contains(key);
+	}
+
+	static String deviceKey(int networkNumber, String mac, int instanceNumber) {
+		return networkNumber + "|" + mac + "|" + instanceNumber;
+	}
+
+	static String deviceKey(RemoteDevice d) {
+		return deviceKey(d.getAddress().getNetworkNumber().intValue(), Utils.getMac(d), d.getInstanceNumber());
+	}
+
+	/*
+	 * (Re-)registers a device node under its current identity. Called whenever
+	 * the node's remote device or its address attributes change.
+	 */
+	void indexDevice(DeviceNode dn) {
+		String key = dn.getIndexKey();
+		if (dn.indexKey != null && !dn.indexKey.equals(key)) {
+			deviceIndex.remove(dn.indexKey);
+		}
+		dn.indexKey = key;
+		if (key != null) {
+			deviceIndex.put(key, dn);
+		}
+	}
+
+	void unindexDevice(DeviceNode dn) {
+		if (dn.indexKey != null && deviceIndex.get(dn.indexKey) == dn) {
+			deviceIndex.remove(dn.indexKey);
 		}
-		return false;
+		dn.indexKey = null;
+	}
+
+	DeviceNode getDeviceNode(RemoteDevice d) {
+		if (d == null || d.getAddress() == null)
+			return null;
+		return deviceIndex.get(deviceKey(d));
 	}
 
 	void getDeviceProperties(final RemoteDevice d) {
@@ -701,11 +1047,13 @@ abstract class BacnetConn {
 			LOGGER.debug("error: ", e);
 		}
 		LOGGER.debug("Got device name: " + d.getName());
+		deviceCache.put(d);
 	}
 
 	private DeviceNode setupDeviceNode(final RemoteDevice d, Node child, String name, String mac, Integer instanceNum,
 			Integer netNum, String linkMac, long interval, CovType covtype, int covlife) {
-		if (d != null)
+		// devices restored from the cache already have a name, refreshed by revalidateDevice()
+		if (d != null && d.getName() == null)
 			getDeviceProperties(d);
 		if (name == null && d != null)
 			name = d.getName();
@@ -769,8 +1117,15 @@ abstract class BacnetConn {
 		if (null == localDevice || node.getChildren() == null)
 			return;
 
-		for (Node child : node.getChildren().values()) {
-			restoreDevice(child);
+		restoreQueue.reset();
+		try {
+			restoreQueue.setConcurrency(node.getAttribute(ATTRIBUTE_RESTORE_CONCURRENCY).getNumber().intValue());
+			for (Node child : node.getChildren().values()) {
+				restoreDevice(child);
+			}
+		} finally {
+			// whatever was queued before a failure still gets restored
+			restoreQueue.release();
 		}
 	}
 
@@ -806,26 +1161,39 @@ abstract class BacnetConn {
 							|| new Value("not connected").equals(child.getChild("STATUS", true).getValue()));
 			DeviceNode dn = null;
 			if (!disabled) {
-				ScheduledThreadPoolExecutor gstpe = Objects.getDaemonThreadPool();
-				gstpe.schedule(new Runnable() {
+				final String restoreKey = deviceKey(netNum.getNumber().intValue(), mac.getString(),
+						instanceNum.getNumber().intValue());
+				restoringDevices.add(restoreKey);
+				Value lastHealthy = child.getConfig(CONFIG_LAST_HEALTHY);
+				restoreQueue.submit(lastHealthy != null ? lastHealthy.getNumber().longValue() : 0,
+						new Callable<java.lang.Boolean>() {
 
 					@Override
-					public void run() {
-						RemoteDevice dev = getDevice(mac.getString(), instanceNum.getNumber().intValue(),
-								netNum.getNumber().intValue(), linkMac.getString(), refint.getNumber().longValue(), ct,
-								covlife.getNumber().intValue());
-						DeviceNode dn = setupDeviceNode(dev, child, child.getName(), mac.getString(),
-								instanceNum.getNumber().intValue(), netNum.getNumber().intValue(), linkMac.getString(),
-								refint.getNumber().longValue(), ct, covlife.getNumber().intValue());
-						if (dn != null)
-							dn.restoreLastSession();
-						else {
-							node.removeChild(child, false);
+					public java.lang.Boolean call() {
+						try {
+							RemoteDevice dev = getDevice(mac.getString(), instanceNum.getNumber().intValue(),
+									netNum.getNumber().intValue(), linkMac.getString(),
+									refint.getNumber().longValue(), ct, covlife.getNumber().intValue());
+							DeviceNode dn = setupDeviceNode(dev, child, child.getName(), mac.getString(),
+									instanceNum.getNumber().intValue(), netNum.getNumber().intValue(),
+									linkMac.getString(), refint.getNumber().longValue(), ct,
+									covlife.getNumber().intValue());
+							if (dn != null)
+								dn.restoreLastSession();
+							else {
+								node.removeChild(child, false);
+							}
+							// a device built from the cache only counts once it has answered
+							boolean reached = isContacted(dev, true);
+							if (reached)
+								child.setConfig(CONFIG_LAST_HEALTHY, new Value(System.currentTimeMillis()));
+							return reached;
+						} finally {
+							restoringDevices.remove(restoreKey);
 						}
-
 					}
 
-				}, 0, TimeUnit.SECONDS);
+				});
 
 			} else {
 				dn = setupDeviceNode(null, child, child.getName(), mac.getString(), instanceNum.getNumber().intValue(),
@@ -841,7 +1209,9 @@ abstract class BacnetConn {
 		} else if (restType != null && restType.getString().equals(RESTORE_EDITABLE_FOLDER)) {
 			localDeviceNode = new LocalDeviceNode(getMe(), child, localDevice);
 			localDeviceNode.restoreLastSession();
-		} else if (child.getAction() == null && !child.getName().equals("STATUS")) {
+		} else if (child.getAction() == null && !child.getName().equals("STATUS")
+				&& !child.getName().equals(RestoreQueue.NODE_RESTORE_PROGRESS)
+				&& !child.getName().equals(WriteLatency.NODE_WRITE_LATENCY)) {
 			node.removeChild(child, false);
 		}
 	}
@@ -867,25 +1237,35 @@ abstract class BacnetConn {
 				UnsignedInteger priority, EventType eventType, CharacterString messageText, NotifyType notifyType,
 				Boolean ackRequired, EventState fromState, EventState toState, NotificationParameters eventValues) {
 
+			// acknowledgment notifications carry no ackRequired, fromState or
+			// eventValues, and messageText is optional
 			JsonObject jo = new JsonObject();
 			jo.put("Process Identifier", processIdentifier.intValue());
 			jo.put("Object", eventObjectIdentifier.toString());
 			jo.put("Timestamp", Utils.timestampToString(timeStamp));
 			jo.put("Notification Class", notificationClass.intValue());
 			jo.put("Notify Type", notifyType.toString());
-			jo.put("Event Type", eventType.toString());
-			jo.put("From Event State", fromState.toString());
+			jo.put("Event Type", eventType != null ? eventType.toString() : "");
+			jo.put("From Event State", fromState != null ? fromState.toString() : "");
 			jo.put("To Event State", toState.toString());
 			jo.put("Priority", priority.intValue());
-			jo.put("Ack Required", ackRequired.booleanValue());
-			jo.put("Message Text", messageText.toString());
+			jo.put("Ack Required", ackRequired != null && ackRequired.booleanValue());
+			jo.put("Message Text", messageText != null ? messageText.toString() : "");
+
+			DeviceNode dn = getDeviceNode(initiatingDevice);
+			String deviceName = dn != null ? dn.node.getName()
+					: initiatingDevice != null ? String.valueOf(initiatingDevice.getInstanceNumber()) : "";
+			eventJournal.append(deviceName, jo);
+			if (dn != null) {
+				dn.eventBuffer.add(jo);
+				dn.activeEvents.eventReceived(eventObjectIdentifier, timeStamp, priority, notifyType,
+						ackRequired != null && ackRequired.booleanValue(), toState);
+			}
 
-			for (DeviceNode dn : deviceNodes) {
-				if (initiatingDevice.equals(dn.device)) {
-					JsonArray val = dn.eventnode.getValue().getArray();
-					val.add(jo);
-					dn.eventnode.setValue(new Value(val));
-				}
+			for (EventSubscription sub : eventSubscriptions) {
+				if (sub.matches(dn, initiatingDevice, eventObjectIdentifier, notificationClass.intValue(),
+						priority.intValue(), toState))
+					sub.send(deviceName, jo);
 			}
 		}
 
@@ -915,16 +1295,19 @@ abstract class BacnetConn {
 
 		@Override
 		public void propertyWritten(Address adress, BACnetObject bacnetObj, PropertyValue propVal) {
-			EditablePoint objectPoint = null;
 			Encodable enc = propVal.getValue();
-
-			objectPoint = ObjectToPoint.get(bacnetObj);
-			objectPoint.updatePointValue(enc);
-
+			ObjectIdentifier oid = bacnetObj.getId();
 			PropertyIdentifier pid = propVal.getPropertyIdentifier();
-			LocalBacnetProperty property = objectPoint.getProperty(pid);
-			property.updatePropertyValue(enc);
 
+			if (pid.equals(PropertyIdentifier.presentValue)) {
+				EditablePoint objectPoint = localIndex.getPoint(oid);
+				if (objectPoint != null)
+					objectPoint.updatePointValue(enc);
+			}
+
+			LocalBacnetProperty property = localIndex.getProperty(oid, pid);
+			if (property != null)
+				property.updatePropertyValue(enc);
 		}
 
 		@Override
@@ -950,8 +1333,4 @@ abstract class BacnetConn {
 	public LocalDevice getLocalDevice() {
 		return this.localDevice;
 	}
-
-	public Map<BACnetObject, EditablePoint> getObjectToPoint() {
-		return ObjectToPoint;
-	}
 }
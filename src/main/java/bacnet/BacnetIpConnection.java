@@ -1,23 +1,26 @@
 package bacnet;
 
-import com.serotonin.bacnet4j.exception.BACnetException;
 import com.serotonin.bacnet4j.npdu.Network;
 import com.serotonin.bacnet4j.npdu.ip.IpNetwork;
 import com.serotonin.bacnet4j.npdu.ip.IpNetworkBuilder;
 import com.serotonin.bacnet4j.npdu.ip.IpNetworkUtils;
 import com.serotonin.bacnet4j.type.primitive.OctetString;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.Map;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,13 +36,20 @@ public class BacnetIpConnection extends BacnetConn {
 	static final String ATTR_LOCAL_BIND_ADDRESS = "local bind address";
 	static final String ATTR_REGISTER_AS_FOREIGN_DEVICE = "register as foreign device in bbmd";
 	static final String ATTR_BBMD_IP_WITH_NETWORK_NUMBER = "bbmd ips with network number";
+	static final String ATTR_ADDITIONAL_BIND_ADDRESSES = "additional bind addresses";
+	static final String ATTR_FOREIGN_DEVICE_TTL = "foreign device ttl (seconds)";
 	static final int DEFAULT_TIME_TO_LIVE = 100;
 
+	static final String ACTION_GET_BBMD_REGISTRATIONS = "get bbmd registrations";
+
 	String broadcastIp;
 	int port;
 	String localBindAddress;
 	boolean isRegisteredAsForeignDevice;
 	String bbmdIpList;
+	String additionalBindAddresses;
+	int foreignDeviceTtl;
+	final ForeignRegistrations foreignRegistrations = new ForeignRegistrations(this);
 
 	BacnetIpConnection(BacnetLink link, Node node) {
 		super(link, node);
@@ -49,12 +59,20 @@ public class BacnetIpConnection extends BacnetConn {
 		localBindAddress = node.getAttribute(ATTR_LOCAL_BIND_ADDRESS).getString();
 		isRegisteredAsForeignDevice = node.getAttribute(ATTR_REGISTER_AS_FOREIGN_DEVICE).getBool();
 		bbmdIpList = node.getAttribute(ATTR_BBMD_IP_WITH_NETWORK_NUMBER).getString();
+		Value additional = node.getAttribute(ATTR_ADDITIONAL_BIND_ADDRESSES);
+		additionalBindAddresses = additional != null ? additional.getString() : null;
+		Value ttl = node.getAttribute(ATTR_FOREIGN_DEVICE_TTL);
+		foreignDeviceTtl = ttl != null ? ttl.getNumber().intValue() : DEFAULT_TIME_TO_LIVE;
 		if (null != bbmdIpList && isRegisteredAsForeignDevice) {
 			this.parseBroadcastManagementDevice(bbmdIpList);
 		}
 	}
 
 	Network createNetwork(int localNetworkNumber) {
+		List<MultiIpNetwork.Port> ports = MultiIpNetwork.parsePorts(additionalBindAddresses, port,
+				localNetworkNumber);
+		if (!ports.isEmpty())
+			return new MultiIpNetwork(broadcastIp, port, localBindAddress, localNetworkNumber, ports);
 		IpNetworkBuilder builder = new IpNetworkBuilder();
 		Network network = builder.broadcastIp(broadcastIp).port(port).localBindAddress(localBindAddress)
 				.localNetworkNumber(localNetworkNumber).build();
@@ -94,6 +112,10 @@ public class BacnetIpConnection extends BacnetConn {
 				node.getAttribute(ATTR_REGISTER_AS_FOREIGN_DEVICE)));
 		act.addParameter(new Parameter(ATTR_BBMD_IP_WITH_NETWORK_NUMBER, ValueType.STRING,
 				node.getAttribute(ATTR_BBMD_IP_WITH_NETWORK_NUMBER)));
+		act.addParameter(new Parameter(ATTR_FOREIGN_DEVICE_TTL, ValueType.NUMBER,
+				node.getAttribute(ATTR_FOREIGN_DEVICE_TTL)));
+		act.addParameter(new Parameter(ATTR_ADDITIONAL_BIND_ADDRESSES, ValueType.STRING,
+				node.getAttribute(ATTR_ADDITIONAL_BIND_ADDRESSES)));
 	}
 
 	@Override
@@ -103,33 +125,56 @@ public class BacnetIpConnection extends BacnetConn {
 		String lba = event.getParameter(ATTR_LOCAL_BIND_ADDRESS, ValueType.STRING).getString();
 		boolean isfd = event.getParameter(ATTR_REGISTER_AS_FOREIGN_DEVICE, ValueType.BOOL).getBool();
 		String bbmdips = event.getParameter(ATTR_BBMD_IP_WITH_NETWORK_NUMBER, ValueType.STRING).getString();
+		String binds = event.getParameter(ATTR_ADDITIONAL_BIND_ADDRESSES, new Value(" ")).getString();
+		int ttl = event.getParameter(ATTR_FOREIGN_DEVICE_TTL, new Value(DEFAULT_TIME_TO_LIVE)).getNumber().intValue();
 
 		node.setAttribute(ATTR_BROADCAST_IP, new Value(bip));
 		node.setAttribute(ATTR_PORT, new Value(port));
 		node.setAttribute(ATTR_LOCAL_BIND_ADDRESS, new Value(lba));
 		node.setAttribute(ATTR_REGISTER_AS_FOREIGN_DEVICE, new Value(isfd));
 		node.setAttribute(ATTR_BBMD_IP_WITH_NETWORK_NUMBER, new Value(bbmdips));
+		node.setAttribute(ATTR_FOREIGN_DEVICE_TTL, new Value(ttl));
+		node.setAttribute(ATTR_ADDITIONAL_BIND_ADDRESSES, new Value(binds));
 	}
 
 	@Override
-	void registerAsFeignDevice(Network network) {
-		if (!isRegisteredAsForeignDevice)
-			return;
-
-		for (Map.Entry<String, Integer> entry : bbmdIpToPort.entrySet()) {
-			String bbmdIp = entry.getKey();
-			Integer bbmdPort = entry.getValue();
-			try {
-				((IpNetwork) network).registerAsForeignDevice(
-						new InetSocketAddress(InetAddress.getByName(bbmdIp), bbmdPort), DEFAULT_TIME_TO_LIVE);
-			} catch (UnknownHostException e) {
-				LOGGER.debug("", e);
-			} catch (BACnetException e) {
-				LOGGER.debug("", e);
+	void init() {
+		super.init();
+
+		Action act = new Action(Permission.READ, new Handler<ActionResult>() {
+			public void handle(ActionResult event) {
+				Table table = event.getTable();
+				for (Row row : foreignRegistrations.getRegistrations())
+					table.addRow(row);
 			}
+		});
+		act.addResult(new Parameter("BBMD", ValueType.STRING));
+		act.addResult(new Parameter("Status", ValueType.STRING));
+		act.addResult(new Parameter("Time To Live", ValueType.NUMBER));
+		act.addResult(new Parameter("Seconds Since Registered", ValueType.NUMBER));
+		act.addResult(new Parameter("Seconds Until Next Attempt", ValueType.NUMBER));
+		act.addResult(new Parameter("Consecutive Failures", ValueType.NUMBER));
+		act.addResult(new Parameter("Last Error", ValueType.STRING));
+		act.setResultType(ResultType.TABLE);
+		Node anode = node.getChild(ACTION_GET_BBMD_REGISTRATIONS, true);
+		if (anode == null)
+			node.createChild(ACTION_GET_BBMD_REGISTRATIONS, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
+	}
 
+	@Override
+	void registerAsFeignDevice(Network network) {
+		if (!isRegisteredAsForeignDevice) {
+			foreignRegistrations.stop();
+			return;
 		}
+		foreignRegistrations.start((IpNetwork) network, bbmdIpToPort, foreignDeviceTtl);
+	}
 
+	@Override
+	void unregisterAsFeignDevice() {
+		foreignRegistrations.stop();
 	}
 
 	@Override
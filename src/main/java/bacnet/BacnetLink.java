@@ -37,6 +37,8 @@ public class BacnetLink {
 	private Node node;
 	final Map<BacnetPoint, ScheduledFuture<?>> futures;
 	final Set<BacnetConn> connections;
+	final SourceBindings sourceBindings = new SourceBindings();
+	final PointProxies pointProxies;
 	Serializer copySerializer;
 	Deserializer copyDeserializer;
 
@@ -52,12 +54,14 @@ public class BacnetLink {
 		this.copyDeserializer = deser;
 		this.copySerializer = ser;
 		this.connections = new HashSet<BacnetConn>();
+		this.pointProxies = new PointProxies(node);
 	}
 
-	public static void start(Node parent, Serializer ser, Deserializer deser) {
+	public static BacnetLink start(Node parent, Serializer ser, Deserializer deser) {
 		Node node = parent;
 		final BacnetLink link = new BacnetLink(node, ser, deser);
 		link.init();
+		return link;
 	}
 
 	private void init() {
@@ -163,6 +167,9 @@ public class BacnetLink {
 		act.addParameter(new Parameter("local network number", ValueType.NUMBER, new Value(0)));
 		act.addParameter(new Parameter("register as foreign device in bbmd", ValueType.BOOL, new Value(false)));
 		act.addParameter(new Parameter(ATTRIBUTE_BBMD_IP_WITH_NETWORK_NUMBER, ValueType.STRING));
+		act.addParameter(new Parameter(BacnetIpConnection.ATTR_FOREIGN_DEVICE_TTL, ValueType.NUMBER,
+				new Value(BacnetIpConnection.DEFAULT_TIME_TO_LIVE)));
+		act.addParameter(new Parameter(BacnetIpConnection.ATTR_ADDITIONAL_BIND_ADDRESSES, ValueType.STRING));
 		act.addParameter(new Parameter("strict device comparisons", ValueType.BOOL, new Value(true)));
 		act.addParameter(new Parameter("Timeout", ValueType.NUMBER, new Value(6000)));
 		act.addParameter(new Parameter("segment timeout", ValueType.NUMBER, new Value(5000)));
@@ -172,6 +179,16 @@ public class BacnetLink {
 		act.addParameter(new Parameter("local device name", ValueType.STRING, new Value("DSLink")));
 		act.addParameter(new Parameter("local device vendor", ValueType.STRING, new Value("DGLogik Inc.")));
 		act.addParameter(new Parameter("default polling interval", ValueType.NUMBER, new Value(5)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_RESTORE_CONCURRENCY, ValueType.NUMBER,
+				new Value(RestoreQueue.DEFAULT_CONCURRENCY)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_HISTORY_RETENTION_DAYS, ValueType.NUMBER,
+				new Value(TimeSeriesStore.DEFAULT_RETENTION_DAYS)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_MAX_MB, ValueType.NUMBER,
+				new Value(EventJournal.DEFAULT_MAX_MB)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS, ValueType.NUMBER,
+				new Value(EventJournal.DEFAULT_MAX_AGE_DAYS)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_DATABASE_CHECK_MINUTES, ValueType.NUMBER,
+				new Value(DeviceNode.DEFAULT_DATABASE_CHECK_MINUTES)));
 
 		return act;
 	}
@@ -199,6 +216,16 @@ public class BacnetLink {
 		act.addParameter(new Parameter("local device name", ValueType.STRING, new Value("DSLink")));
 		act.addParameter(new Parameter("local device vendor", ValueType.STRING, new Value("DGLogik Inc.")));
 		act.addParameter(new Parameter("default polling interval", ValueType.NUMBER, new Value(5)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_RESTORE_CONCURRENCY, ValueType.NUMBER,
+				new Value(RestoreQueue.DEFAULT_CONCURRENCY)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_HISTORY_RETENTION_DAYS, ValueType.NUMBER,
+				new Value(TimeSeriesStore.DEFAULT_RETENTION_DAYS)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_MAX_MB, ValueType.NUMBER,
+				new Value(EventJournal.DEFAULT_MAX_MB)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS, ValueType.NUMBER,
+				new Value(EventJournal.DEFAULT_MAX_AGE_DAYS)));
+		act.addParameter(new Parameter(BacnetConn.ATTRIBUTE_DATABASE_CHECK_MINUTES, ValueType.NUMBER,
+				new Value(DeviceNode.DEFAULT_DATABASE_CHECK_MINUTES)));
 		return act;
 	}
 
@@ -226,6 +253,11 @@ public class BacnetLink {
 					child.setAttribute(ATTRIBUTE_BBMD_IP_WITH_NETWORK_NUMBER, new Value(" "));
 				}
 			}
+			if (child.getAttribute(BacnetIpConnection.ATTR_FOREIGN_DEVICE_TTL) == null)
+				child.setAttribute(BacnetIpConnection.ATTR_FOREIGN_DEVICE_TTL,
+						new Value(BacnetIpConnection.DEFAULT_TIME_TO_LIVE));
+			if (child.getAttribute(BacnetIpConnection.ATTR_ADDITIONAL_BIND_ADDRESSES) == null)
+				child.setAttribute(BacnetIpConnection.ATTR_ADDITIONAL_BIND_ADDRESSES, new Value(" "));
 			// MSTP transport
 			Value commPort = child.getAttribute("comm port id");
 			Value baud = child.getAttribute("baud rate");
@@ -314,6 +346,10 @@ public class BacnetLink {
 			isRegisteredAsFeignDevice = event.getParameter("register as foreign device in bbmd", ValueType.BOOL)
 					.getBool();
 			bbmdIpList = event.getParameter(ATTRIBUTE_BBMD_IP_WITH_NETWORK_NUMBER, new Value(" ")).getString();
+			foreignDeviceTtl = event.getParameter(BacnetIpConnection.ATTR_FOREIGN_DEVICE_TTL,
+					new Value(BacnetIpConnection.DEFAULT_TIME_TO_LIVE)).getNumber().intValue();
+			additionalBindAddresses = event
+					.getParameter(BacnetIpConnection.ATTR_ADDITIONAL_BIND_ADDRESSES, new Value(" ")).getString();
 
 		}
 
@@ -350,6 +386,8 @@ public class BacnetLink {
 		String localBindAddress = null;
 		boolean isRegisteredAsFeignDevice = false;
 		String bbmdIpList = " ";
+		String additionalBindAddresses = " ";
+		int foreignDeviceTtl = BacnetIpConnection.DEFAULT_TIME_TO_LIVE;
 
 		// mstp transport
 		String commPort = null;
@@ -379,6 +417,16 @@ public class BacnetLink {
 			String localDeviceVendor = event.getParameter("local device vendor", ValueType.STRING).getString();
 			long interval = (long) (1000
 					* event.getParameter("default polling interval", ValueType.NUMBER).getNumber().doubleValue());
+			int restoreConcurrency = event.getParameter(BacnetConn.ATTRIBUTE_RESTORE_CONCURRENCY,
+					new Value(RestoreQueue.DEFAULT_CONCURRENCY)).getNumber().intValue();
+			int retentionDays = event.getParameter(BacnetConn.ATTRIBUTE_HISTORY_RETENTION_DAYS,
+					new Value(TimeSeriesStore.DEFAULT_RETENTION_DAYS)).getNumber().intValue();
+			int journalMaxMb = event.getParameter(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_MAX_MB,
+					new Value(EventJournal.DEFAULT_MAX_MB)).getNumber().intValue();
+			int journalRetentionDays = event.getParameter(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS,
+					new Value(EventJournal.DEFAULT_MAX_AGE_DAYS)).getNumber().intValue();
+			int databaseCheckMinutes = event.getParameter(BacnetConn.ATTRIBUTE_DATABASE_CHECK_MINUTES,
+					new Value(DeviceNode.DEFAULT_DATABASE_CHECK_MINUTES)).getNumber().intValue();
 
 			Node child = node.createChild(name, true).build();
 			// IP transport
@@ -387,6 +435,8 @@ public class BacnetLink {
 			child.setAttribute("local bind address", new Value(localBindAddress));
 			child.setAttribute("register as foreign device in bbmd", new Value(isRegisteredAsFeignDevice));
 			child.setAttribute(ATTRIBUTE_BBMD_IP_WITH_NETWORK_NUMBER, new Value(bbmdIpList));
+			child.setAttribute(BacnetIpConnection.ATTR_FOREIGN_DEVICE_TTL, new Value(foreignDeviceTtl));
+			child.setAttribute(BacnetIpConnection.ATTR_ADDITIONAL_BIND_ADDRESSES, new Value(additionalBindAddresses));
 			// MSTP transport
 			child.setAttribute("comm port id", new Value(commPort));
 			child.setAttribute("baud rate", new Value(baud));
@@ -403,6 +453,11 @@ public class BacnetLink {
 			child.setAttribute("local device name", new Value(localDeviceName));
 			child.setAttribute("local device vendor", new Value(localDeviceVendor));
 			child.setAttribute("default polling interval", new Value(interval));
+			child.setAttribute(BacnetConn.ATTRIBUTE_RESTORE_CONCURRENCY, new Value(restoreConcurrency));
+			child.setAttribute(BacnetConn.ATTRIBUTE_HISTORY_RETENTION_DAYS, new Value(retentionDays));
+			child.setAttribute(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_MAX_MB, new Value(journalMaxMb));
+			child.setAttribute(BacnetConn.ATTRIBUTE_EVENT_JOURNAL_RETENTION_DAYS, new Value(journalRetentionDays));
+			child.setAttribute(BacnetConn.ATTRIBUTE_DATABASE_CHECK_MINUTES, new Value(databaseCheckMinutes));
 
 			BacnetConn conn = createBacnetConnection(getMe(), child);
 			conn.init();
@@ -6,12 +6,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
+import org.dsa.iot.dslink.methods.StreamState;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.Permission;
@@ -19,6 +21,7 @@ import org.dsa.iot.dslink.node.Writable;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
 import org.dsa.iot.dslink.node.actions.table.Row;
 import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
@@ -37,11 +40,6 @@ import com.serotonin.bacnet4j.enums.Month;
 import com.serotonin.bacnet4j.exception.BACnetErrorException;
 import com.serotonin.bacnet4j.exception.BACnetException;
 import com.serotonin.bacnet4j.obj.ObjectProperties;
-import com.serotonin.bacnet4j.service.acknowledgement.ReadRangeAck;
-import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest;
-import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByPosition;
-import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.BySequenceNumber;
-import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByTime;
 import com.serotonin.bacnet4j.service.confirmed.WritePropertyRequest;
 import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.constructed.BACnetError;
@@ -58,7 +56,6 @@ import com.serotonin.bacnet4j.type.primitive.Date;
 import com.serotonin.bacnet4j.type.primitive.Null;
 import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
 import com.serotonin.bacnet4j.type.primitive.Real;
-import com.serotonin.bacnet4j.type.primitive.SignedInteger;
 import com.serotonin.bacnet4j.type.primitive.Time;
 import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
 import com.serotonin.bacnet4j.util.PropertyReferences;
@@ -75,7 +72,13 @@ public class BacnetPoint {
 
 	private static PointCounter numPoints = new PointCounter();
 
-	private static final int MAX_SUBS_PER_POINT = 2;
+	private static final int MAX_SUBS_PER_POINT = 3;
+	// subscription index held while local objects mirror the point
+	private static final int SUB_PROXY = 2;
+	static final String ACTION_MIRROR = "mirror to local device";
+	static final String NODE_LAST_WRITE_STATUS = "last write status";
+	static final String NODE_LAST_WRITE_ERROR = "last write error";
+	static final String NODE_LAST_WRITE_LATENCY = "last write latency";
 	private final CovListener listener;
 	private final boolean[] subscribed = new boolean[MAX_SUBS_PER_POINT];
 	private boolean covSub;
@@ -127,6 +130,10 @@ public class BacnetPoint {
 	private List<String> unitsDescription = new ArrayList<String>();
 
 	private boolean historyInitialized = false;
+	private TrendLogSync trendLogSync = null;
+	// set when a new present value arrives from polling or COV, cleared once it is stored
+	private boolean sampleReceived = false;
+	private final WriteQueue writeQueue = new WriteQueue(this);
 
 	public BacnetPoint(DeviceFolder folder, Node parent, ObjectIdentifier oid) {
 		this.folder = folder;
@@ -286,12 +293,15 @@ public class BacnetPoint {
 		node.setAttribute("settable", new Value(settable));
 		node.setAttribute("default priority", new Value(defaultPriority));
 		node.setAttribute("restore type", new Value("point"));
+		node.setMetaData(this);
 
 		if (node.getChild("present value", true) == null) {
 			node.createChild("present value", true).setValueType(ValueType.STRING).setValue(new Value("")).build();
 		}
 		node.getChild("present value", true).setWritable(Writable.NEVER);
 		folder.conn.link.setupPoint(this, folder);
+		if (folder.conn.localDevice != null)
+			folder.conn.link.pointProxies.sourceReady(this);
 
 		makeActions();
 		update();
@@ -328,6 +338,100 @@ public class BacnetPoint {
 		else
 			anode.setAction(act);
 
+		if (dataType == DataType.BINARY || dataType == DataType.NUMERIC || dataType == DataType.MULTISTATE)
+			makeMirrorAction();
+	}
+
+	private void makeMirrorAction() {
+		Set<String> conns = new TreeSet<String>();
+		for (BacnetConn conn : folder.conn.link.connections) {
+			if (conn.localDeviceNode != null)
+				conns.add(conn.node.getName());
+		}
+		if (conns.isEmpty())
+			conns.add(folder.conn.node.getName());
+		Action act = new Action(Permission.READ, new MirrorHandler());
+		act.addParameter(new Parameter("connection", ValueType.makeEnum(conns)));
+		act.addParameter(new Parameter("name", ValueType.STRING, new Value(node.getName())));
+		act.addParameter(new Parameter("object instance number", ValueType.NUMBER, new Value(instanceNumber)));
+		Node anode = node.getChild(ACTION_MIRROR, true);
+		if (anode == null)
+			node.createChild(ACTION_MIRROR, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
+	}
+
+	/*
+	 * Creates an object of the same type on a connection's local device that
+	 * other devices can read instead of this point.
+	 */
+	private class MirrorHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			String connName = event.getParameter("connection", ValueType.STRING).getString();
+			String name = event.getParameter("name", ValueType.STRING).getString();
+			int instance = event.getParameter("object instance number", ValueType.NUMBER).getNumber().intValue();
+			BacnetConn target = null;
+			for (BacnetConn conn : folder.conn.link.connections) {
+				if (conn.node.getName().equals(connName))
+					target = conn;
+			}
+			if (target == null || target.localDeviceNode == null)
+				throw new IllegalStateException("connection " + connName + " has no local device");
+			LocalDeviceFolder localFolder = target.localDeviceNode;
+			ObjectIdentifier localOid = new ObjectIdentifier(oid.getObjectType(), instance);
+			if (target.localIndex.getPoint(localOid) != null)
+				throw new IllegalArgumentException("duplicate object " + localOid);
+			if (localFolder.node.getChild(name, true) != null)
+				throw new IllegalArgumentException("a node named " + name + " already exists");
+
+			Node pointNode = localFolder.node.createChild(name, true).build();
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_OBJECT_TYPE, new Value(objectTypeDescription));
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_OBJECT_INSTANCE_NUMBER, new Value(instance));
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_USE_COV, new Value(true));
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_SETTABLE, new Value(false));
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_RESTORE_TYPE,
+					new Value(EditableFolder.ATTRIBUTE_EDITABLE_POINT));
+			if (dataType == DataType.NUMERIC && !unitsDescription.isEmpty()) {
+				pointNode.setAttribute(EditableFolder.ATTRIBUTE_UNITS, new Value(unitsDescription.get(0)));
+			} else if (dataType != DataType.NUMERIC && !unitsDescription.isEmpty()) {
+				JsonArray texts = new JsonArray();
+				for (String s : unitsDescription)
+					texts.add(s);
+				pointNode.setAttribute(EditableFolder.ATTRIBUTE_STATE_TEXTS, new Value(texts));
+			}
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_PROXY_SOURCE, new Value(node.getPath()));
+			new LocalBacnetPoint(localFolder, localFolder.node, pointNode);
+		}
+	}
+
+	private void makeLogActions() {
+		Action act = new Action(Permission.READ, new GetLogHandler(LogReader.BY_POSITION));
+		act.addParameter(new Parameter("position", ValueType.NUMBER, new Value(1)));
+		act.addParameter(new Parameter("count", ValueType.NUMBER, new Value(100)));
+		makeLogAction("get log by position", act);
+
+		act = new Action(Permission.READ, new GetLogHandler(LogReader.BY_SEQUENCE_NUMBER));
+		act.addParameter(new Parameter("sequence number", ValueType.NUMBER, new Value(1)));
+		act.addParameter(new Parameter("count", ValueType.NUMBER, new Value(100)));
+		makeLogAction("get log by sequence number", act);
+
+		act = new Action(Permission.READ, new GetLogHandler(LogReader.BY_TIME));
+		act.addParameter(new Parameter("time", ValueType.STRING)
+				.setDescription("yyyy-MM-ddTHH:mm:ss.SS, records after this time (before it for a negative count)"));
+		act.addParameter(new Parameter("count", ValueType.NUMBER, new Value(100)));
+		makeLogAction("get log by time", act);
+	}
+
+	private void makeLogAction(String name, Action act) {
+		act.addResult(new Parameter("timestamp", ValueType.STRING));
+		act.addResult(new Parameter("status flags", ValueType.STRING));
+		act.addResult(new Parameter("value", ValueType.STRING));
+		act.setResultType(ResultType.STREAM);
+		Node anode = node.getChild(name, true);
+		if (anode == null)
+			node.createChild(name, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
 	}
 
 	// private void clearActions() {
@@ -358,48 +462,60 @@ public class BacnetPoint {
 		}
 
 		public void handle(ActionResult event) {
-			ReadRangeRequest request = null;
-			int count = event.getParameter("count", ValueType.NUMBER).getNumber().intValue();
-			if (choice == 0) {
-				int pos = event.getParameter("position", ValueType.NUMBER).getNumber().intValue();
-				ByPosition bypos = new ByPosition(new UnsignedInteger(pos), new SignedInteger(count));
-				request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null, bypos);
-			} else if (choice == 1) {
-				int seqnum = event.getParameter("sequence number", ValueType.NUMBER).getNumber().intValue();
-				BySequenceNumber byseq = new BySequenceNumber(new UnsignedInteger(seqnum), new SignedInteger(count));
-				request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null, byseq);
-			} else if (choice == 2) {
+			final int count = event.getParameter("count", ValueType.NUMBER).getNumber().intValue();
+			long reference = 0;
+			DateTime dt = null;
+			if (choice == LogReader.BY_POSITION) {
+				reference = event.getParameter("position", ValueType.NUMBER).getNumber().longValue();
+			} else if (choice == LogReader.BY_SEQUENCE_NUMBER) {
+				reference = event.getParameter("sequence number", ValueType.NUMBER).getNumber().longValue();
+			} else if (choice == LogReader.BY_TIME) {
 				String dtstr = event.getParameter("time", ValueType.STRING).getString();
 				Date d = new Date(Integer.parseInt(dtstr.substring(0, 4)),
 						Month.valueOf(Integer.parseInt(dtstr.substring(5, 7))),
 						Integer.parseInt(dtstr.substring(8, 10)), null);
 				Time t = new Time(Integer.parseInt(dtstr.substring(11, 13)), Integer.parseInt(dtstr.substring(14, 16)),
 						Integer.parseInt(dtstr.substring(17, 19)), Integer.parseInt(dtstr.substring(20, 22)));
-				DateTime dt = new DateTime(d, t);
-				ByTime bytime = new ByTime(dt, new SignedInteger(count));
-				request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null, bytime);
+				dt = new DateTime(d, t);
 			}
 
-			if (request != null) {
-				ReadRangeAck response = null;
-				try {
-					response = (ReadRangeAck) folder.conn.localDevice.send(folder.root.getRemoteDevice(), request)
-							.get();
-				} catch (BACnetException e) {
-					LOGGER.debug("", e);
+			final Table table = event.getTable();
+			table.setMode(Table.Mode.APPEND);
+			if (folder.root.getRemoteDevice() == null) {
+				table.close();
+				return;
+			}
+			// rows are streamed a page at a time; closing the stream stops the read
+			final LogReader reader = new LogReader(folder.conn.localDevice, folder.root.getRemoteDevice(), oid);
+			event.setStreamState(StreamState.INITIALIZED);
+			event.setCloseHandler(new Handler<Void>() {
+				public void handle(Void v) {
+					reader.cancel();
 				}
-
-				if (response != null) {
-					Table table = event.getTable();
-					for (LogRecord record : (SequenceOf<LogRecord>) response.getItemData()) {
-						Value ts = new Value(Utils.datetimeToString(record.getTimestamp()));
-						Value sf = new Value(record.getStatusFlags().toString());
-						Value data = new Value(record.getEncodable().toString());
-						Row row = Row.make(ts, sf, data);
-						table.addRow(row);
+			});
+			final long ref = reference;
+			final DateTime time = dt;
+			folder.conn.getDaemonThreadPool().execute(new Runnable() {
+				public void run() {
+					try {
+						reader.read(choice, ref, time, count, new LogReader.PageHandler() {
+							public void page(List<LogRecord> records) {
+								for (LogRecord record : records) {
+									Value ts = new Value(Utils.datetimeToString(record.getTimestamp()));
+									Value sf = new Value(record.getStatusFlags().toString());
+									Value data = new Value(record.getEncodable().toString());
+									table.addRow(Row.make(ts, sf, data));
+								}
+							}
+						});
+					} catch (BACnetException e) {
+						LOGGER.debug("error: ", e);
+					} finally {
+						if (!reader.isCancelled())
+							table.close();
 					}
 				}
-			}
+			});
 		}
 	}
 
@@ -443,12 +559,33 @@ public class BacnetPoint {
 	}
 
 	private void handleSet(Value newval, int priority, boolean raw) {
+		handleSet(newval, priority, raw, null);
+	}
+
+	/*
+	 * Writes a value given as a raw value or as one of the point's state
+	 * texts. The callback, if any, is told the outcome of the write.
+	 */
+	void set(Value newval, int priority, WriteBatcher.Callback callback) {
+		boolean raw = true;
+		if ((dataType == DataType.BINARY || dataType == DataType.MULTISTATE)
+				&& newval.getType().compare(ValueType.STRING) && unitsDescription.contains(newval.getString()))
+			raw = false;
+		handleSet(newval, priority, raw, callback);
+	}
+
+	private void handleSet(Value newval, int priority, boolean raw, WriteBatcher.Callback callback) {
 		if (folder.conn.localDevice == null) {
 			folder.conn.stop();
+			if (callback != null)
+				callback.done(new BACnetException("connection is stopped"));
 			return;
 		}
-		if (folder.root.getRemoteDevice() == null)
+		if (folder.root.getRemoteDevice() == null) {
+			if (callback != null)
+				callback.done(new BACnetException("device is not connected"));
 			return;
+		}
 		if (dataType == DataType.BINARY) {
 			if (raw) {
 				// newval = String.valueOf(Boolean.parseBoolean(newval) ||
@@ -460,21 +597,46 @@ public class BacnetPoint {
 		} else if (dataType == DataType.MULTISTATE) {
 			if (!raw) {
 				int i = unitsDescription.indexOf(newval.getString());
-				if (i == -1)
+				if (i == -1) {
+					if (callback != null)
+						callback.done(new BACnetException("unknown state: " + newval.getString()));
 					return;
+				}
 				newval = new Value(String.valueOf(i));
 			}
 		}
-		Encodable enc = valueToEncodable(newval, oid.getObjectType(), pid);
+		Encodable enc;
 		try {
-			LOGGER.debug("Sending write request");
-			folder.conn.localDevice.send(folder.root.getRemoteDevice(),
-					new WritePropertyRequest(oid, pid, null, enc, new UnsignedInteger(priority)));
-			// Thread.sleep(500);
-		} catch (Exception e) {
-			LOGGER.debug("error: ", e);
+			enc = valueToEncodable(newval, oid.getObjectType(), pid);
+		} catch (RuntimeException e) {
+			if (callback == null)
+				throw e;
+			callback.done(e);
+			return;
+		}
+		writeQueue.enqueue(priority, enc, callback);
+	}
+
+	/*
+	 * Publishes the outcome of the point's last write: "ok" or "failed", the
+	 * kind of error, and the round-trip time in milliseconds.
+	 */
+	void writeCompleted(Exception error, long millis) {
+		if (node == null)
+			return;
+		setWriteStatusValue(NODE_LAST_WRITE_STATUS, ValueType.STRING, new Value(error == null ? "ok" : "failed"));
+		setWriteStatusValue(NODE_LAST_WRITE_ERROR, ValueType.STRING, new Value(WriteLatency.errorClass(error)));
+		setWriteStatusValue(NODE_LAST_WRITE_LATENCY, ValueType.NUMBER, new Value(millis));
+	}
+
+	private void setWriteStatusValue(String name, ValueType vt, Value val) {
+		Node vnode = node.getChild(name, true);
+		if (vnode == null) {
+			vnode = node.createChild(name, true).setValueType(vt).setValue(val).build();
+			vnode.setSerializable(false);
+		} else {
+			vnode.setValue(val);
 		}
-		refreshPriorities();
 	}
 
 	private class EditHandler implements Handler<ActionResult> {
@@ -504,11 +666,26 @@ public class BacnetPoint {
 
 	private class RemoveHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
-			node.clearChildren();
-			parent.removeChild(node, false);
+			remove();
 		}
 	}
 
+	/*
+	 * Removes the point along with its polling or COV subscription, trend log
+	 * sync, pending writes and open history series.
+	 */
+	void remove() {
+		if (trendLogSync != null)
+			trendLogSync.stop();
+		for (int i = 0; i < MAX_SUBS_PER_POINT; i++)
+			unsubscribe(i);
+		writeQueue.cancel();
+		folder.conn.historyStore.closeSeries(getSeriesKey());
+		folder.conn.historyStore.closeSeries(getSeriesKey() + ".log");
+		node.clearChildren();
+		parent.removeChild(node, false);
+	}
+
 	private class CopyHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			String name = event.getParameter("name", ValueType.STRING).getString();
@@ -527,6 +704,36 @@ public class BacnetPoint {
 		return dataType;
 	}
 
+	/*
+	 * The point's series in the connection's local history store, keyed by
+	 * device instance, object and property so it survives renames.
+	 */
+	TimeSeriesStore.Series getSeries() {
+		return folder.conn.historyStore.getSeries(getSeriesKey());
+	}
+
+	/*
+	 * The local copy of the point's trend log buffer, see TrendLogSync.
+	 */
+	TimeSeriesStore.Series getLogSeries() {
+		return folder.conn.historyStore.getSeries(getSeriesKey() + ".log");
+	}
+
+	private String getSeriesKey() {
+		Value inst = folder.root.node.getAttribute(BacnetConn.ATTRIBUTE_INSTANCE_NUMBER);
+		String device = inst != null ? String.valueOf(inst.getNumber().intValue()) : folder.root.node.getName();
+		int prop = pid != null ? pid.intValue() : PropertyIdentifier.presentValue.intValue();
+		return device + "." + oid.getObjectType().intValue() + "." + oid.getInstanceNumber() + "." + prop;
+	}
+
+	boolean isInTree() {
+		return node != null && parent.getChild(node.getName(), true) == node;
+	}
+
+	PropertyIdentifier getPropertyIdentifier() {
+		return pid;
+	}
+
 	public void setDataType(DataType dataType) {
 		if (dataType == DataType.NUMERIC && presentValue != null) {
 			try {
@@ -636,6 +843,7 @@ public class BacnetPoint {
 		this.pid = pid;
 		node.setAttribute("pid", new Value(pid.intValue()));
 		this.presentValue = presentValue;
+		this.sampleReceived = true;
 		setDataType(dataType);
 		// if (node != null && presentValue != null) {
 		// Node vnode = node.getChild("present value");
@@ -961,6 +1169,11 @@ public class BacnetPoint {
 				vnode = node.createChild("present value", true).setValueType(vt).setValue(val).build();
 				LOGGER.debug("presentValue set to " + val);
 			}
+			if (sampleReceived) {
+				sampleReceived = false;
+				// a poll that finds the same value adds nothing to the history
+				getSeries().appendIfChanged(System.currentTimeMillis(), val);
+			}
 		}
 
 		updateProperty("effective period", effectivePeriod);
@@ -982,9 +1195,17 @@ public class BacnetPoint {
 		updateProperty("ack required", ackRequired, PropertyIdentifier.ackRequired);
 		updateProperty("recipient list", recipientList, PropertyIdentifier.recipientList);
 
-		if (bufferSize > -1 && !historyInitialized) {
-			GetHistory.initAction(node, new Db());
-			historyInitialized = true;
+		if (!historyInitialized) {
+			if (!Utils.isOneOf(objectTypeId, ObjectType.trendLog)) {
+				GetHistory.initAction(node, new SampleDb());
+				historyInitialized = true;
+			} else if (bufferSize > -1) {
+				trendLogSync = new TrendLogSync(this);
+				trendLogSync.start();
+				GetHistory.initAction(node, new Db());
+				makeLogActions();
+				historyInitialized = true;
+			}
 		}
 
 		if (settable) {
@@ -1066,7 +1287,7 @@ public class BacnetPoint {
 		}
 	}
 
-	private void refreshPriorities() {
+	void refreshPriorities() {
 		refreshPriorities(null);
 	}
 
@@ -1178,12 +1399,6 @@ public class BacnetPoint {
 				for (int i = 1; i <= priorities.getCount(); i++) {
 					relinquish(i);
 				}
-				// try {
-				// Thread.sleep(500);
-				// } catch (InterruptedException e) {
-				// LOGGER.error("interrupted");
-				// }
-				refreshPriorities();
 			} catch (BACnetException e) {
 				// TODO Auto-generated catch block
 				LOGGER.error("error: ", e);
@@ -1201,12 +1416,6 @@ public class BacnetPoint {
 		public void handle(ActionResult event) {
 			int p = (priority > -1) ? priority : defaultPriority;
 			relinquish(p);
-			// try {
-			// Thread.sleep(500);
-			// } catch (InterruptedException e) {
-			// LOGGER.error("interrupted");
-			// }
-			refreshPriorities();
 		}
 	}
 
@@ -1217,12 +1426,7 @@ public class BacnetPoint {
 		}
 		if (folder.root.getRemoteDevice() == null)
 			return;
-		try {
-			folder.conn.localDevice.send(folder.root.getRemoteDevice(),
-					new WritePropertyRequest(oid, pid, null, new Null(), new UnsignedInteger(priority)));
-		} catch (Exception e) {
-			LOGGER.error("error: ", e);
-		}
+		writeQueue.enqueue(priority, new Null());
 	}
 
 	private void makeSetAction(Node valnode, int priority) {
@@ -1385,6 +1589,14 @@ public class BacnetPoint {
 
 	}
 
+	void subscribeProxy() {
+		subscribe(SUB_PROXY, folder.root.getCovType() != CovType.NONE && isCov());
+	}
+
+	void unsubscribeProxy() {
+		unsubscribe(SUB_PROXY);
+	}
+
 	void unsubscribe(int index) {
 		boolean wasActive = isActive();
 		subscribed[index] = false;
@@ -1471,6 +1683,52 @@ public class BacnetPoint {
 		}
 	}
 
+	/*
+	 * History of the samples this point has received, from the local store.
+	 */
+	private class SampleDb extends Database {
+
+		public SampleDb() {
+			super(node.getName(), null);
+		}
+
+		@Override
+		public void write(String path, Value value, long ts) {
+			getSeries().append(ts, value);
+		}
+
+		@Override
+		public void query(String path, long from, long to, CompleteHandler<QueryData> handler) {
+			try {
+				getSeries().query(from, to, handler);
+			} finally {
+				handler.complete();
+			}
+		}
+
+		@Override
+		public QueryData queryFirst(String path) {
+			return getSeries().first();
+		}
+
+		@Override
+		public QueryData queryLast(String path) {
+			return getSeries().last();
+		}
+
+		@Override
+		public void close() throws Exception {
+		}
+
+		@Override
+		protected void performConnect() throws Exception {
+		}
+
+		@Override
+		public void initExtensions(Node node) {
+		}
+	}
+
 	private class Db extends Database {
 
 		public Db() {
@@ -1485,35 +1743,8 @@ public class BacnetPoint {
 
 		@Override
 		public void query(String path, long from, long to, CompleteHandler<QueryData> handler) {
-			DateTime start = new DateTime(from);
-			// LOGGER.info("start time: " + Utils.datetimeToString(start));
-			ByTime bytime = new ByTime(start, new SignedInteger(bufferSize));
-			ReadRangeRequest request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null, bytime);
 			try {
-				ReadRangeAck response = (ReadRangeAck) folder.conn.localDevice
-						.send(folder.root.getRemoteDevice(), request).get();
-				for (LogRecord record : (SequenceOf<LogRecord>) response.getItemData()) {
-					long ts = record.getTimestamp().getGC().getTimeInMillis();
-					if (ts > to)
-						continue;
-					Encodable enc = record.getEncodable();
-					Value v;
-					if (enc instanceof com.serotonin.bacnet4j.type.primitive.Boolean) {
-						v = new Value(((com.serotonin.bacnet4j.type.primitive.Boolean) enc).booleanValue());
-					} else if (enc instanceof Real) {
-						v = new Value(((Real) enc).floatValue());
-					} else if (enc instanceof UnsignedInteger) {
-						v = new Value(((UnsignedInteger) enc).bigIntegerValue());
-					} else if (enc instanceof SignedInteger) {
-						v = new Value(((SignedInteger) enc).bigIntegerValue());
-					} else {
-						v = new Value(enc.toString());
-					}
-					QueryData qd = new QueryData(v, record.getTimestamp().getGC().getTimeInMillis());
-					handler.handle(qd);
-				}
-			} catch (BACnetException e) {
-				LOGGER.debug("", e);
+				trendLogSync.query(from, to, handler);
 			} finally {
 				handler.complete();
 			}
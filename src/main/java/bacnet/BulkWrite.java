@@ -0,0 +1,255 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+
+/*
+ * One run of a device's "bulk write" action. Each row names a point, by its
+ * path under the device or by its object identifier, with a value and an
+ * optional priority. Rows go through the points' write queues, and so through
+ * the device's WriteBatcher, with at most maxInFlight rows outstanding. A
+ * result row is streamed back as each write completes.
+ */
+class BulkWrite {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(BulkWrite.class);
+	}
+
+	static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+	private final DeviceFolder device;
+	private final Table table;
+	private final LinkedList<Entry> queue = new LinkedList<Entry>();
+	private final int maxInFlight;
+	private int inFlight = 0;
+	private boolean cancelled = false;
+	private boolean closed = false;
+	// a thread is in the sendNext() loop; completions on it or alongside it leave the work to that loop
+	private boolean sending = false;
+	// object identifier -> point, built on first lookup by object identifier
+	private Map<ObjectIdentifier, BacnetPoint> pointsByOid = null;
+
+	BulkWrite(DeviceFolder device, Table table, int maxInFlight) {
+		this.device = device;
+		this.table = table;
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/*
+	 * Accepts a JSON array whose elements are either objects with "point",
+	 * "value" and "priority" keys or arrays of [point, value, priority], or
+	 * CSV text with one "point,value,priority" row per line. Priority may be
+	 * left out to use the point's default priority.
+	 */
+	void parse(String text) {
+		text = text.trim();
+		if (text.startsWith("[")) {
+			for (Object o : new JsonArray(text)) {
+				if (o instanceof JsonObject) {
+					JsonObject jo = (JsonObject) o;
+					add(String.valueOf((Object) jo.get("point")), jo.get("value"), jo.get("priority"));
+				} else if (o instanceof JsonArray) {
+					JsonArray arr = (JsonArray) o;
+					add(String.valueOf((Object) arr.get(0)), arr.size() > 1 ? arr.get(1) : null,
+							arr.size() > 2 ? arr.get(2) : null);
+				}
+			}
+		} else {
+			for (String line : text.split("\\r?\\n")) {
+				if (line.trim().isEmpty())
+					continue;
+				String[] cols = line.split(",", 3);
+				add(cols[0].trim(), cols.length > 1 ? cols[1].trim() : null,
+						cols.length > 2 && !cols[2].trim().isEmpty() ? cols[2].trim() : null);
+			}
+		}
+	}
+
+	private void add(String point, Object value, Object priority) {
+		Integer prio = null;
+		if (priority instanceof Number)
+			prio = ((Number) priority).intValue();
+		else if (priority != null)
+			prio = Integer.valueOf(priority.toString());
+		queue.add(new Entry(point, value, prio));
+	}
+
+	void start() {
+		LOGGER.debug("bulk write of " + queue.size() + " rows to " + device.node.getName());
+		sendNext();
+	}
+
+	synchronized void cancel() {
+		cancelled = true;
+		queue.clear();
+	}
+
+	/*
+	 * Rows that fail right away complete on this thread. Rather than recursing
+	 * through finished(), their slots are picked up by the loop itself.
+	 */
+	private void sendNext() {
+		synchronized (this) {
+			if (sending)
+				return;
+			sending = true;
+		}
+		while (true) {
+			final Entry entry;
+			synchronized (this) {
+				if (queue.isEmpty() || cancelled) {
+					sending = false;
+					if (inFlight == 0 && !closed) {
+						closed = true;
+						table.close();
+					}
+					return;
+				}
+				if (inFlight >= maxInFlight) {
+					sending = false;
+					return;
+				}
+				entry = queue.poll();
+				inFlight++;
+			}
+			final long start = System.currentTimeMillis();
+			try {
+				BacnetPoint point = resolve(entry.point);
+				if (point == null)
+					throw new IllegalArgumentException("no such point");
+				if (entry.value == null)
+					throw new IllegalArgumentException("missing value");
+				int priority = entry.priority != null ? entry.priority : point.getDefaultPriority();
+				if (priority < 1 || priority > 16)
+					throw new IllegalArgumentException("priority must be between 1 and 16");
+				entry.priority = priority;
+				point.set(toValue(entry.value), priority, new WriteBatcher.Callback() {
+					public void done(Exception error) {
+						finished(entry, error, start);
+					}
+				});
+			} catch (Exception e) {
+				finished(entry, e, start);
+			}
+		}
+	}
+
+	private void finished(Entry entry, Exception error, long start) {
+		synchronized (this) {
+			inFlight--;
+			table.addRow(Row.make(new Value(entry.point), new Value(String.valueOf(entry.value)),
+					new Value(entry.priority != null ? entry.priority : 0),
+					new Value(error == null ? "ok" : "failed"),
+					new Value(error == null ? "" : String.valueOf(error.getMessage())),
+					new Value(System.currentTimeMillis() - start)));
+		}
+		sendNext();
+	}
+
+	private static Value toValue(Object o) {
+		if (o instanceof Number)
+			return new Value((Number) o);
+		if (o instanceof Boolean)
+			return new Value((Boolean) o);
+		return new Value(String.valueOf(o));
+	}
+
+	/*
+	 * Tries the string as a path relative to the device node (or an absolute
+	 * path below it), then as an object identifier such as "Analog Value:3".
+	 */
+	private BacnetPoint resolve(String ref) {
+		String path = ref;
+		String devicePath = device.node.getPath();
+		if (path.startsWith(devicePath + "/"))
+			path = path.substring(devicePath.length() + 1);
+		Node n = device.node;
+		for (String name : path.split("/")) {
+			if (name.isEmpty())
+				continue;
+			n = n.getChild(name, true);
+			if (n == null)
+				break;
+		}
+		if (n != null && n != device.node && n.getMetaData() instanceof BacnetPoint)
+			return (BacnetPoint) n.getMetaData();
+
+		ObjectIdentifier oid = parseOid(ref);
+		if (oid == null)
+			return null;
+		synchronized (this) {
+			if (pointsByOid == null) {
+				pointsByOid = new HashMap<ObjectIdentifier, BacnetPoint>();
+				indexPoints(device.node);
+			}
+			return pointsByOid.get(oid);
+		}
+	}
+
+	private void indexPoints(Node parent) {
+		if (parent.getChildren() == null)
+			return;
+		for (Node child : new ArrayList<Node>(parent.getChildren().values())) {
+			Object meta = child.getMetaData();
+			if (meta instanceof BacnetPoint) {
+				BacnetPoint point = (BacnetPoint) meta;
+				PropertyIdentifier pid = point.getPropertyIdentifier();
+				// prefer the point that writes presentValue when several share an object
+				if (!pointsByOid.containsKey(point.oid) || pid == null || pid.equals(PropertyIdentifier.presentValue))
+					pointsByOid.put(point.oid, point);
+			} else {
+				indexPoints(child);
+			}
+		}
+	}
+
+	/*
+	 * Accepts "<type>:<instance>" or "<type> <instance>", where the type is
+	 * its name as shown on point nodes (e.g. "Analog Value") or its number.
+	 */
+	private static ObjectIdentifier parseOid(String ref) {
+		ref = ref.trim();
+		int sep = Math.max(ref.lastIndexOf(':'), ref.lastIndexOf(' '));
+		if (sep <= 0)
+			return null;
+		String typeString = ref.substring(0, sep).trim();
+		try {
+			int instance = Integer.parseInt(ref.substring(sep + 1).trim());
+			ObjectType type = Utils.parseObjectType(typeString);
+			if (type == null && typeString.matches("\\d+"))
+				type = new ObjectType(Integer.parseInt(typeString));
+			return type != null ? new ObjectIdentifier(type, instance) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static class Entry {
+		final String point;
+		final Object value;
+		Integer priority;
+
+		Entry(String point, Object value, Integer priority) {
+			this.point = point;
+			this.value = value;
+			this.priority = priority;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package bacnet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.CompleteHandler;
+import org.dsa.iot.historian.utils.QueryData;
+
+/*
+ * Columnar, compressed form of a sealed history segment. A file is a series
+ * of blocks, one per run of samples of the same type. Each block has a header
+ * with its time range, so range scans skip whole blocks, followed by a
+ * timestamp column and a value column:
+ *
+ * - timestamps are delta-of-delta encoded with variable bit widths,
+ * - numbers are XOR-compressed against the previous value,
+ * - booleans and strings (binary and multistate values) are run-length encoded.
+ */
+class CompressedSegment {
+	static final String SUFFIX = ".cseg";
+	private static final int MAGIC = 0x42435331; // "BCS1"
+	private static final byte TYPE_NUMBER = 1;
+	private static final byte TYPE_BOOL = 2;
+	private static final byte TYPE_STRING = 3;
+
+	static void write(File file, List<QueryData> samples) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			int start = 0;
+			while (start < samples.size()) {
+				byte type = typeOf(samples.get(start).getValue());
+				int end = start + 1;
+				while (end < samples.size() && typeOf(samples.get(end).getValue()) == type)
+					end++;
+				writeBlock(out, type, samples.subList(start, end));
+				start = end;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeBlock(DataOutputStream out, byte type, List<QueryData> samples) throws IOException {
+		BitWriter times = new BitWriter();
+		long prev = samples.get(0).getTimestamp();
+		long prevDelta = 0;
+		for (int i = 1; i < samples.size(); i++) {
+			long ts = samples.get(i).getTimestamp();
+			long delta = ts - prev;
+			writeDeltaOfDelta(times, delta - prevDelta);
+			prevDelta = delta;
+			prev = ts;
+		}
+		byte[] values;
+		if (type == TYPE_NUMBER)
+			values = encodeNumbers(samples);
+		else
+			values = encodeRuns(type, samples);
+		byte[] timeBytes = times.toByteArray();
+
+		out.writeByte(type);
+		out.writeInt(samples.size());
+		out.writeLong(samples.get(0).getTimestamp());
+		out.writeLong(samples.get(samples.size() - 1).getTimestamp());
+		out.writeInt(timeBytes.length);
+		out.writeInt(values.length);
+		out.write(timeBytes);
+		out.write(values);
+	}
+
+	/*
+	 * Calls the handler for every sample between from and to, in order.
+	 */
+	static void scan(File file, long from, long to, CompleteHandler<QueryData> handler) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("not a compressed segment: " + file);
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+				int count = in.readInt();
+				long first = in.readLong();
+				long last = in.readLong();
+				int timeLen = in.readInt();
+				int valueLen = in.readInt();
+				if (first > to)
+					return;
+				if (last < from) {
+					skipFully(in, timeLen + valueLen);
+					continue;
+				}
+				byte[] timeBytes = new byte[timeLen];
+				in.readFully(timeBytes);
+				byte[] valueBytes = new byte[valueLen];
+				in.readFully(valueBytes);
+				decodeBlock(type, count, first, timeBytes, valueBytes, from, to, handler);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void decodeBlock(byte type, int count, long first, byte[] timeBytes, byte[] valueBytes, long from,
+			long to, CompleteHandler<QueryData> handler) throws IOException {
+		BitReader times = new BitReader(timeBytes);
+		BitReader numbers = type == TYPE_NUMBER ? new BitReader(valueBytes) : null;
+		DataInputStream runs = type != TYPE_NUMBER
+				? new DataInputStream(new ByteArrayInputStream(valueBytes)) : null;
+
+		long ts = first;
+		long delta = 0;
+		// state of the XOR decoder
+		long bits = 0;
+		int leading = -1;
+		int trailing = 0;
+		// state of the run decoder
+		Value runValue = null;
+		int runLeft = 0;
+
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				delta += readDeltaOfDelta(times);
+				ts += delta;
+			}
+			Value v;
+			if (type == TYPE_NUMBER) {
+				if (i == 0) {
+					bits = numbers.read(64);
+				} else if (numbers.read(1) == 1) {
+					if (numbers.read(1) == 1 || leading < 0) {
+						leading = (int) numbers.read(5);
+						int len = (int) numbers.read(6);
+						if (len == 0)
+							len = 64;
+						trailing = 64 - leading - len;
+					}
+					int len = 64 - leading - trailing;
+					bits ^= numbers.read(len) << trailing;
+				}
+				v = new Value(Double.longBitsToDouble(bits));
+			} else {
+				if (runLeft == 0) {
+					runValue = type == TYPE_BOOL ? new Value(runs.readBoolean()) : new Value(runs.readUTF());
+					runLeft = runs.readInt();
+				}
+				runLeft--;
+				v = runValue;
+			}
+			if (ts > to)
+				return;
+			if (ts >= from)
+				handler.handle(new QueryData(v, ts));
+		}
+	}
+
+	private static byte typeOf(Value v) {
+		if (v.getType() == ValueType.NUMBER && v.getNumber() != null)
+			return TYPE_NUMBER;
+		if (v.getType().compare(ValueType.BOOL) && v.getBool() != null)
+			return TYPE_BOOL;
+		return TYPE_STRING;
+	}
+
+	private static void writeDeltaOfDelta(BitWriter w, long dod) {
+		if (dod == 0) {
+			w.write(0, 1);
+		} else if (dod >= -63 && dod <= 64) {
+			w.write(0x2, 2);
+			w.write(dod + 63, 7);
+		} else if (dod >= -255 && dod <= 256) {
+			w.write(0x6, 3);
+			w.write(dod + 255, 9);
+		} else if (dod >= -2047 && dod <= 2048) {
+			w.write(0xe, 4);
+			w.write(dod + 2047, 12);
+		} else {
+			w.write(0xf, 4);
+			w.write(dod, 64);
+		}
+	}
+
+	private static long readDeltaOfDelta(BitReader r) {
+		if (r.read(1) == 0)
+			return 0;
+		if (r.read(1) == 0)
+			return r.read(7) - 63;
+		if (r.read(1) == 0)
+			return r.read(9) - 255;
+		if (r.read(1) == 0)
+			return r.read(12) - 2047;
+		return r.read(64);
+	}
+
+	private static byte[] encodeNumbers(List<QueryData> samples) {
+		BitWriter w = new BitWriter();
+		long prev = Double.doubleToLongBits(samples.get(0).getValue().getNumber().doubleValue());
+		w.write(prev, 64);
+		int leading = -1;
+		int trailing = 0;
+		for (int i = 1; i < samples.size(); i++) {
+			long bits = Double.doubleToLongBits(samples.get(i).getValue().getNumber().doubleValue());
+			long xor = bits ^ prev;
+			prev = bits;
+			if (xor == 0) {
+				w.write(0, 1);
+				continue;
+			}
+			w.write(1, 1);
+			int lz = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int tz = Long.numberOfTrailingZeros(xor);
+			if (leading >= 0 && lz >= leading && tz >= trailing) {
+				// fits in the previous window
+				w.write(0, 1);
+				w.write(xor >>> trailing, 64 - leading - trailing);
+			} else {
+				leading = lz;
+				trailing = tz;
+				int len = 64 - lz - tz;
+				w.write(1, 1);
+				w.write(lz, 5);
+				w.write(len == 64 ? 0 : len, 6);
+				w.write(xor >>> tz, len);
+			}
+		}
+		return w.toByteArray();
+	}
+
+	private static byte[] encodeRuns(byte type, List<QueryData> samples) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int i = 0;
+		while (i < samples.size()) {
+			Value v = samples.get(i).getValue();
+			int run = 1;
+			while (i + run < samples.size() && v.equals(samples.get(i + run).getValue()))
+				run++;
+			if (type == TYPE_BOOL)
+				out.writeBoolean(v.getBool() != null && v.getBool());
+			else
+				out.writeUTF(v.getString() != null ? v.getString() : v.toString());
+			out.writeInt(run);
+			i += run;
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void skipFully(DataInputStream in, int n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes(n);
+			if (skipped <= 0)
+				throw new EOFException();
+			n -= skipped;
+		}
+	}
+
+	private static class BitWriter {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int current;
+		private int used;
+
+		/*
+		 * Writes the low n bits of value, most significant first.
+		 */
+		void write(long value, int n) {
+			for (int i = n - 1; i >= 0; i--) {
+				current = (current << 1) | (int) ((value >>> i) & 1);
+				if (++used == 8) {
+					out.write(current);
+					current = 0;
+					used = 0;
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			if (used > 0) {
+				out.write(current << (8 - used));
+				current = 0;
+				used = 0;
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private static class BitReader {
+		private final byte[] data;
+		private int pos;
+
+		BitReader(byte[] data) {
+			this.data = data;
+		}
+
+		long read(int n) {
+			long value = 0;
+			for (int i = 0; i < n; i++) {
+				int b = data[pos >>> 3] >>> (7 - (pos & 7)) & 1;
+				value = (value << 1) | b;
+				pos++;
+			}
+			return value;
+		}
+	}
+}
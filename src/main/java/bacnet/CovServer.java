@@ -0,0 +1,294 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedCovNotificationRequest;
+import com.serotonin.bacnet4j.service.unconfirmed.UnconfirmedCovNotificationRequest;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.constructed.PropertyValue;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Real;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+
+/*
+ * COV subscriptions that other devices hold on the connection's local objects.
+ * A change of present value is only reported to a subscriber once it has moved
+ * by at least the object's COV increment since the value last reported to
+ * that subscriber; non-analog values and status flags are reported on every
+ * change. Confirmed notifications that fail are not retried one by one: the
+ * subscription is marked and every RETRY_SECONDS all marked subscriptions
+ * are sent the object's current values in one pass, so a subscriber that is
+ * down costs one notification per object per pass however often the values
+ * change. Expired leases are dropped in the same pass.
+ */
+class CovServer {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(CovServer.class);
+	}
+
+	static final long RETRY_SECONDS = 10;
+	static final int MAX_RETRIES = 3;
+
+	private final BacnetConn conn;
+	private final Map<ObjectIdentifier, List<Subscription>> subscriptions = new ConcurrentHashMap<ObjectIdentifier, List<Subscription>>();
+	private final Set<Subscription> retries = Collections
+			.newSetFromMap(new ConcurrentHashMap<Subscription, java.lang.Boolean>());
+	private ScheduledFuture<?> sweepFuture = null;
+
+	CovServer(BacnetConn conn) {
+		this.conn = conn;
+	}
+
+	/*
+	 * Adds or renews a subscription and sends the initial notification. A
+	 * lifetime of zero never expires.
+	 */
+	void subscribe(LocalBacnetObject obj, Address address, UnsignedInteger processId, boolean confirmed,
+			int lifetimeSeconds) {
+		ObjectIdentifier oid = obj.getId();
+		Subscription sub = new Subscription(obj, address, processId, confirmed, lifetimeSeconds);
+		synchronized (this) {
+			List<Subscription> subs = subscriptions.get(oid);
+			if (subs == null) {
+				subs = new CopyOnWriteArrayList<Subscription>();
+				subscriptions.put(oid, subs);
+			}
+			for (Subscription old : subs) {
+				if (old.matches(address, processId)) {
+					subs.remove(old);
+					retries.remove(old);
+				}
+			}
+			subs.add(sub);
+			if (sweepFuture == null) {
+				sweepFuture = conn.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						sweep();
+					}
+				}, RETRY_SECONDS, RETRY_SECONDS, TimeUnit.SECONDS);
+			}
+		}
+		notify(sub);
+	}
+
+	synchronized void unsubscribe(ObjectIdentifier oid, Address address, UnsignedInteger processId) {
+		List<Subscription> subs = subscriptions.get(oid);
+		if (subs == null)
+			return;
+		for (Subscription sub : subs) {
+			if (sub.matches(address, processId)) {
+				subs.remove(sub);
+				retries.remove(sub);
+			}
+		}
+		if (subs.isEmpty())
+			subscriptions.remove(oid);
+	}
+
+	/*
+	 * Drops the subscriptions on an object that was removed or no longer
+	 * supports COV.
+	 */
+	synchronized void removeObject(ObjectIdentifier oid) {
+		List<Subscription> subs = subscriptions.remove(oid);
+		if (subs != null)
+			retries.removeAll(subs);
+	}
+
+	/*
+	 * Drops every subscription, for when the local device stops.
+	 */
+	synchronized void clear() {
+		subscriptions.clear();
+		retries.clear();
+		if (sweepFuture != null) {
+			sweepFuture.cancel(false);
+			sweepFuture = null;
+		}
+	}
+
+	/*
+	 * Called after a property of a local object was written.
+	 */
+	void propertyChanged(LocalBacnetObject obj, PropertyIdentifier pid) {
+		boolean presentValue = PropertyIdentifier.presentValue.equals(pid);
+		if (!presentValue && !PropertyIdentifier.statusFlags.equals(pid))
+			return;
+		List<Subscription> subs = subscriptions.get(obj.getId());
+		if (subs == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (Subscription sub : subs) {
+			if (sub.hasExpired(now))
+				continue;
+			if (!presentValue || sub.exceedsIncrement(obj.get(PropertyIdentifier.presentValue)))
+				notify(sub);
+		}
+	}
+
+	private void notify(final Subscription sub) {
+		LocalDevice ld = conn.getLocalDevice();
+		if (ld == null)
+			return;
+		Encodable value = sub.obj.get(PropertyIdentifier.presentValue);
+		List<PropertyValue> values = new ArrayList<PropertyValue>();
+		values.add(new PropertyValue(PropertyIdentifier.presentValue, value));
+		Encodable flags = sub.obj.get(PropertyIdentifier.statusFlags);
+		if (flags != null)
+			values.add(new PropertyValue(PropertyIdentifier.statusFlags, flags));
+		ObjectIdentifier deviceId = ld.getConfiguration().getId();
+		UnsignedInteger timeRemaining = new UnsignedInteger(sub.timeRemaining(System.currentTimeMillis()));
+		sub.lastReported = value;
+		if (!sub.confirmed) {
+			ld.send(sub.address, new UnconfirmedCovNotificationRequest(sub.processId, deviceId, sub.obj.getId(),
+					timeRemaining, new SequenceOf<PropertyValue>(values)));
+			return;
+		}
+		ld.send(sub.address, new ConfirmedCovNotificationRequest(sub.processId, deviceId, sub.obj.getId(),
+				timeRemaining, new SequenceOf<PropertyValue>(values)), new ResponseConsumer() {
+					public void success(AcknowledgementService ack) {
+						sub.failures = 0;
+					}
+
+					public void fail(AckAPDU ack) {
+						failed(sub);
+					}
+
+					public void ex(BACnetException e) {
+						failed(sub);
+					}
+				});
+	}
+
+	private void failed(Subscription sub) {
+		sub.failures++;
+		if (sub.failures <= MAX_RETRIES)
+			retries.add(sub);
+		else
+			LOGGER.debug("giving up on COV notification for " + sub.obj.getId() + " to " + sub.address);
+	}
+
+	/*
+	 * Drops expired subscriptions and resends the notifications that failed
+	 * since the last pass.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (Map.Entry<ObjectIdentifier, List<Subscription>> entry : subscriptions.entrySet()) {
+				List<Subscription> subs = entry.getValue();
+				for (Subscription sub : subs) {
+					if (sub.hasExpired(now)) {
+						subs.remove(sub);
+						retries.remove(sub);
+					}
+				}
+				if (subs.isEmpty())
+					subscriptions.remove(entry.getKey());
+			}
+		}
+		List<Subscription> pending = new ArrayList<Subscription>(retries);
+		retries.removeAll(pending);
+		for (Subscription sub : pending) {
+			List<Subscription> subs = subscriptions.get(sub.obj.getId());
+			if (subs == null || !subs.contains(sub))
+				continue;
+			try {
+				notify(sub);
+			} catch (Exception e) {
+				LOGGER.debug("error: ", e);
+			}
+		}
+	}
+
+	/*
+	 * Rows for "get cov subscriptions", one per subscription.
+	 */
+	List<Row> getSubscriptions() {
+		List<Row> rows = new ArrayList<Row>();
+		long now = System.currentTimeMillis();
+		for (List<Subscription> subs : subscriptions.values()) {
+			for (Subscription sub : subs) {
+				if (sub.hasExpired(now))
+					continue;
+				Real increment = sub.obj.getCovIncrement();
+				rows.add(Row.make(new Value(sub.obj.getId().toString()), new Value(sub.address.getDescription()),
+						new Value(sub.processId.intValue()), new Value(sub.confirmed),
+						new Value(sub.expiry == 0 ? -1 : sub.timeRemaining(now)),
+						new Value(increment != null ? increment.floatValue() : 0), new Value(sub.failures)));
+			}
+		}
+		return rows;
+	}
+
+	private static class Subscription {
+		final LocalBacnetObject obj;
+		final Address address;
+		final UnsignedInteger processId;
+		final boolean confirmed;
+		// 0 for subscriptions that never expire
+		final long expiry;
+		volatile Encodable lastReported = null;
+		volatile int failures = 0;
+
+		Subscription(LocalBacnetObject obj, Address address, UnsignedInteger processId, boolean confirmed,
+				int lifetimeSeconds) {
+			this.obj = obj;
+			this.address = address;
+			this.processId = processId;
+			this.confirmed = confirmed;
+			this.expiry = lifetimeSeconds > 0 ? System.currentTimeMillis() + lifetimeSeconds * 1000L : 0;
+		}
+
+		boolean matches(Address address, UnsignedInteger processId) {
+			return this.address.equals(address) && this.processId.equals(processId);
+		}
+
+		boolean hasExpired(long now) {
+			return expiry != 0 && now >= expiry;
+		}
+
+		int timeRemaining(long now) {
+			return expiry == 0 ? 0 : (int) Math.max(0, (expiry - now) / 1000);
+		}
+
+		/*
+		 * Whether the value should be reported: analog values once they have
+		 * moved by the increment, anything else when it differs.
+		 */
+		boolean exceedsIncrement(Encodable value) {
+			Encodable last = lastReported;
+			if (last == null || value == null)
+				return value != last;
+			if (value.equals(last))
+				return false;
+			Real increment = obj.getCovIncrement();
+			if (increment != null && value instanceof Real && last instanceof Real)
+				return Math.abs(((Real) value).floatValue() - ((Real) last).floatValue()) >= increment.floatValue();
+			return !value.equals(last);
+		}
+	}
+}
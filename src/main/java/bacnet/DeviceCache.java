@@ -0,0 +1,252 @@
+package bacnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.util.StringUtils;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.RemoteObject;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.constructed.ServicesSupported;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.Segmentation;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+
+/*
+ * What a connection has learned about its remote devices (address, APDU
+ * limits, segmentation, vendor, names and object list), kept in one JSON file
+ * per connection so devices can be rebuilt on startup without a WhoIs.
+ * Entries are keyed by BacnetConn.deviceKey().
+ */
+class DeviceCache {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(DeviceCache.class);
+	}
+
+	static final String CACHE_DIR = "device-cache";
+	private static final long SAVE_DELAY_SECONDS = 5;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final ScheduledThreadPoolExecutor stpe;
+	// a loaded JsonObject, or the live RemoteDevice once it has been resolved
+	private final Map<String, Object> entries = new ConcurrentHashMap<String, Object>();
+	private ScheduledFuture<?> saveFuture = null;
+	// set once the connection is shut down; no more saves are scheduled
+	private boolean closed = false;
+	// set once the connection is removed; the file is not written again
+	private boolean deleted = false;
+
+	DeviceCache(String connName, ScheduledThreadPoolExecutor stpe) {
+		this.file = new File(CACHE_DIR, StringUtils.encodeName(connName) + ".json");
+		this.stpe = stpe;
+		load();
+	}
+
+	private void load() {
+		if (!file.isFile())
+			return;
+		try {
+			String text = new String(Files.readAllBytes(file.toPath()), UTF8);
+			JsonObject jobj = new JsonObject(text);
+			for (Map.Entry<String, Object> entry : jobj) {
+				if (entry.getValue() instanceof JsonObject)
+					entries.put(entry.getKey(), (JsonObject) entry.getValue());
+			}
+		} catch (Exception e) {
+			LOGGER.debug("error: ", e);
+		}
+	}
+
+	/*
+	 * Builds a remote device from the cached entry, or returns null if no
+	 * device is cached under this key.
+	 */
+	RemoteDevice get(String key, Address address, int instanceNum) {
+		Object entry = entries.get(key);
+		if (entry instanceof RemoteDevice)
+			return (RemoteDevice) entry;
+		if (!(entry instanceof JsonObject))
+			return null;
+		JsonObject jo = (JsonObject) entry;
+		try {
+			RemoteDevice d = new RemoteDevice(instanceNum, address);
+			Number n = jo.get("max apdu");
+			if (n != null)
+				d.setMaxAPDULengthAccepted(n.intValue());
+			n = jo.get("segmentation");
+			if (n != null)
+				d.setSegmentationSupported(new Segmentation(n.intValue()));
+			n = jo.get("vendor id");
+			if (n != null)
+				d.setVendorId(n.intValue());
+			d.setVendorName((String) jo.get("vendor name"));
+			d.setName((String) jo.get("name"));
+			d.setModelName((String) jo.get("model name"));
+			String services = jo.get("services supported");
+			if (services != null) {
+				ServicesSupported ss = new ServicesSupported();
+				for (int i = 0; i < services.length(); i++)
+					ss.setValue(i, services.charAt(i) == '1');
+				d.setServicesSupported(ss);
+			}
+			JsonArray objects = jo.get("objects");
+			if (objects != null) {
+				for (Object o : objects) {
+					JsonArray arr = (JsonArray) o;
+					ObjectIdentifier oid = new ObjectIdentifier(new ObjectType(((Number) arr.get(0)).intValue()),
+							((Number) arr.get(1)).intValue());
+					RemoteObject ro = new RemoteObject(oid);
+					if (arr.size() > 2)
+						ro.setObjectName((String) arr.get(2));
+					d.setObject(ro);
+				}
+			}
+			return d;
+		} catch (Exception e) {
+			LOGGER.debug("discarding cache entry for " + key, e);
+			remove(key);
+			return null;
+		}
+	}
+
+	/*
+	 * Marks a device as changed. It is serialized when the cache is next saved.
+	 */
+	void put(RemoteDevice d) {
+		if (d == null || d.getAddress() == null)
+			return;
+		entries.put(BacnetConn.deviceKey(d), d);
+		scheduleSave();
+	}
+
+	private static JsonObject toJson(RemoteDevice d) {
+		JsonObject jo = new JsonObject();
+		jo.put("max apdu", d.getMaxAPDULengthAccepted());
+		if (d.getSegmentationSupported() != null)
+			jo.put("segmentation", d.getSegmentationSupported().intValue());
+		jo.put("vendor id", d.getVendorId());
+		jo.put("vendor name", d.getVendorName());
+		jo.put("name", d.getName());
+		jo.put("model name", d.getModelName());
+		if (d.getServicesSupported() != null) {
+			StringBuilder sb = new StringBuilder();
+			for (boolean b : d.getServicesSupported().getValue())
+				sb.append(b ? '1' : '0');
+			jo.put("services supported", sb.toString());
+		}
+		// the object map is not thread safe; writers hold the device's lock
+		List<RemoteObject> objs;
+		synchronized (d) {
+			objs = d.getObjects();
+		}
+		JsonArray objects = new JsonArray();
+		for (RemoteObject ro : objs) {
+			JsonArray arr = new JsonArray();
+			arr.add(ro.getObjectIdentifier().getObjectType().intValue());
+			arr.add(ro.getObjectIdentifier().getInstanceNumber());
+			if (ro.getObjectName() != null)
+				arr.add(ro.getObjectName());
+			objects.add(arr);
+		}
+		jo.put("objects", objects);
+		return jo;
+	}
+
+	void remove(String key) {
+		if (key != null && entries.remove(key) != null)
+			scheduleSave();
+	}
+
+	/*
+	 * Writes what is cached now to the cache file of another connection name,
+	 * so a renamed connection keeps its devices.
+	 */
+	void copyTo(String connName) {
+		save(new File(CACHE_DIR, StringUtils.encodeName(connName) + ".json"));
+	}
+
+	/*
+	 * Stops saving. A pending save is written now instead of being dropped.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			if (saveFuture == null || !saveFuture.cancel(false))
+				return;
+		}
+		save(file);
+	}
+
+	void delete() {
+		synchronized (this) {
+			closed = true;
+			deleted = true;
+			if (saveFuture != null)
+				saveFuture.cancel(false);
+		}
+		entries.clear();
+		if (!file.delete() && file.exists())
+			LOGGER.debug("could not delete " + file);
+	}
+
+	/*
+	 * Writes are coalesced: many devices resolving at startup produce one save.
+	 */
+	private synchronized void scheduleSave() {
+		if (closed || (saveFuture != null && !saveFuture.isDone()))
+			return;
+		saveFuture = stpe.schedule(new Runnable() {
+			public void run() {
+				save(file);
+			}
+		}, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void save(File target) {
+		JsonObject jobj = new JsonObject();
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			Object value = entry.getValue();
+			try {
+				jobj.put(entry.getKey(), value instanceof RemoteDevice ? toJson((RemoteDevice) value) : value);
+			} catch (Exception e) {
+				LOGGER.debug("error: ", e);
+			}
+		}
+		try {
+			File dir = target.getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("could not create " + dir);
+			File tmp = new File(dir, target.getName() + ".tmp");
+			Files.write(tmp.toPath(), jobj.encode().getBytes(UTF8));
+			synchronized (this) {
+				// a save that was already running when the cache was deleted
+				if (deleted && target.equals(file)) {
+					Files.delete(tmp.toPath());
+					return;
+				}
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			LOGGER.debug("error: ", e);
+		}
+	}
+}
@@ -1,12 +1,15 @@
 package bacnet;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.StringUtils;
 import org.dsa.iot.dslink.node.Node;
@@ -23,6 +26,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.RemoteObject;
 import com.serotonin.bacnet4j.event.DeviceEventAdapter;
 import com.serotonin.bacnet4j.exception.BACnetException;
 import com.serotonin.bacnet4j.service.confirmed.SubscribeCOVRequest;
@@ -60,6 +64,15 @@ import com.serotonin.bacnet4j.util.RequestUtils;
 public class DeviceFolder {
 	private static final Logger LOGGER;
 
+	// objectList entries requested per page during discovery
+	static final int OBJECT_LIST_PAGE_SIZE = 50;
+	// objectList pages read concurrently, which is also the number of threads
+	// in a connection's discovery pool
+	static final int DISCOVERY_PARALLELISM = 4;
+	// bounds on the number of objects whose metadata is read in one request
+	static final int MIN_METADATA_CHUNK = 1;
+	static final int MAX_METADATA_CHUNK = 64;
+
 	protected Node node;
 	protected BacnetConn conn;
 	protected DeviceFolder root;
@@ -127,11 +140,13 @@ public class DeviceFolder {
 				if (defp == null)
 					child.setAttribute("default priority", new Value(8));
 				if (ot != null && inum != null && cov != null && sett != null) {
-					new BacnetPoint(this, node, child);
+					BacnetPoint pt = new BacnetPoint(this, node, child);
+					addToPointSet(pt.oid);
 				} else {
 					node.removeChild(child, false);
 				}
-			} else if (child.getAction() == null && child != root.getStatusNode() && child != root.getEventNode()) {
+			} else if (child.getAction() == null && child != root.getStatusNode() && child != root.getEventNode()
+					&& child != root.getLastEventNode()) {
 				node.removeChild(child, false);
 			}
 		}
@@ -160,45 +175,268 @@ public class DeviceFolder {
 
 	protected class ObjectDiscoveryHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
-			if (root.getRemoteDevice() == null)
+			final RemoteDevice rd = root.getRemoteDevice();
+			if (rd == null)
+				return;
+
+			conn.getDiscoveryPool().execute(new Runnable() {
+				public void run() {
+					discoverObjects(rd);
+				}
+			});
+		}
+	}
+
+	/*
+	 * Reads the objectList of a device page by page, with several pages in
+	 * flight at once, and creates points for each page as soon as its
+	 * metadata comes back. Devices that cannot report the length of their
+	 * objectList are read in one request as before.
+	 */
+	void discoverObjects(final RemoteDevice rd) {
+		int count;
+		try {
+			Encodable len = RequestUtils.readProperty(conn.localDevice, rd, rd.getObjectIdentifier(),
+					PropertyIdentifier.objectList, new UnsignedInteger(0));
+			if (!(len instanceof UnsignedInteger)) {
+				discoverObjectsUnpaged();
 				return;
+			}
+			count = ((UnsignedInteger) len).intValue();
+		} catch (BACnetException e) {
+			LOGGER.debug("error: ", e);
+			discoverObjectsUnpaged();
+			return;
+		}
+
+		final int total = count;
+		final AtomicInteger nextIndex = new AtomicInteger(1);
+		final AtomicInteger chunkSize = new AtomicInteger(MAX_METADATA_CHUNK);
+		int pages = (total + OBJECT_LIST_PAGE_SIZE - 1) / OBJECT_LIST_PAGE_SIZE;
+		int workers = Math.min(DISCOVERY_PARALLELISM, pages);
+		for (int i = 0; i < workers; i++) {
+			conn.getDiscoveryPool().execute(new Runnable() {
+				public void run() {
+					int start;
+					while ((start = nextIndex.getAndAdd(OBJECT_LIST_PAGE_SIZE)) <= total) {
+						int end = Math.min(total, start + OBJECT_LIST_PAGE_SIZE - 1);
+						List<ObjectIdentifier> oids = readObjectListPage(rd, start, end);
+						if (oids != null)
+							discoverPoints(rd, oids, chunkSize);
+					}
+				}
+			});
+		}
+	}
+
+	private List<ObjectIdentifier> readObjectListPage(RemoteDevice rd, int start, int end) {
+		final List<ObjectIdentifier> oids = new ArrayList<ObjectIdentifier>();
+		PropertyReferences refs = new PropertyReferences();
+		for (int i = start; i <= end; i++) {
+			refs.add(rd.getObjectIdentifier(), PropertyIdentifier.objectList, new UnsignedInteger(i));
+		}
+		try {
+			RequestUtils.readProperties(conn.localDevice, rd, refs, new RequestListener() {
+				public boolean requestProgress(double prog, ObjectIdentifier oidin, PropertyIdentifier pid,
+						UnsignedInteger pin, Encodable value) {
+					if (value instanceof ObjectIdentifier) {
+						oids.add((ObjectIdentifier) value);
+					}
+					return false;
+				}
+			});
+		} catch (BACnetException e) {
+			LOGGER.debug("error: ", e);
+			return null;
+		}
+		return oids;
+	}
 
-			final PropertyReferences refs = new PropertyReferences();
-			final Map<ObjectIdentifier, BacnetPoint> points = new HashMap<ObjectIdentifier, BacnetPoint>();
+	/*
+	 * Reads the complete objectList, or returns null if any part of it could
+	 * not be read.
+	 */
+	private List<ObjectIdentifier> readObjectList(RemoteDevice rd) {
+		int count;
+		try {
+			Encodable len = RequestUtils.readProperty(conn.localDevice, rd, rd.getObjectIdentifier(),
+					PropertyIdentifier.objectList, new UnsignedInteger(0));
+			count = ((UnsignedInteger) len).intValue();
+		} catch (Exception e) {
 			try {
-				RequestUtils.sendReadPropertyAllowNull(root.conn.localDevice, root.getRemoteDevice(),
-						root.getRemoteDevice().getObjectIdentifier(), PropertyIdentifier.objectList, null,
-						new RequestListener() {
-							public boolean requestProgress(double prog, ObjectIdentifier oidin, PropertyIdentifier pid,
-									UnsignedInteger pin, Encodable value) {
-								if (pin == null) {
-									for (Object o : (SequenceOf<?>) value) {
-										ObjectIdentifier oid = (ObjectIdentifier) o;
-										// LOGGER.info(oid.getObjectType().toString());
-										if (!pointSet.contains(oid)) {
-											pointSet.add(oid);
-											addObjectPoint(oid, refs, points);
-										}
-									}
-								} else {
-									ObjectIdentifier oid = (ObjectIdentifier) value;
+				return new ArrayList<ObjectIdentifier>(RequestUtils.getObjectList(conn.localDevice, rd).getValues());
+			} catch (BACnetException e1) {
+				LOGGER.debug("error: ", e1);
+				return null;
+			}
+		}
+		List<ObjectIdentifier> oids = new ArrayList<ObjectIdentifier>(count);
+		for (int start = 1; start <= count; start += OBJECT_LIST_PAGE_SIZE) {
+			int end = Math.min(count, start + OBJECT_LIST_PAGE_SIZE - 1);
+			List<ObjectIdentifier> page = readObjectListPage(rd, start, end);
+			if (page == null || page.size() != end - start + 1)
+				return null;
+			oids.addAll(page);
+		}
+		return oids;
+	}
+
+	/*
+	 * Brings the points of this folder and its subfolders in line with the
+	 * device's objectList, touching only the difference: new objects are
+	 * discovered, points whose object no longer exists are removed.
+	 */
+	void syncObjectList(RemoteDevice rd) {
+		List<ObjectIdentifier> oids = readObjectList(rd);
+		if (oids == null)
+			return;
+		Map<ObjectIdentifier, List<BacnetPoint>> points = new HashMap<ObjectIdentifier, List<BacnetPoint>>();
+		collectPoints(node, points);
+		Set<ObjectIdentifier> current = new HashSet<ObjectIdentifier>(oids);
+		List<ObjectIdentifier> added = new ArrayList<ObjectIdentifier>();
+		Set<ObjectIdentifier> removed;
+		synchronized (pointSet) {
+			// points moved to subfolders or restored there are known too
+			pointSet.addAll(points.keySet());
+			for (ObjectIdentifier oid : oids) {
+				if (!pointSet.contains(oid))
+					added.add(oid);
+			}
+			removed = new HashSet<ObjectIdentifier>(pointSet);
+			removed.removeAll(current);
+			pointSet.removeAll(removed);
+		}
+		LOGGER.debug("objectList of " + rd + " changed: " + added.size() + " added, " + removed.size() + " removed");
+
+		for (ObjectIdentifier oid : removed) {
+			List<BacnetPoint> gone = points.get(oid);
+			if (gone == null)
+				continue;
+			for (BacnetPoint pt : gone)
+				pt.remove();
+		}
+		if (!added.isEmpty())
+			discoverPoints(rd, added, new AtomicInteger(MAX_METADATA_CHUNK));
+	}
+
+	private static void collectPoints(Node n, Map<ObjectIdentifier, List<BacnetPoint>> points) {
+		if (n.getChildren() == null)
+			return;
+		for (Node child : new ArrayList<Node>(n.getChildren().values())) {
+			if (child.getMetaData() instanceof BacnetPoint) {
+				BacnetPoint pt = (BacnetPoint) child.getMetaData();
+				List<BacnetPoint> list = points.get(pt.oid);
+				if (list == null) {
+					list = new ArrayList<BacnetPoint>();
+					points.put(pt.oid, list);
+				}
+				list.add(pt);
+				continue;
+			}
+			Value restype = child.getAttribute("restore type");
+			if (restype != null && restype.getString().equals("folder"))
+				collectPoints(child, points);
+		}
+	}
+
+	/*
+	 * Creates points for the given objects and reads their metadata in chunks.
+	 * The chunk size is shared by all pages of a discovery: it is halved when a
+	 * request fails (typically an abort because the reply does not fit) and
+	 * doubled again after each success.
+	 */
+	private void discoverPoints(RemoteDevice rd, List<ObjectIdentifier> oids, AtomicInteger chunkSize) {
+		List<ObjectIdentifier> fresh = new ArrayList<ObjectIdentifier>();
+		for (ObjectIdentifier oid : oids) {
+			if (addToPointSet(oid)) {
+				fresh.add(oid);
+			}
+		}
+
+		int pos = 0;
+		while (pos < fresh.size() && root.getRemoteDevice() == rd) {
+			int size = Math.min(chunkSize.get(), fresh.size() - pos);
+			List<ObjectIdentifier> chunk = fresh.subList(pos, pos + size);
+			PropertyReferences refs = new PropertyReferences();
+			Map<ObjectIdentifier, BacnetPoint> points = new HashMap<ObjectIdentifier, BacnetPoint>();
+			for (ObjectIdentifier oid : chunk) {
+				addObjectPoint(oid, refs, points);
+			}
+			readMetadata(rd, chunk, refs, points, chunkSize);
+			pos += size;
+		}
+	}
+
+	private void readMetadata(RemoteDevice rd, List<ObjectIdentifier> oids, PropertyReferences refs,
+			Map<ObjectIdentifier, BacnetPoint> points, AtomicInteger chunkSize) {
+		int size = oids.size();
+		try {
+			readProperties(rd, refs, points);
+			chunkSize.compareAndSet(size, Math.min(MAX_METADATA_CHUNK, size * 2));
+		} catch (BACnetException e) {
+			if (size <= MIN_METADATA_CHUNK) {
+				LOGGER.debug("error: ", e);
+				return;
+			}
+			LOGGER.debug("metadata read of " + size + " objects failed, retrying with smaller chunks", e);
+			int smaller = Math.max(MIN_METADATA_CHUNK, size / 2);
+			if (chunkSize.get() > smaller)
+				chunkSize.set(smaller);
+			for (int i = 0; i < size; i += smaller) {
+				List<ObjectIdentifier> sub = oids.subList(i, Math.min(size, i + smaller));
+				PropertyReferences subRefs = new PropertyReferences();
+				for (ObjectIdentifier oid : sub) {
+					addPropertyReferences(subRefs, oid);
+				}
+				readMetadata(rd, sub, subRefs, points, chunkSize);
+			}
+		}
+	}
+
+	private boolean addToPointSet(ObjectIdentifier oid) {
+		synchronized (pointSet) {
+			return pointSet.add(oid);
+		}
+	}
+
+	private void discoverObjectsUnpaged() {
+		if (root.getRemoteDevice() == null)
+			return;
+
+		final PropertyReferences refs = new PropertyReferences();
+		final Map<ObjectIdentifier, BacnetPoint> points = new HashMap<ObjectIdentifier, BacnetPoint>();
+		try {
+			RequestUtils.sendReadPropertyAllowNull(root.conn.localDevice, root.getRemoteDevice(),
+					root.getRemoteDevice().getObjectIdentifier(), PropertyIdentifier.objectList, null,
+					new RequestListener() {
+						public boolean requestProgress(double prog, ObjectIdentifier oidin, PropertyIdentifier pid,
+								UnsignedInteger pin, Encodable value) {
+							if (pin == null) {
+								for (Object o : (SequenceOf<?>) value) {
+									ObjectIdentifier oid = (ObjectIdentifier) o;
 									// LOGGER.info(oid.getObjectType().toString());
-									if (!pointSet.contains(oid)) {
+									if (addToPointSet(oid)) {
 										addObjectPoint(oid, refs, points);
 									}
-
 								}
-								return false;
-							}
-						});
-			} catch (BACnetException e) {
-				// TODO Auto-generated catch block
-				// e.printStackTrace();
-				LOGGER.debug("error: ", e.getMessage());
-			}
+							} else {
+								ObjectIdentifier oid = (ObjectIdentifier) value;
+								// LOGGER.info(oid.getObjectType().toString());
+								if (addToPointSet(oid)) {
+									addObjectPoint(oid, refs, points);
+								}
 
-			getProperties(refs, points);
+							}
+							return false;
+						}
+					});
+		} catch (BACnetException e) {
+			// TODO Auto-generated catch block
+			// e.printStackTrace();
+			LOGGER.debug("error: ", e.getMessage());
 		}
+
+		getProperties(refs, points);
 	}
 
 	void setupCov(final BacnetPoint point, DeviceEventAdapter listener) {
@@ -280,21 +518,7 @@ public class DeviceFolder {
 		if (root.getRemoteDevice() == null)
 			return;
 		try {
-			RequestUtils.readProperties(root.conn.localDevice, root.getRemoteDevice(), refs, new RequestListener() {
-
-				public boolean requestProgress(double prog, ObjectIdentifier oid, PropertyIdentifier pid,
-						UnsignedInteger unsignedinteger, Encodable encodable) {
-					BacnetPoint pt = points.get(oid);
-
-					try {
-						updatePointValue(pt, pid, encodable);
-					} catch (Exception e) {
-						LOGGER.debug("", e);
-					}
-
-					return prog == 1;
-				}
-			});
+			readProperties(root.getRemoteDevice(), refs, points);
 		} catch (BACnetException e) {
 			// TODO Auto-generated catch block
 			// e.printStackTrace();
@@ -302,9 +526,29 @@ public class DeviceFolder {
 		}
 	}
 
+	private void readProperties(RemoteDevice rd, PropertyReferences refs, final Map<ObjectIdentifier, BacnetPoint> points)
+			throws BACnetException {
+		RequestUtils.readProperties(root.conn.localDevice, rd, refs, new RequestListener() {
+
+			public boolean requestProgress(double prog, ObjectIdentifier oid, PropertyIdentifier pid,
+					UnsignedInteger unsignedinteger, Encodable encodable) {
+				BacnetPoint pt = points.get(oid);
+
+				try {
+					updatePointValue(pt, pid, encodable);
+				} catch (Exception e) {
+					LOGGER.debug("", e);
+				}
+
+				return prog == 1;
+			}
+		});
+	}
+
 	void updatePointValue(BacnetPoint pt, PropertyIdentifier pid, Encodable encodable) {
 		if (encodable instanceof BACnetError)
 			return;
+		conn.link.pointProxies.valueReceived(pt, pid, encodable);
 		if (pid.equals(PropertyIdentifier.objectName)) {
 			String name = PropertyValues.getString(encodable);
 			if (name.length() < 1) {
@@ -313,6 +557,24 @@ public class DeviceFolder {
 			} else {
 				pt.setObjectName(name);
 			}
+			RemoteDevice rd = root.getRemoteDevice();
+			if (rd != null) {
+				// names are read on every poll; the cache is only saved when one changes
+				boolean changed = false;
+				synchronized (rd) {
+					RemoteObject ro = rd.getObject(pt.oid);
+					if (ro == null) {
+						ro = new RemoteObject(pt.oid);
+						rd.setObject(ro);
+					}
+					if (!name.equals(ro.getObjectName())) {
+						ro.setObjectName(name);
+						changed = true;
+					}
+				}
+				if (changed)
+					conn.deviceCache.put(rd);
+			}
 		} else
 			if (pid.equals(PropertyIdentifier.presentValue) && ObjectType.schedule.intValue() == pt.getObjectTypeId()) {
 			handleAmbiguous(encodable, pt, pid);
@@ -584,6 +846,14 @@ public class DeviceFolder {
 		return null;
 	}
 
+	/*
+	 * Template method. Derived class returns the node showing the newest
+	 * event.
+	 */
+	public Node getLastEventNode() {
+		return null;
+	}
+
 	/*
 	 * Template method. Derived class returns status node.
 	 */
@@ -604,10 +874,20 @@ public class DeviceFolder {
 	void removePointSub(BacnetPoint point) {
 	}
 
+	void removePointSub(ObjectIdentifier oid) {
+	}
+
 	/*
 	 * Template method. Derived class returns CoV type.
 	 */
 	CovType getCovType() {
 		return null;
 	}
+
+	/*
+	 * Template method. Derived class returns the batcher for its writes.
+	 */
+	WriteBatcher getWriteBatcher() {
+		return null;
+	}
 }
@@ -2,6 +2,7 @@ package bacnet;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledFuture;
@@ -11,7 +12,9 @@ import java.util.concurrent.TimeUnit;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.methods.StreamState;
 import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
 import org.dsa.iot.dslink.node.actions.ResultType;
 import org.dsa.iot.dslink.node.actions.table.Row;
@@ -27,25 +30,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.serotonin.bacnet4j.RemoteDevice;
-import com.serotonin.bacnet4j.ServiceFuture;
 import com.serotonin.bacnet4j.exception.BACnetException;
 import com.serotonin.bacnet4j.service.acknowledgement.GetAlarmSummaryAck;
 import com.serotonin.bacnet4j.service.acknowledgement.GetAlarmSummaryAck.AlarmSummary;
-import com.serotonin.bacnet4j.service.acknowledgement.GetEventInformationAck;
-import com.serotonin.bacnet4j.service.acknowledgement.GetEventInformationAck.EventSummary;
 import com.serotonin.bacnet4j.service.confirmed.AcknowledgeAlarmRequest;
 import com.serotonin.bacnet4j.service.confirmed.GetAlarmSummaryRequest;
-import com.serotonin.bacnet4j.service.confirmed.GetEventInformationRequest;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.BACnetError;
 import com.serotonin.bacnet4j.type.constructed.DateTime;
 import com.serotonin.bacnet4j.type.constructed.EventTransitionBits;
 import com.serotonin.bacnet4j.type.constructed.TimeStamp;
 import com.serotonin.bacnet4j.type.enumerated.EventState;
-import com.serotonin.bacnet4j.type.enumerated.NotifyType;
 import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
 import com.serotonin.bacnet4j.type.primitive.CharacterString;
 import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
 import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
 import com.serotonin.bacnet4j.util.PropertyReferences;
+import com.serotonin.bacnet4j.util.RequestUtils;
 
 public class DeviceNode extends DeviceFolder {
 	private static final Logger LOGGER;
@@ -56,14 +58,27 @@ public class DeviceNode extends DeviceFolder {
 
 	final Node statnode;
 	final Node eventnode;
+	final Node lastEventNode;
+	final EventBuffer eventBuffer;
 	boolean enabled;
 	RemoteDevice device;
 	long interval;
 	CovType covType;
+	// key this node is registered under in BacnetConn.deviceIndex
+	String indexKey;
+	final WriteBatcher writeBatcher = new WriteBatcher(this);
+	final ActiveEventCache activeEvents = new ActiveEventCache(this);
+
+	// default for how often the Device object's databaseRevision is checked
+	// for changes, see BacnetConn.ATTRIBUTE_DATABASE_CHECK_MINUTES
+	static final int DEFAULT_DATABASE_CHECK_MINUTES = 10;
+	static final String CONFIG_DATABASE_REVISION = "databaseRevision";
+	static final String CONFIG_LAST_RESTORE_TIME = "lastRestoreTime";
 
 	private final ConcurrentMap<ObjectIdentifier, BacnetPoint> subscribedPoints = new ConcurrentHashMap<ObjectIdentifier, BacnetPoint>();
 	private ScheduledFuture<?> pollingFuture = null;
 	private ScheduledFuture<?> reconnectFuture = null;
+	private ScheduledFuture<?> databaseCheckFuture = null;
 	private int retryDelay = 1;
 
 	DeviceNode(BacnetConn conn, Node node, RemoteDevice d) {
@@ -71,6 +86,7 @@ public class DeviceNode extends DeviceFolder {
 		this.device = d;
 		this.root = this;
 		conn.deviceNodes.add(this);
+		conn.indexDevice(this);
 
 		if (node.getChild("STATUS", true) != null) {
 			this.statnode = node.getChild("STATUS", true);
@@ -87,6 +103,13 @@ public class DeviceNode extends DeviceFolder {
 			this.eventnode = node.createChild("EVENTS", true).setValueType(ValueType.ARRAY)
 					.setValue(new Value(new JsonArray())).build();
 		}
+		if (node.getChild(EventBuffer.NODE_LAST_EVENT, true) != null)
+			this.lastEventNode = node.getChild(EventBuffer.NODE_LAST_EVENT, true);
+		else
+			this.lastEventNode = node.createChild(EventBuffer.NODE_LAST_EVENT, true).setValueType(ValueType.MAP)
+					.setValue(new Value(new JsonObject())).build();
+		this.eventBuffer = new EventBuffer(eventnode, lastEventNode, EventBuffer.getCapacity(node));
+		makeEventsAction();
 
 		if (d == null && !"disabled".equals(statnode.getValue().getString())) {
 			statnode.setValue(new Value("not connected"));
@@ -125,6 +148,58 @@ public class DeviceNode extends DeviceFolder {
 			scheduleRetry();
 		}
 
+		Value checkMinutes = conn.node.getAttribute(BacnetConn.ATTRIBUTE_DATABASE_CHECK_MINUTES);
+		long minutes = checkMinutes != null && checkMinutes.getNumber() != null ? checkMinutes.getNumber().longValue()
+				: DEFAULT_DATABASE_CHECK_MINUTES;
+		// zero turns the check off
+		if (minutes > 0) {
+			databaseCheckFuture = conn.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkDatabaseRevision();
+				}
+			}, minutes, minutes, TimeUnit.MINUTES);
+		}
+	}
+
+	/*
+	 * Reads databaseRevision and lastRestoreTime from the Device object and,
+	 * if either differs from what was seen last time, re-syncs the objectList
+	 * on the discovery pool, since that reads the whole list and the metadata
+	 * of new objects. The first reading only records a baseline.
+	 */
+	void checkDatabaseRevision() {
+		RemoteDevice d = device;
+		if (!enabled || d == null || conn.localDevice == null)
+			return;
+		Map<PropertyIdentifier, Encodable> values;
+		try {
+			values = RequestUtils.getProperties(conn.localDevice, d, null, PropertyIdentifier.databaseRevision,
+					PropertyIdentifier.lastRestoreTime);
+		} catch (BACnetException e) {
+			LOGGER.debug("error: ", e);
+			return;
+		}
+		boolean revChanged = recordRevision(CONFIG_DATABASE_REVISION, values.get(PropertyIdentifier.databaseRevision));
+		boolean restoreChanged = recordRevision(CONFIG_LAST_RESTORE_TIME,
+				values.get(PropertyIdentifier.lastRestoreTime));
+		if (revChanged || restoreChanged) {
+			LOGGER.debug("object database of " + node.getName() + " changed, re-reading objectList");
+			final RemoteDevice rd = d;
+			conn.getDiscoveryPool().execute(new Runnable() {
+				public void run() {
+					syncObjectList(rd);
+				}
+			});
+		}
+	}
+
+	private boolean recordRevision(String key, Encodable enc) {
+		if (enc == null || enc instanceof BACnetError)
+			return false;
+		String current = enc.toString();
+		Value last = node.getConfig(key);
+		node.setConfig(key, new Value(current));
+		return last != null && !current.equals(last.getString());
 	}
 
 	void enable(boolean userDriven) {
@@ -157,6 +232,7 @@ public class DeviceNode extends DeviceFolder {
 			final RemoteDevice d = conn.getDevice(mac, instNum, netNum, linkMac, interval, covtype, covlife);
 			conn.getDeviceProperties(d);
 			device = d;
+			conn.indexDevice(this);
 		}
 		statnode.setValue(new Value("enabled"));
 		node.removeChild("enable", false);
@@ -174,12 +250,16 @@ public class DeviceNode extends DeviceFolder {
 			scheduleRetry();
 		} else {
 			retryDelay = 1;
+			// a device built from the cache is marked healthy by its revalidation
+			if (conn.isContacted(device, false))
+				node.setConfig(BacnetConn.CONFIG_LAST_HEALTHY, new Value(System.currentTimeMillis()));
 		}
 	}
 
 	private void disable(boolean userDriven) {
 		enabled = false;
 		stopPolling();
+		activeEvents.stop();
 		if (userDriven) {
 			statnode.setValue(new Value("disabled"));
 			if (reconnectFuture != null) {
@@ -227,7 +307,29 @@ public class DeviceNode extends DeviceFolder {
 	protected void remove() {
 		super.remove();
 
+		if (databaseCheckFuture != null) {
+			databaseCheckFuture.cancel(false);
+			databaseCheckFuture = null;
+		}
+		activeEvents.stop();
 		conn.deviceNodes.remove(this);
+		conn.deviceCache.remove(indexKey);
+		conn.unindexDevice(this);
+	}
+
+	/*
+	 * Identity used by the connection's device index. Prefers the resolved
+	 * address of the remote device and falls back to the configured one.
+	 */
+	String getIndexKey() {
+		if (device != null && device.getAddress() != null)
+			return BacnetConn.deviceKey(device);
+		Value mac = node.getAttribute("MAC address");
+		Value instNum = node.getAttribute("instance number");
+		Value netNum = node.getAttribute("network number");
+		if (mac == null || instNum == null || netNum == null)
+			return null;
+		return BacnetConn.deviceKey(netNum.getNumber().intValue(), mac.getString(), instNum.getNumber().intValue());
 	}
 
 	private void makeEditAction() {
@@ -243,6 +345,8 @@ public class DeviceNode extends DeviceFolder {
 				node.getAttribute("cov usage")));
 		act.addParameter(new Parameter("cov lease time (minutes)", ValueType.NUMBER,
 				node.getAttribute("cov lease time (minutes)")));
+		act.addParameter(new Parameter(EventBuffer.ATTRIBUTE_CAPACITY, ValueType.NUMBER,
+				new Value(EventBuffer.getCapacity(node))));
 		Node anode = node.getChild("edit", true);
 		if (anode == null)
 			node.createChild("edit", true).setAction(act).build().setSerializable(false);
@@ -265,6 +369,9 @@ public class DeviceNode extends DeviceFolder {
 			int instNum = event.getParameter("instance number", new Value(-1)).getNumber().intValue();
 			int netNum = event.getParameter("network number", ValueType.NUMBER).getNumber().intValue();
 			String linkMac = event.getParameter("link service MAC", new Value("")).getString();
+			int eventCapacity = event
+					.getParameter(EventBuffer.ATTRIBUTE_CAPACITY, new Value(EventBuffer.getCapacity(node)))
+					.getNumber().intValue();
 			if (!mac.equals(node.getAttribute("MAC address").getString())
 					|| !linkMac.equals(node.getAttribute("link service MAC").getString())
 					|| netNum != node.getAttribute("network number").getNumber().intValue()
@@ -288,6 +395,9 @@ public class DeviceNode extends DeviceFolder {
 			node.setAttribute("polling interval", new Value(interval));
 			node.setAttribute("cov usage", new Value(covtype.toString()));
 			node.setAttribute("cov lease time (minutes)", new Value(covlife));
+			node.setAttribute(EventBuffer.ATTRIBUTE_CAPACITY, new Value(eventCapacity));
+			eventBuffer.setCapacity(eventCapacity);
+			conn.indexDevice(DeviceNode.this);
 
 			if (!name.equals(node.getName())) {
 				rename(name);
@@ -300,6 +410,24 @@ public class DeviceNode extends DeviceFolder {
 		}
 	}
 
+	private void makeEventsAction() {
+		Action act = new Action(Permission.READ, new Handler<ActionResult>() {
+			public void handle(ActionResult event) {
+				Table table = event.getTable();
+				for (JsonObject jo : eventBuffer.getEvents())
+					table.addRow(EventBuffer.toRow(jo));
+			}
+		});
+		for (String field : EventBuffer.FIELDS)
+			act.addResult(new Parameter(field, ValueType.STRING));
+		act.setResultType(ResultType.TABLE);
+		Node anode = node.getChild("get events", true);
+		if (anode == null)
+			node.createChild("get events", true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
+	}
+
 	private void makeAlarmActions() {
 		Action act = new Action(Permission.READ, new AlarmSummaryHandler());
 		act.addResult(new Parameter("Object", ValueType.STRING));
@@ -338,6 +466,44 @@ public class DeviceNode extends DeviceFolder {
 		act.addParameter(new Parameter("Acknowledging Process Identifier", ValueType.NUMBER));
 		act.addParameter(new Parameter("Acknowledgment Source", ValueType.STRING));
 		node.createChild("acknowledge alarm", true).setAction(act).build().setSerializable(false);
+
+		act = new Action(Permission.READ, new BulkWriteHandler());
+		act.addParameter(new Parameter("writes", ValueType.STRING).setEditorType(EditorType.TEXT_AREA)
+				.setDescription("JSON array of {point, value, priority} or CSV lines of point,value,priority"));
+		act.addParameter(new Parameter("max in flight", ValueType.NUMBER, new Value(BulkWrite.DEFAULT_MAX_IN_FLIGHT)));
+		act.addResult(new Parameter("Point", ValueType.STRING));
+		act.addResult(new Parameter("Value", ValueType.STRING));
+		act.addResult(new Parameter("Priority", ValueType.NUMBER));
+		act.addResult(new Parameter("Status", ValueType.STRING));
+		act.addResult(new Parameter("Error", ValueType.STRING));
+		act.addResult(new Parameter("Latency (ms)", ValueType.NUMBER));
+		act.setResultType(ResultType.STREAM);
+		node.createChild("bulk write", true).setAction(act).build().setSerializable(false);
+	}
+
+	private class BulkWriteHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			Value writes = event.getParameter("writes", ValueType.STRING);
+			int maxInFlight = event.getParameter("max in flight", new Value(BulkWrite.DEFAULT_MAX_IN_FLIGHT))
+					.getNumber().intValue();
+			Table table = event.getTable();
+			table.setMode(Table.Mode.APPEND);
+			final BulkWrite bulk = new BulkWrite(DeviceNode.this, table, maxInFlight);
+			try {
+				bulk.parse(writes.getString());
+			} catch (Exception e) {
+				LOGGER.debug("error: ", e);
+				table.close();
+				return;
+			}
+			event.setStreamState(StreamState.INITIALIZED);
+			event.setCloseHandler(new Handler<Void>() {
+				public void handle(Void v) {
+					bulk.cancel();
+				}
+			});
+			bulk.start();
+		}
 	}
 
 	private class AckAlarmHandler implements Handler<ActionResult> {
@@ -361,55 +527,38 @@ public class DeviceNode extends DeviceFolder {
 	private class EventInfoHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
 			try {
-				ServiceFuture resp = conn.localDevice.send(device, new GetEventInformationRequest(null));
-				GetEventInformationAck ack = (GetEventInformationAck) resp.get();
-				Table table = event.getTable();
-				for (EventSummary summ : ack.getListOfEventSummaries()) {
-					ObjectIdentifier oid = summ.getObjectIdentifier();
-					NotifyType ntype = summ.getNotifyType();
-					EventState estate = summ.getEventState();
-					EventTransitionBits acktrans = summ.getAcknowledgedTransitions();
-					EventTransitionBits eenable = summ.getEventEnable();
-					UnsignedInteger onprio = summ.getEventPriorities().get(1);
-					UnsignedInteger fprio = summ.getEventPriorities().get(2);
-					UnsignedInteger nprio = summ.getEventPriorities().get(3);
-					TimeStamp onts = summ.getEventTimeStamps().get(1);
-					TimeStamp fts = summ.getEventTimeStamps().get(2);
-					TimeStamp nts = summ.getEventTimeStamps().get(3);
-
-					Row row = Row.make(new Value(oid.toString()), new Value(ntype.toString()),
-							new Value(estate.toString()), new Value(acktrans.isToOffnormal()),
-							new Value(acktrans.isToFault()), new Value(acktrans.isToNormal()),
-							new Value(eenable.isToOffnormal()), new Value(eenable.isToFault()),
-							new Value(eenable.isToNormal()), new Value(onprio.intValue()), new Value(fprio.intValue()),
-							new Value(nprio.intValue()), new Value(Utils.timestampToString(onts)),
-							new Value(Utils.timestampToString(fts)), new Value(Utils.timestampToString(nts)));
-					table.addRow(row);
-				}
+				activeEvents.ensureLoaded();
 			} catch (BACnetException e) {
 				LOGGER.debug("", e);
 			}
+			Table table = event.getTable();
+			for (Row row : activeEvents.getEventInformation())
+				table.addRow(row);
 		}
 	}
 
 	private class AlarmSummaryHandler implements Handler<ActionResult> {
 		public void handle(ActionResult event) {
+			Table table = event.getTable();
 			try {
-				// LOGGER.info("getting alarm summary...");
-				ServiceFuture resp = conn.localDevice.send(device, new GetAlarmSummaryRequest());
-				GetAlarmSummaryAck ack = (GetAlarmSummaryAck) resp.get();
-				// LOGGER.info("got alarm summary:");
-				// LOGGER.info(ack.getValues().toString());
-				Table table = event.getTable();
+				activeEvents.ensureLoaded();
+			} catch (BACnetException e) {
+				LOGGER.debug("", e);
+			}
+			if (activeEvents.isSupported()) {
+				for (Row row : activeEvents.getAlarmSummary())
+					table.addRow(row);
+				return;
+			}
+			// devices without GetEventInformation are asked the older way
+			try {
+				GetAlarmSummaryAck ack = (GetAlarmSummaryAck) conn.localDevice
+						.send(device, new GetAlarmSummaryRequest()).get();
 				for (AlarmSummary summ : ack.getValues()) {
-					// LOGGER.info(summ.toString());
-					ObjectIdentifier oid = summ.getObjectIdentifier();
-					EventState astate = summ.getAlarmState();
 					EventTransitionBits acktrans = summ.getAcknowledgedTransitions();
-					Row row = Row.make(new Value(oid.toString()), new Value(astate.toString()),
-							new Value(acktrans.isToOffnormal()), new Value(acktrans.isToFault()),
-							new Value(acktrans.isToNormal()));
-					table.addRow(row);
+					table.addRow(Row.make(new Value(summ.getObjectIdentifier().toString()),
+							new Value(summ.getAlarmState().toString()), new Value(acktrans.isToOffnormal()),
+							new Value(acktrans.isToFault()), new Value(acktrans.isToNormal())));
 				}
 			} catch (BACnetException e) {
 				LOGGER.debug("", e);
@@ -448,7 +597,12 @@ public class DeviceNode extends DeviceFolder {
 
 	@Override
 	void removePointSub(BacnetPoint point) {
-		subscribedPoints.remove(point.oid);
+		removePointSub(point.oid);
+	}
+
+	@Override
+	void removePointSub(ObjectIdentifier oid) {
+		subscribedPoints.remove(oid);
 		if (subscribedPoints.size() == 0)
 			stopPolling();
 	}
@@ -493,13 +647,28 @@ public class DeviceNode extends DeviceFolder {
 		return this.eventnode;
 	}
 
+	@Override
+	public Node getLastEventNode() {
+		return this.lastEventNode;
+	}
+
 	@Override
 	public Node getStatusNode() {
 		return this.statnode;
 	}
 
+	@Override
+	public ScheduledThreadPoolExecutor getDaemonThreadPool() {
+		return conn.getDaemonThreadPool();
+	}
+
 	@Override
 	CovType getCovType() {
 		return this.covType;
 	}
+
+	@Override
+	WriteBatcher getWriteBatcher() {
+		return writeBatcher;
+	}
 }
@@ -39,6 +39,11 @@ public abstract class EditableFolder {
 	static final String ATTRIBUTE_USE_COV = "use COV";
 	static final String ATTRIBUTE_SETTABLE = "settable";
 	static final String ATTRIBUTE_DEFAULT_PRIORITY = "default priority";
+	static final String ATTRIBUTE_UNITS = "units";
+	static final String ATTRIBUTE_STATE_TEXTS = "state texts";
+	static final String ATTRIBUTE_SOURCE_PATH = "source path";
+	static final String ATTRIBUTE_SOURCE_MIN_INTERVAL = "source min interval";
+	static final String ATTRIBUTE_PROXY_SOURCE = "proxy source";
 
 	protected BacnetConn conn;
 	protected Node node;
@@ -51,6 +51,7 @@ public abstract class EditablePoint {
 	static final String ATTRIBUTE_USE_COV = "use COV";
 	static final String ATTRIBUTE_SETTABLE = "settable";
 	static final String ATTRIBUTE_DEFAULT_PRIORITY = "default priority";
+	static final String ATTRIBUTE_COV_INCREMENT = "cov increment";
 
 	EditableFolder folder;
 	Node parent;
@@ -64,6 +65,7 @@ public abstract class EditablePoint {
 	int instanceNumber;
 	String objectName;
 	boolean cov;
+	float covIncrement;
 	boolean settable;
 	int defaultPriority;
 	// PropertyIdentifier propertyId;
@@ -99,6 +101,9 @@ public abstract class EditablePoint {
 		act.addParameter(new Parameter(ATTRIBUTE_OBJECT_INSTANCE_NUMBER, ValueType.NUMBER,
 				node.getAttribute(ATTRIBUTE_OBJECT_INSTANCE_NUMBER)));
 		act.addParameter(new Parameter(ATTRIBUTE_USE_COV, ValueType.BOOL, node.getAttribute(ATTRIBUTE_USE_COV)));
+		Value increment = node.getAttribute(ATTRIBUTE_COV_INCREMENT);
+		act.addParameter(new Parameter(ATTRIBUTE_COV_INCREMENT, ValueType.NUMBER,
+				increment != null ? increment : new Value(0)));
 		act.addParameter(new Parameter(ATTRIBUTE_SETTABLE, ValueType.BOOL, node.getAttribute(ATTRIBUTE_SETTABLE)));
 		act.addParameter(new Parameter(ATTRIBUTE_DEFAULT_PRIORITY, ValueType.NUMBER,
 				node.getAttribute(ATTRIBUTE_DEFAULT_PRIORITY)));
@@ -188,6 +193,8 @@ public abstract class EditablePoint {
 			instanceNumber = event.getParameter(ATTRIBUTE_OBJECT_INSTANCE_NUMBER, ValueType.NUMBER).getNumber()
 					.intValue();
 			cov = event.getParameter(ATTRIBUTE_USE_COV, ValueType.BOOL).getBool();
+			covIncrement = Math.max(0, event.getParameter(ATTRIBUTE_COV_INCREMENT, new Value(0)).getNumber()
+					.floatValue());
 			settable = event.getParameter(ATTRIBUTE_SETTABLE, ValueType.BOOL).getBool();
 
 			setupNode();
@@ -214,7 +221,9 @@ public abstract class EditablePoint {
 			node.clearChildren();
 			parent.removeChild(node, false);
 
+			removed();
 			ObjectIdentifier oid = getObjectIdentifier();
+			folder.conn.localIndex.removePoint(oid);
 			try {
 				folder.getLocalDevice().removeObject(oid);
 			} catch (BACnetServiceException e) {
@@ -245,6 +254,12 @@ public abstract class EditablePoint {
 
 	}
 
+	/*
+	 * Called when the point's node is removed.
+	 */
+	protected void removed() {
+	}
+
 	protected abstract void setupNode();
 
 	protected abstract void makeCopy();
@@ -270,6 +285,11 @@ public abstract class EditablePoint {
 		return propertyIdToLocalProperty.get(pid);
 	}
 
+	protected void putProperty(PropertyIdentifier pid, LocalBacnetProperty property) {
+		propertyIdToLocalProperty.put(pid, property);
+		folder.conn.localIndex.addProperty(objectId, pid, property);
+	}
+
 	public void updatePointValue(Encodable enc) {
 
 	}
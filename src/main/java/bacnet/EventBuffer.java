@@ -0,0 +1,112 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+/*
+ * The most recent event notifications of a device, kept up to a fixed count.
+ * The EVENTS node keeps its array value, now holding only the retained
+ * events, and is saved with the device so they survive a restart. It is kept
+ * current for saving on every event but only pushed to subscribers on
+ * restore and when the capacity changes; the LAST EVENT node carries each
+ * new event. The retained events are also listed by the device's "get
+ * events" action.
+ */
+class EventBuffer {
+	static final String NODE_LAST_EVENT = "LAST EVENT";
+	static final String ATTRIBUTE_CAPACITY = "event buffer size";
+	static final int DEFAULT_CAPACITY = 100;
+	// keys of an event, in column order
+	static final String[] FIELDS = { "Process Identifier", "Object", "Timestamp", "Notification Class",
+			"Notify Type", "Event Type", "From Event State", "To Event State", "Priority", "Ack Required",
+			"Message Text" };
+
+	private final Node eventNode;
+	private final Node lastEventNode;
+	// oldest first
+	private final LinkedList<JsonObject> events = new LinkedList<JsonObject>();
+	private int capacity;
+
+	EventBuffer(Node eventNode, Node lastEventNode, int capacity) {
+		this.eventNode = eventNode;
+		this.lastEventNode = lastEventNode;
+		this.capacity = Math.max(1, capacity);
+		// the saved array; older versions let it grow without bound
+		Value saved = eventNode.getValue();
+		if (saved != null && saved.getType() == ValueType.ARRAY && saved.getArray() != null) {
+			for (Object o : saved.getArray()) {
+				if (o instanceof JsonObject)
+					events.add((JsonObject) o);
+			}
+		}
+		trim();
+		eventNode.setValueType(ValueType.ARRAY);
+		publish();
+		lastEventNode.setSerializable(false);
+		lastEventNode.setValue(new Value(events.isEmpty() ? new JsonObject() : events.getLast()));
+	}
+
+	static int getCapacity(Node deviceNode) {
+		Value v = deviceNode.getAttribute(ATTRIBUTE_CAPACITY);
+		if (v == null || v.getNumber() == null)
+			return DEFAULT_CAPACITY;
+		return v.getNumber().intValue();
+	}
+
+	synchronized void add(JsonObject event) {
+		events.add(event);
+		trim();
+		eventNode.setValue(new Value(toArray()), false, false);
+		lastEventNode.setValue(new Value(event));
+	}
+
+	synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		if (trim())
+			publish();
+	}
+
+	synchronized List<JsonObject> getEvents() {
+		return new ArrayList<JsonObject>(events);
+	}
+
+	/*
+	 * Returns true if events were dropped.
+	 */
+	private boolean trim() {
+		boolean dropped = false;
+		while (events.size() > capacity) {
+			events.removeFirst();
+			dropped = true;
+		}
+		return dropped;
+	}
+
+	private void publish() {
+		eventNode.setValue(new Value(toArray()));
+	}
+
+	private JsonArray toArray() {
+		JsonArray arr = new JsonArray();
+		for (JsonObject event : events)
+			arr.add(event);
+		return arr;
+	}
+
+	static Row toRow(JsonObject event) {
+		Value[] values = new Value[FIELDS.length];
+		for (int i = 0; i < FIELDS.length; i++) {
+			Object o = event.get(FIELDS[i]);
+			values[i] = new Value(o == null ? "" : o.toString());
+		}
+		return Row.make(values);
+	}
+}
@@ -0,0 +1,342 @@
+package bacnet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.StringUtils;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Append-only journal of the event notifications a connection receives, so
+ * that clients can catch up on events from while they were away. Each event
+ * gets the next sequence number and is stored as one JSON line. Events are
+ * queued by the receiving thread and written in batches from the daemon pool.
+ * The journal is a directory of files named by the sequence number of their
+ * first event; the oldest files are dropped once the journal is larger than
+ * maxBytes or they are older than maxAgeDays.
+ */
+class EventJournal {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(EventJournal.class);
+	}
+
+	static final String EVENTS_DIR = "events";
+	static final String KEY_SEQUENCE = "Sequence";
+	static final String KEY_RECEIVED = "Received";
+	static final String KEY_DEVICE = "Device";
+	static final int DEFAULT_MAX_MB = 64;
+	static final int DEFAULT_MAX_AGE_DAYS = 30;
+	static final int FILE_SIZE = 4 << 20;
+	private static final long FLUSH_DELAY_MILLIS = 500;
+	private static final String SUFFIX = ".log";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File dir;
+	private final ConcurrentLinkedQueue<JsonObject> pending = new ConcurrentLinkedQueue<JsonObject>();
+	// held while writing, so that appending never waits for the disk
+	private final Object writeLock = new Object();
+	private long lastSequence = 0;
+	private boolean flushScheduled = false;
+	private volatile long maxBytes = (long) DEFAULT_MAX_MB << 20;
+	private volatile int maxAgeDays = DEFAULT_MAX_AGE_DAYS;
+	// file being appended to
+	private File current = null;
+	private ScheduledFuture<?> flushFuture = null;
+	// set by close(), after which events are no longer written
+	private boolean closed = false;
+
+	EventJournal(String connName) {
+		this.dir = new File(EVENTS_DIR, StringUtils.encodeName(connName));
+		File[] files = listFiles();
+		if (files.length > 0) {
+			current = files[files.length - 1];
+			lastSequence = fileStart(current) - 1;
+			try {
+				BufferedReader in = open(current);
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						JsonObject entry = parse(line);
+						if (entry != null)
+							lastSequence = sequenceOf(entry);
+					}
+				} finally {
+					in.close();
+				}
+				terminateLastLine(current);
+			} catch (IOException e) {
+				LOGGER.debug("error: ", e);
+			}
+		}
+	}
+
+	/*
+	 * Ends a line torn by a crash, so that the next event starts on a line of
+	 * its own.
+	 */
+	private static void terminateLastLine(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			if (raf.length() > 0) {
+				raf.seek(raf.length() - 1);
+				if (raf.read() != '\n')
+					raf.write('\n');
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	void setMaxMegabytes(int megabytes) {
+		this.maxBytes = Math.max(FILE_SIZE, (long) megabytes << 20);
+	}
+
+	void setMaxAgeDays(int days) {
+		this.maxAgeDays = Math.max(0, days);
+	}
+
+	/*
+	 * Numbers the event and queues it for writing. Returns the event's
+	 * sequence number, or -1 once the journal is closed.
+	 */
+	synchronized long append(String device, JsonObject event) {
+		if (closed)
+			return -1;
+		JsonObject entry = new JsonObject();
+		entry.put(KEY_SEQUENCE, ++lastSequence);
+		entry.put(KEY_RECEIVED, System.currentTimeMillis());
+		entry.put(KEY_DEVICE, device);
+		for (String field : EventBuffer.FIELDS)
+			entry.put(field, event.get(field));
+		pending.add(entry);
+		if (!flushScheduled) {
+			flushScheduled = true;
+			flushFuture = Objects.getDaemonThreadPool().schedule(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return lastSequence;
+	}
+
+	/*
+	 * Writes the queued events and applies retention.
+	 */
+	void flush() {
+		synchronized (this) {
+			flushScheduled = false;
+		}
+		synchronized (writeLock) {
+			if (pending.isEmpty())
+				return;
+			write();
+			applyRetention();
+		}
+	}
+
+	/*
+	 * Events stay queued until they are on disk, so that replay finds each of
+	 * them either in the queue or in a file. Only this method removes from the
+	 * queue, under writeLock, and append adds at the tail, so the written
+	 * events are the first ones in the queue.
+	 */
+	private void write() {
+		int written = 0;
+		try {
+			if (!dir.exists())
+				dir.mkdirs();
+			Writer out = null;
+			try {
+				for (JsonObject entry : pending) {
+					if (current == null || current.length() >= FILE_SIZE) {
+						if (out != null)
+							out.close();
+						out = null;
+						current = new File(dir, String.format("%020d", sequenceOf(entry)) + SUFFIX);
+					}
+					if (out == null)
+						out = new OutputStreamWriter(new FileOutputStream(current, true), UTF8);
+					out.write(entry.encode());
+					out.write('\n');
+					written++;
+				}
+			} finally {
+				if (out != null)
+					out.close();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("error: ", e);
+		}
+		for (int i = 0; i < written; i++)
+			pending.poll();
+	}
+
+	private void applyRetention() {
+		File[] files = listFiles();
+		long total = 0;
+		for (File f : files)
+			total += f.length();
+		long cutoff = maxAgeDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays) : 0;
+		// the file being appended to is always kept
+		for (int i = 0; i < files.length - 1; i++) {
+			if (total <= maxBytes && files[i].lastModified() >= cutoff)
+				break;
+			total -= files[i].length();
+			if (!files[i].delete())
+				LOGGER.debug("could not delete " + files[i]);
+		}
+	}
+
+	/*
+	 * Events with sequence numbers from fromSequence on, oldest first, at
+	 * most max of them. Reads the files as they are, without waiting for a
+	 * write, and takes events not yet written from a copy of the queue made
+	 * beforehand.
+	 */
+	List<JsonObject> replay(long fromSequence, int max) {
+		JsonObject[] queued = pending.toArray(new JsonObject[0]);
+		List<JsonObject> result = new ArrayList<JsonObject>();
+		long lastRead = fromSequence - 1;
+		File[] files = listFiles();
+		for (int i = 0; i < files.length && result.size() < max; i++) {
+			// skip files that end before the requested sequence number
+			if (i + 1 < files.length && fileStart(files[i + 1]) <= fromSequence)
+				continue;
+			try {
+				BufferedReader in = open(files[i]);
+				try {
+					String line;
+					while ((line = in.readLine()) != null && result.size() < max) {
+						JsonObject entry = parse(line);
+						if (entry != null && sequenceOf(entry) > lastRead) {
+							result.add(entry);
+							lastRead = sequenceOf(entry);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				// dropped by retention meanwhile
+				LOGGER.debug("error: ", e);
+			}
+		}
+		// queued events written meanwhile were read from the files already
+		for (int i = 0; i < queued.length && result.size() < max; i++) {
+			if (sequenceOf(queued[i]) > lastRead)
+				result.add(queued[i]);
+		}
+		return result;
+	}
+
+	void close() {
+		synchronized (this) {
+			closed = true;
+			if (flushFuture != null)
+				flushFuture.cancel(false);
+		}
+		flush();
+	}
+
+	/*
+	 * Closes the journal and hands its files to the connection's new name,
+	 * so that the renamed connection continues the sequence. Whatever an
+	 * earlier connection of that name left is replaced.
+	 */
+	void moveTo(String connName) {
+		close();
+		File target = new File(EVENTS_DIR, StringUtils.encodeName(connName));
+		synchronized (writeLock) {
+			if (!dir.exists() || target.equals(dir))
+				return;
+			deleteDir(target);
+			if (!dir.renameTo(target))
+				LOGGER.debug("could not move " + dir + " to " + target);
+		}
+	}
+
+	/*
+	 * Closes the journal and deletes its files, for a removed connection.
+	 */
+	void delete() {
+		close();
+		synchronized (writeLock) {
+			deleteDir(dir);
+		}
+	}
+
+	private static void deleteDir(File d) {
+		File[] files = d.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (!f.delete())
+					LOGGER.debug("could not delete " + f);
+			}
+		}
+		if (!d.delete() && d.exists())
+			LOGGER.debug("could not delete " + d);
+	}
+
+	private File[] listFiles() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		List<File> logs = new ArrayList<File>();
+		for (File f : files) {
+			if (f.getName().endsWith(SUFFIX))
+				logs.add(f);
+		}
+		File[] result = logs.toArray(new File[logs.size()]);
+		// names are zero padded, so name order is sequence order
+		Arrays.sort(result);
+		return result;
+	}
+
+	private static long fileStart(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	/*
+	 * Null for an empty line or one torn by a crash mid-write.
+	 */
+	private static JsonObject parse(String line) {
+		if (line.isEmpty())
+			return null;
+		try {
+			JsonObject entry = new JsonObject(line);
+			return entry.get(KEY_SEQUENCE) instanceof Number ? entry : null;
+		} catch (Exception e) {
+			LOGGER.debug("skipping bad journal line: " + line);
+			return null;
+		}
+	}
+
+	private static long sequenceOf(JsonObject entry) {
+		return ((Number) entry.get(KEY_SEQUENCE)).longValue();
+	}
+
+	private static BufferedReader open(File f) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+	}
+}
@@ -0,0 +1,85 @@
+package bacnet;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.type.enumerated.EventState;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+
+/*
+ * One caller of a connection's "subscribe events" action. Event notifications
+ * are matched against the caller's filters in the link and only matching ones
+ * are streamed to it, one row per event. Empty filters match everything; list
+ * filters take comma separated values.
+ */
+class EventSubscription {
+	private final Table table;
+	// device node names and instance numbers
+	private final Set<String> devices;
+	private final Set<ObjectType> objectTypes = new HashSet<ObjectType>();
+	private final Set<Integer> notificationClasses = new HashSet<Integer>();
+	private final int minPriority;
+	private final int maxPriority;
+	private final Set<EventState> toStates = new HashSet<EventState>();
+
+	EventSubscription(Table table, String devices, String objectTypes, String notificationClasses, int minPriority,
+			int maxPriority, String toStates) {
+		this.table = table;
+		this.devices = split(devices);
+		for (String s : split(objectTypes)) {
+			ObjectType type = Utils.parseObjectType(s);
+			if (type == null)
+				throw new IllegalArgumentException("unknown object type: " + s);
+			this.objectTypes.add(type);
+		}
+		for (String s : split(notificationClasses))
+			this.notificationClasses.add(Integer.valueOf(s));
+		this.minPriority = minPriority;
+		this.maxPriority = maxPriority;
+		for (String s : split(toStates)) {
+			EventState state = Utils.eventStateFromString(s);
+			// unknown names come back as normal
+			if (state.intValue() == 0 && !"normal".equals(s))
+				throw new IllegalArgumentException("unknown event state: " + s);
+			this.toStates.add(state);
+		}
+	}
+
+	private static Set<String> split(String list) {
+		Set<String> result = new HashSet<String>();
+		if (list == null)
+			return result;
+		for (String s : list.split(",")) {
+			if (!s.trim().isEmpty())
+				result.add(s.trim());
+		}
+		return result;
+	}
+
+	boolean matches(DeviceNode dn, RemoteDevice device, ObjectIdentifier oid, int notificationClass, int priority,
+			EventState toState) {
+		if (!devices.isEmpty() && !(dn != null && devices.contains(dn.node.getName()))
+				&& !(device != null && devices.contains(String.valueOf(device.getInstanceNumber()))))
+			return false;
+		if (!objectTypes.isEmpty() && !objectTypes.contains(oid.getObjectType()))
+			return false;
+		if (!notificationClasses.isEmpty() && !notificationClasses.contains(notificationClass))
+			return false;
+		if (priority < minPriority || priority > maxPriority)
+			return false;
+		return toStates.isEmpty() || toStates.contains(toState);
+	}
+
+	void send(String deviceName, JsonObject event) {
+		Row row = EventBuffer.toRow(event);
+		row.addValue(new Value(deviceName));
+		table.addRow(row);
+	}
+}
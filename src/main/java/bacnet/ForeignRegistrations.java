@@ -0,0 +1,199 @@
+package bacnet;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.npdu.ip.IpNetwork;
+
+/*
+ * Foreign device registrations of an IP connection with its BBMDs. Once a
+ * BBMD accepts a registration, bacnet4j renews it from the local device's
+ * timer every max(15, ttl - 30) seconds until the network terminates, so
+ * this class only gets each BBMD to that point: a registration that fails is
+ * retried after RETRY_SECONDS, doubling up to MAX_RETRY_SECONDS, instead of
+ * being given up after the first attempt. It also keeps the status each BBMD
+ * reached for "get bbmd registrations".
+ *
+ * A socket can only be registered with one BBMD at a time, so when several
+ * BBMDs are reached through the same socket, only the first is registered
+ * and the others are reported as failed.
+ */
+class ForeignRegistrations {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(ForeignRegistrations.class);
+	}
+
+	static final long RETRY_SECONDS = 10;
+	static final long MAX_RETRY_SECONDS = 300;
+
+	static final String STATUS_REGISTERING = "registering";
+	static final String STATUS_REGISTERED = "registered";
+	static final String STATUS_FAILED = "failed";
+
+	private final BacnetConn conn;
+	private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+	// the registration each socket holds
+	private final Map<IpNetwork, Registration> holders = new IdentityHashMap<IpNetwork, Registration>();
+	private final Random random = new Random();
+	private IpNetwork network = null;
+	private int timeToLive;
+
+	ForeignRegistrations(BacnetConn conn) {
+		this.conn = conn;
+	}
+
+	/*
+	 * Registers with each BBMD, given as host to port, replacing the
+	 * registrations of an earlier start. The first attempts are scheduled
+	 * right away on the daemon pool, since each waits for its BBMD's answer.
+	 */
+	synchronized void start(IpNetwork network, Map<String, Integer> bbmds, int timeToLive) {
+		stop();
+		this.network = network;
+		this.timeToLive = Math.max(1, timeToLive);
+		for (Map.Entry<String, Integer> entry : bbmds.entrySet())
+			registrations.add(new Registration(entry.getKey(), entry.getValue()));
+		for (Registration reg : registrations)
+			schedule(reg, 0);
+	}
+
+	/*
+	 * Cancels the pending retries. Accepted registrations, and bacnet4j's
+	 * renewals of them, end when the network terminates.
+	 */
+	synchronized void stop() {
+		for (Registration reg : registrations) {
+			if (reg.future != null)
+				reg.future.cancel(false);
+		}
+		registrations.clear();
+		holders.clear();
+		network = null;
+	}
+
+	private void schedule(final Registration reg, long delaySeconds) {
+		reg.nextAttempt = System.currentTimeMillis() + delaySeconds * 1000;
+		reg.future = conn.getDaemonThreadPool().schedule(new Runnable() {
+			public void run() {
+				register(reg);
+			}
+		}, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	private void register(Registration reg) {
+		IpNetwork socket;
+		synchronized (this) {
+			if (!registrations.contains(reg))
+				return;
+			try {
+				InetAddress address = InetAddress.getByName(reg.host);
+				socket = network instanceof MultiIpNetwork ? ((MultiIpNetwork) network).networkFor(address)
+						: network;
+			} catch (Exception e) {
+				failed(reg, e);
+				return;
+			}
+			Registration holder = holders.get(socket);
+			if (holder != null) {
+				failed(reg, new BACnetException("the socket is already registered with " + holder.getName()));
+				return;
+			}
+		}
+		// registration waits for the BBMD's answer, so it runs outside the lock
+		try {
+			socket.registerAsForeignDevice(new InetSocketAddress(reg.host, reg.port), timeToLive);
+		} catch (Exception e) {
+			synchronized (this) {
+				if (registrations.contains(reg))
+					failed(reg, e);
+			}
+			return;
+		}
+		synchronized (this) {
+			if (!registrations.contains(reg))
+				return;
+			holders.put(socket, reg);
+			reg.status = STATUS_REGISTERED;
+			reg.lastRegistered = System.currentTimeMillis();
+			reg.failures = 0;
+			reg.lastError = null;
+			reg.future = null;
+		}
+	}
+
+	/*
+	 * Seconds between bacnet4j's renewals of an accepted registration.
+	 */
+	private long renewalSeconds() {
+		return Math.max(15, timeToLive - 30);
+	}
+
+	private void failed(Registration reg, Exception e) {
+		reg.status = STATUS_FAILED;
+		reg.failures++;
+		reg.lastError = e.getMessage() != null ? e.getMessage() : e.toString();
+		LOGGER.debug("foreign device registration with " + reg.getName() + " failed: " + reg.lastError);
+		long delay = Math.min(MAX_RETRY_SECONDS, RETRY_SECONDS << Math.min(reg.failures - 1, 10));
+		schedule(reg, delay + (long) (random.nextDouble() * delay / 5));
+	}
+
+	/*
+	 * Rows for "get bbmd registrations", one per BBMD.
+	 */
+	List<Row> getRegistrations() {
+		List<Row> rows = new ArrayList<Row>();
+		long now = System.currentTimeMillis();
+		for (Registration reg : registrations) {
+			long next;
+			if (STATUS_REGISTERED.equals(reg.status)) {
+				// the next of bacnet4j's renewals
+				long period = renewalSeconds();
+				next = period - ((now - reg.lastRegistered) / 1000) % period;
+			} else {
+				next = Math.max(0, (reg.nextAttempt - now) / 1000);
+			}
+			rows.add(Row.make(new Value(reg.getName()), new Value(reg.status), new Value(timeToLive),
+					new Value(reg.lastRegistered == 0 ? -1 : (now - reg.lastRegistered) / 1000), new Value(next),
+					new Value(reg.failures),
+					new Value(reg.lastError != null ? reg.lastError : "")));
+		}
+		return rows;
+	}
+
+	private static class Registration {
+		final String host;
+		final int port;
+		volatile String status = STATUS_REGISTERING;
+		volatile long lastRegistered = 0;
+		volatile long nextAttempt = 0;
+		// consecutive failures
+		volatile int failures = 0;
+		volatile String lastError = null;
+		ScheduledFuture<?> future = null;
+
+		Registration(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		String getName() {
+			return host + ":" + port;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package bacnet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.serotonin.bacnet4j.exception.BACnetServiceException;
+import com.serotonin.bacnet4j.obj.AbstractMixin;
+import com.serotonin.bacnet4j.obj.BACnetObject;
+import com.serotonin.bacnet4j.obj.BACnetObjectListener;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.constructed.PropertyReference;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.enumerated.ErrorClass;
+import com.serotonin.bacnet4j.type.enumerated.ErrorCode;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Boolean;
+import com.serotonin.bacnet4j.type.primitive.Real;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/*
+ * A local object whose COV subscriptions are served by the connection's
+ * CovServer. SubscribeCOV is refused unless the point has "use COV" set.
+ *
+ * Values read by other devices are encoded once and kept until the property
+ * is written again, so ReadProperty and ReadPropertyMultiple responses for
+ * objects that are polled often copy the cached bytes instead of encoding
+ * the value on every request. Arrays and lists are not cached since reads of
+ * them may be indexed.
+ *
+ * BACnetObject.getProperty hands the cached encoding back in place of the
+ * value, and the stack calls it in-process too (sendIntrinsicEvent reads
+ * notificationClass and ackRequired through it and casts the result). Only
+ * the properties in CACHED are substituted; the stack reads them in-process
+ * with get() alone, so the encoding only ever reaches the read acks.
+ */
+class LocalBacnetObject extends BACnetObject {
+	private static final long serialVersionUID = 1L;
+
+	// the polled properties whose encoding is kept
+	private static final Set<PropertyIdentifier> CACHED = new HashSet<PropertyIdentifier>(
+			Arrays.asList(PropertyIdentifier.presentValue, PropertyIdentifier.statusFlags));
+
+	// set by ReadMarker just before BACnetObject.getProperty calls get()
+	private static final ThreadLocal<PropertyIdentifier> serving = new ThreadLocal<PropertyIdentifier>();
+
+	private final transient CovServer covServer;
+	private final transient Map<PropertyIdentifier, EncodedValue> encoded = new ConcurrentHashMap<PropertyIdentifier, EncodedValue>();
+	private volatile boolean covEnabled = false;
+
+	LocalBacnetObject(CovServer covServer, ObjectType objectType, int instanceNumber, String name) {
+		super(objectType, instanceNumber, name);
+		this.covServer = covServer;
+		addMixin(new ReadMarker(this));
+		addListener(new BACnetObjectListener() {
+			public void propertyChange(PropertyIdentifier pid, Encodable oldValue, Encodable newValue) {
+				if (covEnabled)
+					LocalBacnetObject.this.covServer.propertyChanged(LocalBacnetObject.this, pid);
+			}
+		});
+	}
+
+	/*
+	 * Turns COV reporting on or off. The increment only applies to analog
+	 * objects and is null for the others.
+	 */
+	void setCov(boolean enabled, Real increment) {
+		covEnabled = enabled;
+		if (increment != null)
+			writeProperty(PropertyIdentifier.covIncrement, increment);
+		if (!enabled)
+			covServer.removeObject(getId());
+	}
+
+	Real getCovIncrement() {
+		Encodable increment = get(PropertyIdentifier.covIncrement);
+		return increment instanceof Real ? (Real) increment : null;
+	}
+
+	/*
+	 * Returns the cached encoding of a CACHED property when called through
+	 * getProperty, and the plain value otherwise.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T extends Encodable> T get(PropertyIdentifier pid) {
+		T value = super.get(pid);
+		if (pid == null || !pid.equals(serving.get()))
+			return value;
+		serving.remove();
+		if (value == null || value instanceof SequenceOf)
+			return value;
+		EncodedValue enc = encoded.get(pid);
+		// a write may have raced the encoding of the previous value
+		if (enc == null || enc.value != value) {
+			enc = new EncodedValue(value);
+			encoded.put(pid, enc);
+		}
+		return (T) enc;
+	}
+
+	/*
+	 * Every write, from another device or from the link's property nodes,
+	 * ends up here.
+	 */
+	@Override
+	public BACnetObject writePropertyImpl(PropertyIdentifier pid, Encodable value) {
+		encoded.remove(pid);
+		return super.writePropertyImpl(pid, value);
+	}
+
+	@Override
+	public void addCovSubscription(Address from, UnsignedInteger subscriberProcessIdentifier,
+			Boolean issueConfirmedNotifications, UnsignedInteger lifetime, PropertyReference monitoredPropertyIdentifier,
+			Real covIncrement) throws BACnetServiceException {
+		// SubscribeCOVProperty is not supported
+		if (!covEnabled || monitoredPropertyIdentifier != null)
+			throw new BACnetServiceException(ErrorClass.object, ErrorCode.optionalFunctionalityNotSupported);
+		covServer.subscribe(this, from, subscriberProcessIdentifier,
+				issueConfirmedNotifications != null && issueConfirmedNotifications.booleanValue(),
+				lifetime != null ? lifetime.intValue() : 0);
+	}
+
+	@Override
+	public void removeCovSubscription(Address from, UnsignedInteger subscriberProcessIdentifier) {
+		covServer.unsubscribe(getId(), from, subscriberProcessIdentifier);
+	}
+
+	private static class ReadMarker extends AbstractMixin {
+		ReadMarker(BACnetObject bo) {
+			super(bo);
+		}
+
+		@Override
+		protected void beforeReadProperty(PropertyIdentifier pid) {
+			if (CACHED.contains(pid))
+				serving.set(pid);
+		}
+	}
+
+	/*
+	 * A value with its encoding. The read acks write it inside the value's
+	 * context tags with write(ByteQueue), which copies the cached bytes.
+	 */
+	private static class EncodedValue extends Encodable {
+		private static final long serialVersionUID = 1L;
+
+		final Encodable value;
+		private final byte[] bytes;
+
+		EncodedValue(Encodable value) {
+			this.value = value;
+			ByteQueue queue = new ByteQueue();
+			value.write(queue);
+			this.bytes = queue.popAll();
+		}
+
+		@Override
+		public void write(ByteQueue queue) {
+			queue.push(bytes);
+		}
+
+		@Override
+		public void write(ByteQueue queue, int contextId) {
+			writeContextTag(queue, contextId, true);
+			queue.push(bytes);
+			writeContextTag(queue, contextId, false);
+		}
+
+		@Override
+		public String toString() {
+			return value.toString();
+		}
+
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof EncodedValue)
+				obj = ((EncodedValue) obj).value;
+			return value.equals(obj);
+		}
+	}
+}
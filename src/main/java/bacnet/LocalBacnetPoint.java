@@ -1,27 +1,34 @@
 package bacnet;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.Permission;
+import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.Parameter;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.serotonin.bacnet4j.exception.BACnetServiceException;
-import com.serotonin.bacnet4j.obj.BACnetObject;
 import com.serotonin.bacnet4j.obj.BACnetObjectListener;
 import com.serotonin.bacnet4j.obj.ObjectProperties;
 import com.serotonin.bacnet4j.obj.PropertyTypeDefinition;
 import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.enumerated.ObjectType;
 import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.CharacterString;
 import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Real;
 
 import bacnet.properties.LocalBacnetProperty;
 import bacnet.properties.LocalBinaryPVProperty;
@@ -44,12 +51,17 @@ public class LocalBacnetPoint extends EditablePoint {
 		LOGGER = LoggerFactory.getLogger(BacnetPoint.class);
 	}
 
+	static final String ACTION_BIND_SOURCE = "bind source";
+	static final String ACTION_UNBIND_SOURCE = "unbind source";
+
 	private static PointCounter numPoints = new PointCounter();
 
 	private String presentValue;
 
 	private DataType dataType;
 	private List<String> unitsDescription = new ArrayList<String>();
+	// cleared while a bulk import builds the object, which registers it itself
+	private boolean registerOnSetup = true;
 
 	public LocalBacnetPoint(LocalDeviceFolder folder, Node parent, ObjectIdentifier objectId) {
 		super(folder, parent);
@@ -71,7 +83,12 @@ public class LocalBacnetPoint extends EditablePoint {
 	}
 
 	public LocalBacnetPoint(LocalDeviceFolder folder, Node parent, Node node) {
+		this(folder, parent, node, true);
+	}
+
+	LocalBacnetPoint(LocalDeviceFolder folder, Node parent, Node node, boolean register) {
 		super(folder, parent, node);
+		this.registerOnSetup = register;
 
 		ObjectType objectType = Utils.parseObjectType(node.getAttribute("object type").getString());
 		int instNum = node.getAttribute("object instance number").getNumber().intValue();
@@ -83,15 +100,19 @@ public class LocalBacnetPoint extends EditablePoint {
 		// PropertyIdentifier(PropertyIdentifier.presentValue.intValue());
 		String name = node.getName();
 
-		this.bacnetObj = new BACnetObject(objectType, instNum, name);
+		this.bacnetObj = new LocalBacnetObject(folder.conn.covServer, objectType, instNum, name);
 		BACnetObjectListener listener = new SimpleBACnetObjectListener();
 		bacnetObj.addListener(listener);
 		bacnetObj.setLocalDevice(folder.getLocalDevice());
 
-		this.propertyIdToLocalProperty = new HashMap<>();
+		this.propertyIdToLocalProperty = new ConcurrentHashMap<>();
+		folder.conn.localIndex.addPoint(objectId, this);
 
 		setCov(useCov);
 		setSettable(settable);
+		Value increment = node.getAttribute(ATTRIBUTE_COV_INCREMENT);
+		if (increment != null && increment.getNumber() != null)
+			covIncrement = increment.getNumber().floatValue();
 
 		try {
 			setObjectTypeId(objectType.intValue());
@@ -106,10 +127,203 @@ public class LocalBacnetPoint extends EditablePoint {
 			}
 
 			setupNode();
+			applyConfiguredProperties();
 
 		} catch (Exception e) {
 			LOGGER.debug("Object Type Error: ( " + node.getAttribute("object type").getString() + " )", e);
 		}
+		registerOnSetup = true;
+
+		Value sourcePath = node.getAttribute(EditableFolder.ATTRIBUTE_SOURCE_PATH);
+		if (sourcePath != null && sourcePath.getString() != null && !sourcePath.getString().isEmpty())
+			bindSource(sourcePath.getString(), getSourceMinInterval());
+		Value proxySource = node.getAttribute(EditableFolder.ATTRIBUTE_PROXY_SOURCE);
+		if (proxySource != null && proxySource.getString() != null)
+			folder.conn.link.pointProxies.addMirror(proxySource.getString(), this);
+	}
+
+	/*
+	 * Mirrors the node at the DSA path into this object's present value.
+	 */
+	void bindSource(String path, long minIntervalMillis) {
+		node.setAttribute(EditableFolder.ATTRIBUTE_SOURCE_PATH, new Value(path));
+		node.setAttribute(EditableFolder.ATTRIBUTE_SOURCE_MIN_INTERVAL, new Value(minIntervalMillis));
+		folder.conn.link.sourceBindings.bind(this, path, minIntervalMillis);
+	}
+
+	void unbindSource() {
+		folder.conn.link.sourceBindings.unbind(this);
+	}
+
+	private long getSourceMinInterval() {
+		Value interval = node.getAttribute(EditableFolder.ATTRIBUTE_SOURCE_MIN_INTERVAL);
+		return interval != null && interval.getNumber() != null ? interval.getNumber().longValue() : 0;
+	}
+
+	private void makeSourceActions() {
+		Value path = node.getAttribute(EditableFolder.ATTRIBUTE_SOURCE_PATH);
+		Action act = new Action(Permission.READ, new BindSourceHandler());
+		act.addParameter(new Parameter(EditableFolder.ATTRIBUTE_SOURCE_PATH, ValueType.STRING,
+				path != null ? path : new Value("")));
+		act.addParameter(new Parameter(EditableFolder.ATTRIBUTE_SOURCE_MIN_INTERVAL, ValueType.NUMBER,
+				new Value(getSourceMinInterval())).setDescription("milliseconds"));
+		Node actionNode = node.getChild(ACTION_BIND_SOURCE, true);
+		if (actionNode == null)
+			node.createChild(ACTION_BIND_SOURCE, true).setAction(act).build().setSerializable(false);
+		else
+			actionNode.setAction(act);
+
+		act = new Action(Permission.READ, new UnbindSourceHandler());
+		actionNode = node.getChild(ACTION_UNBIND_SOURCE, true);
+		if (actionNode == null)
+			node.createChild(ACTION_UNBIND_SOURCE, true).setAction(act).build().setSerializable(false);
+		else
+			actionNode.setAction(act);
+	}
+
+	private class BindSourceHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			String path = event.getParameter(EditableFolder.ATTRIBUTE_SOURCE_PATH, ValueType.STRING).getString();
+			long interval = event.getParameter(EditableFolder.ATTRIBUTE_SOURCE_MIN_INTERVAL, new Value(0)).getNumber()
+					.longValue();
+			bindSource(path, Math.max(0, interval));
+			makeSourceActions();
+		}
+	}
+
+	private class UnbindSourceHandler implements Handler<ActionResult> {
+		public void handle(ActionResult event) {
+			unbindSource();
+			node.removeAttribute(EditableFolder.ATTRIBUTE_SOURCE_PATH);
+			node.removeAttribute(EditableFolder.ATTRIBUTE_SOURCE_MIN_INTERVAL);
+			makeSourceActions();
+		}
+	}
+
+	/*
+	 * Converts a value from a bound DSA node to this object's present value
+	 * type. Enum names are matched against the state texts.
+	 */
+	Encodable toPresentValue(Value value) {
+		if (dataType == null || value.getType() == null)
+			return null;
+		ValueType type = value.getType();
+		switch (dataType) {
+		case BINARY: {
+			if (type == ValueType.NUMBER)
+				value = new Value(value.getNumber().doubleValue() != 0);
+			else if (!type.compare(ValueType.BOOL) && unitsDescription.size() > 1)
+				value = new Value(value.getString().equals(unitsDescription.get(1)) || value.getString().equals("1")
+						|| Boolean.parseBoolean(value.getString()));
+			break;
+		}
+		case NUMERIC: {
+			if (type.compare(ValueType.BOOL))
+				value = new Value(value.getBool() ? 1 : 0);
+			break;
+		}
+		case MULTISTATE: {
+			if (type == ValueType.NUMBER) {
+				value = new Value(String.valueOf(value.getNumber().intValue()));
+			} else if (type.compare(ValueType.BOOL)) {
+				value = new Value(value.getBool() ? "1" : "0");
+			} else {
+				int index = unitsDescription.indexOf(value.getString());
+				value = new Value(index >= 0 ? String.valueOf(index + 1) : value.getString());
+			}
+			break;
+		}
+		case ALPHANUMERIC: {
+			if (type == ValueType.NUMBER)
+				return new CharacterString(value.getNumber().toString());
+			if (type.compare(ValueType.BOOL))
+				return new CharacterString(value.getBool().toString());
+			return new CharacterString(value.getString());
+		}
+		case BOOLEAN: {
+			if (type == ValueType.NUMBER)
+				return new com.serotonin.bacnet4j.type.primitive.Boolean(value.getNumber().doubleValue() != 0);
+			if (type.compare(ValueType.BOOL))
+				return new com.serotonin.bacnet4j.type.primitive.Boolean(value.getBool());
+			return new com.serotonin.bacnet4j.type.primitive.Boolean(Boolean.parseBoolean(value.getString()));
+		}
+		}
+		return Utils.valueToEncodable(dataType, value, objectId.getObjectType(), PropertyIdentifier.presentValue,
+				unitsDescription);
+	}
+
+	/*
+	 * Writes a value from a bound DSA node to the present value, as a write
+	 * from another device would be applied. Returns false if the local device
+	 * is not running or the write failed.
+	 */
+	boolean writeSourceValue(Encodable enc) {
+		if (folder.getLocalDevice() == null)
+			return false;
+		try {
+			bacnetObj.writeProperty(PropertyIdentifier.presentValue, enc);
+		} catch (Exception e) {
+			LOGGER.debug("error: ", e);
+			return false;
+		}
+		LocalBacnetProperty property = getProperty(PropertyIdentifier.presentValue);
+		if (property != null)
+			property.updatePropertyValue(enc);
+		return true;
+	}
+
+	@Override
+	protected void removed() {
+		unbindSource();
+		Value proxySource = node.getAttribute(EditableFolder.ATTRIBUTE_PROXY_SOURCE);
+		if (proxySource != null && proxySource.getString() != null)
+			folder.conn.link.pointProxies.removeMirror(proxySource.getString(), this);
+		folder.conn.covServer.removeObject(objectId);
+	}
+
+	/*
+	 * Applies the units and state texts given when the object was imported,
+	 * or last edited since.
+	 */
+	private void applyConfiguredProperties() {
+		Value units = node.getAttribute(EditableFolder.ATTRIBUTE_UNITS);
+		LocalBacnetProperty unitsProperty = getProperty(PropertyIdentifier.units);
+		if (units != null && unitsProperty instanceof LocalUnitsProperty)
+			unitsProperty.apply(units);
+
+		Value texts = node.getAttribute(EditableFolder.ATTRIBUTE_STATE_TEXTS);
+		if (texts == null || texts.getArray() == null || texts.getArray().size() == 0)
+			return;
+		if (dataType == DataType.BINARY) {
+			LocalBacnetProperty inactive = getProperty(PropertyIdentifier.inactiveText);
+			LocalBacnetProperty active = getProperty(PropertyIdentifier.activeText);
+			if (inactive != null)
+				inactive.apply(new Value(String.valueOf((Object) texts.getArray().get(0))));
+			if (active != null && texts.getArray().size() > 1)
+				active.apply(new Value(String.valueOf((Object) texts.getArray().get(1))));
+		} else {
+			LocalBacnetProperty stateText = getProperty(PropertyIdentifier.stateText);
+			if (stateText != null)
+				stateText.apply(texts);
+		}
+	}
+
+	/*
+	 * Called after a property node is edited. Keeps the units and state texts
+	 * attributes, which are applied on every start, in step with the edit, so
+	 * that a restart does not bring back the values given at import.
+	 */
+	public void propertyEdited(PropertyIdentifier pid, Value value) {
+		if (PropertyIdentifier.units.equals(pid)) {
+			node.setAttribute(EditableFolder.ATTRIBUTE_UNITS, value);
+		} else if (PropertyIdentifier.stateText.equals(pid)) {
+			node.setAttribute(EditableFolder.ATTRIBUTE_STATE_TEXTS, value);
+		} else if (PropertyIdentifier.inactiveText.equals(pid) || PropertyIdentifier.activeText.equals(pid)) {
+			JsonArray texts = new JsonArray();
+			for (String s : unitsDescription)
+				texts.add(s);
+			node.setAttribute(EditableFolder.ATTRIBUTE_STATE_TEXTS, new Value(texts));
+		}
 	}
 
 	public int getObjectTypeId() {
@@ -161,19 +375,33 @@ public class LocalBacnetPoint extends EditablePoint {
 		node.setAttribute("object type", new Value(objectTypeDescription));
 		node.setAttribute("object instance number", new Value(instanceNumber));
 		node.setAttribute("use COV", new Value(cov));
+		node.setAttribute(ATTRIBUTE_COV_INCREMENT, new Value(covIncrement));
 		node.setAttribute("settable", new Value(settable));
 		node.setAttribute("default priority", new Value(defaultPriority));
 		node.setAttribute("restore type", new Value("editable point"));
 
 		makePointActions();
 		makeSetAction(node, PRIORITY_NON_WRITABLE);
+		makeSourceActions();
 
 		setupDataTypeProperty();
 		setupObjectNameProperty();
 		setupRequiredProperty();
+		setupCov();
 		setupBacnetObject();
 	}
 
+	/*
+	 * Lets other devices subscribe to this object's changes if "use COV" is
+	 * set. Analog objects report once the value moves by the COV increment.
+	 */
+	private void setupCov() {
+		if (!(bacnetObj instanceof LocalBacnetObject))
+			return;
+		Real increment = dataType == DataType.NUMERIC ? new Real(covIncrement) : null;
+		((LocalBacnetObject) bacnetObj).setCov(cov, increment);
+	}
+
 	private void setupPresentValueProperty(PropertyIdentifier pid) {
 		Node presentValueNode = buildPropertyNode(pid);
 
@@ -202,7 +430,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		}
 
 		if (presentValueProperty != null) {
-			propertyIdToLocalProperty.put(pid, presentValueProperty);
+			putProperty(pid, presentValueProperty);
 		}
 	}
 
@@ -246,7 +474,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalUnitsProperty unitsProperty = new LocalUnitsProperty(objectId, PropertyIdentifier.units, this, node,
 				propertyNode);
 
-		propertyIdToLocalProperty.put(PropertyIdentifier.units, unitsProperty);
+		putProperty(PropertyIdentifier.units, unitsProperty);
 	}
 
 	protected void setupBinaryStateTextProperty(PropertyIdentifier pid, boolean state) {
@@ -255,7 +483,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalBinaryStateTextProperty textProperty = new LocalBinaryStateTextProperty(objectId, pid, this, node,
 				propertyNode, defText);
 
-		propertyIdToLocalProperty.put(pid, textProperty);
+		putProperty(pid, textProperty);
 
 	}
 
@@ -264,7 +492,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalStateTextProperty stateTextProperty = new LocalStateTextProperty(objectId, PropertyIdentifier.stateText,
 				this, node, propertyNode);
 
-		propertyIdToLocalProperty.put(PropertyIdentifier.stateText, stateTextProperty);
+		putProperty(PropertyIdentifier.stateText, stateTextProperty);
 	}
 
 	protected void setupEventStateProperty(PropertyIdentifier pid) {
@@ -272,7 +500,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalEventStateProperty eventStateProperty = new LocalEventStateProperty(objectId,
 				PropertyIdentifier.eventState, this, node, propertyNode);
 
-		propertyIdToLocalProperty.put(PropertyIdentifier.eventState, eventStateProperty);
+		putProperty(PropertyIdentifier.eventState, eventStateProperty);
 	}
 
 	protected void setupPolarityProperty(PropertyIdentifier pid) {
@@ -280,7 +508,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalPolarityProperty polarityProperty = new LocalPolarityProperty(objectId, PropertyIdentifier.polarity, this,
 				node, propertyNode);
 
-		propertyIdToLocalProperty.put(PropertyIdentifier.polarity, polarityProperty);
+		putProperty(PropertyIdentifier.polarity, polarityProperty);
 	}
 
 	protected void setupRelinquishDefaultProperty(PropertyIdentifier pid) {
@@ -295,7 +523,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalUnsignedIntegerProperty nosProperty = new LocalUnsignedIntegerProperty(objectId, pid, this, node,
 				propertyNode, false);
 
-		propertyIdToLocalProperty.put(PropertyIdentifier.numberOfStates, nosProperty);
+		putProperty(PropertyIdentifier.numberOfStates, nosProperty);
 	}
 
 	/*
@@ -305,7 +533,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		Node propertyNode = buildPropertyNode(pid);
 		LocalBooleanProperty booleanProperty = new LocalBooleanProperty(objectId, pid, this, node, propertyNode);
 
-		propertyIdToLocalProperty.put(pid, booleanProperty);
+		putProperty(pid, booleanProperty);
 	}
 
 	/*
@@ -316,7 +544,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalCharacterStringProperty descriptionProperty = new LocalCharacterStringProperty(objectId, pid, this, node,
 				propertyNode);
 
-		this.propertyIdToLocalProperty.put(pid, descriptionProperty);
+		putProperty(pid, descriptionProperty);
 	}
 
 	protected void setupNumberOfStatesProperty(PropertyIdentifier pid) {
@@ -325,7 +553,7 @@ public class LocalBacnetPoint extends EditablePoint {
 				PropertyIdentifier.numberOfStates, this, node, propertyNode,
 				LocalNumberOfStatesProperty.DEFAULT_NUMBER_OF_STATE);
 
-		propertyIdToLocalProperty.put(PropertyIdentifier.numberOfStates, numberOfStateProperty);
+		putProperty(PropertyIdentifier.numberOfStates, numberOfStateProperty);
 	}
 
 	protected void setupStatusFlagsProperty(PropertyIdentifier pid) {
@@ -333,7 +561,7 @@ public class LocalBacnetPoint extends EditablePoint {
 		LocalStatusFlagsProperty statusFlagsProperty = new LocalStatusFlagsProperty(objectId,
 				PropertyIdentifier.statusFlags, this, node, propertyNode);
 
-		propertyIdToLocalProperty.put(PropertyIdentifier.statusFlags, statusFlagsProperty);
+		putProperty(PropertyIdentifier.statusFlags, statusFlagsProperty);
 	}
 
 	private Node buildPropertyNode(PropertyIdentifier pid) {
@@ -418,6 +646,8 @@ public class LocalBacnetPoint extends EditablePoint {
 	}
 
 	private void setupBacnetObject() {
+		if (!registerOnSetup)
+			return;
 		try {
 			folder.getLocalDevice().addObject(bacnetObj);
 		} catch (BACnetServiceException e) {
@@ -557,11 +787,13 @@ public class LocalBacnetPoint extends EditablePoint {
 
 		@Override
 		public void propertyChange(PropertyIdentifier arg0, Encodable arg1, Encodable arg2) {
-			// TODO Auto-generated method stub
-
-			// TBD: update the value of point node
-			node.setValue(new Value("changed"));
-
+			if (PropertyIdentifier.presentValue.equals(arg0) && arg2 != null)
+				updatePointValue(arg2);
+			else if (PropertyIdentifier.covIncrement.equals(arg0) && arg2 instanceof Real) {
+				// may have been written by another device
+				covIncrement = ((Real) arg2).floatValue();
+				node.setAttribute(ATTRIBUTE_COV_INCREMENT, new Value(covIncrement));
+			}
 		}
 	}
 
@@ -6,17 +6,20 @@ import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Row;
 
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.serotonin.bacnet4j.LocalDevice;
 import com.serotonin.bacnet4j.exception.BACnetException;
-import com.serotonin.bacnet4j.obj.BACnetObject;
 import com.serotonin.bacnet4j.type.AmbiguousValue;
 import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.enumerated.ObjectType;
@@ -40,10 +43,13 @@ public class LocalDeviceFolder extends EditableFolder {
 		LOGGER = LoggerFactory.getLogger(LocalDeviceFolder.class);
 	}
 
+	static final String ACTION_IMPORT_OBJECTS = "import objects";
+
 	LocalDeviceFolder root;
 
 	public LocalDeviceFolder(BacnetConn conn, Node node) {
 		super(conn, node);
+		setImportObjectsAction();
 	}
 
 	public LocalDeviceFolder(BacnetConn conn, LocalDeviceFolder root, Node node) {
@@ -53,6 +59,8 @@ public class LocalDeviceFolder extends EditableFolder {
 	}
 
 	protected void remove() {
+		conn.link.sourceBindings.unbindAll(node.getPath());
+		conn.link.pointProxies.removeAll(node.getPath());
 		super.remove();
 	}
 
@@ -114,11 +122,36 @@ public class LocalDeviceFolder extends EditableFolder {
 		pointNode.setAttribute(ATTRIBUTE_SETTABLE, new Value(settable));
 		pointNode.setAttribute(ATTRIBUTE_RESTORE_TYPE, new Value(ATTRIBUTE_EDITABLE_POINT));
 
-		LocalBacnetPoint bacnetPoint = new LocalBacnetPoint(this, node, pointNode);
-		BACnetObject bacnetObj = bacnetPoint.getBacnetObj();
-		Map<BACnetObject, EditablePoint> ObjectToPoint = conn.getObjectToPoint();
-		ObjectToPoint.put(bacnetObj, bacnetPoint);
+		new LocalBacnetPoint(this, node, pointNode);
+
+	}
 
+	private void setImportObjectsAction() {
+		Action act = new Action(Permission.READ, new Handler<ActionResult>() {
+			public void handle(ActionResult event) {
+				ObjectImport imp = new ObjectImport(LocalDeviceFolder.this,
+						event.getParameter(ATTRIBUTE_USE_COV, new Value(false)).getBool(),
+						event.getParameter(ATTRIBUTE_SETTABLE, new Value(false)).getBool());
+				try {
+					imp.parse(event.getParameter("objects", ValueType.STRING).getString());
+					imp.run(event.getTable());
+				} catch (Exception e) {
+					LOGGER.debug("error: ", e);
+					event.getTable().addRow(Row.make(new Value(""), new Value(""), new Value("failed"),
+							new Value(e.getMessage() != null ? e.getMessage() : e.toString())));
+				}
+			}
+		});
+		act.addParameter(new Parameter("objects", ValueType.STRING).setEditorType(EditorType.TEXT_AREA)
+				.setDescription("JSON array or CSV rows of name,type,instance,units,state texts,source path"));
+		act.addParameter(new Parameter(ATTRIBUTE_USE_COV, ValueType.BOOL, new Value(false)));
+		act.addParameter(new Parameter(ATTRIBUTE_SETTABLE, ValueType.BOOL, new Value(false)));
+		act.addResult(new Parameter("Name", ValueType.STRING));
+		act.addResult(new Parameter("Object", ValueType.STRING));
+		act.addResult(new Parameter("Status", ValueType.STRING));
+		act.addResult(new Parameter("Error", ValueType.STRING));
+		act.setResultType(ResultType.TABLE);
+		node.createChild(ACTION_IMPORT_OBJECTS, true).setAction(act).build().setSerializable(false);
 	}
 
 	@Override
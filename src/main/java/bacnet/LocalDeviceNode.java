@@ -5,6 +5,9 @@ import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 
@@ -41,6 +44,7 @@ public class LocalDeviceNode extends LocalDeviceFolder {
 	static final String ACTION_EDIT = "edit";
 	static final String ACTION_STOP = "stop";
 	static final String ACTION_RESTART = "restart";
+	static final String ACTION_GET_COV_SUBSCRIPTIONS = "get cov subscriptions";
 
 	final Node statNode;
 
@@ -94,6 +98,30 @@ public class LocalDeviceNode extends LocalDeviceFolder {
 		}
 
 		makeEditAction();
+		makeCovSubscriptionsAction();
+	}
+
+	private void makeCovSubscriptionsAction() {
+		Action act = new Action(Permission.READ, new Handler<ActionResult>() {
+			public void handle(ActionResult event) {
+				Table table = event.getTable();
+				for (Row row : conn.covServer.getSubscriptions())
+					table.addRow(row);
+			}
+		});
+		act.addResult(new Parameter("Object", ValueType.STRING));
+		act.addResult(new Parameter("Subscriber", ValueType.STRING));
+		act.addResult(new Parameter("Process Identifier", ValueType.NUMBER));
+		act.addResult(new Parameter("Confirmed", ValueType.BOOL));
+		act.addResult(new Parameter("Seconds Remaining", ValueType.NUMBER));
+		act.addResult(new Parameter("COV Increment", ValueType.NUMBER));
+		act.addResult(new Parameter("Failed Notifications", ValueType.NUMBER));
+		act.setResultType(ResultType.TABLE);
+		Node anode = node.getChild(ACTION_GET_COV_SUBSCRIPTIONS, true);
+		if (anode == null)
+			node.createChild(ACTION_GET_COV_SUBSCRIPTIONS, true).setAction(act).build().setSerializable(false);
+		else
+			anode.setAction(act);
 	}
 
 	private void rename(String name) {
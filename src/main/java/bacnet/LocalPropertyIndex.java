@@ -0,0 +1,72 @@
+package bacnet;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+
+import bacnet.properties.LocalBacnetProperty;
+
+/*
+ * The local device's objects and their properties, looked up by object
+ * identifier and by (object identifier, property identifier). Writes from
+ * other devices are dispatched through it on the BACnet receive thread while
+ * objects are added and removed from action threads, so both maps are
+ * concurrent.
+ */
+class LocalPropertyIndex {
+	private final ConcurrentMap<ObjectIdentifier, EditablePoint> points = new ConcurrentHashMap<ObjectIdentifier, EditablePoint>();
+	private final ConcurrentMap<Key, LocalBacnetProperty> properties = new ConcurrentHashMap<Key, LocalBacnetProperty>();
+
+	void addPoint(ObjectIdentifier oid, EditablePoint point) {
+		points.put(oid, point);
+	}
+
+	void addProperty(ObjectIdentifier oid, PropertyIdentifier pid, LocalBacnetProperty property) {
+		properties.put(new Key(oid, pid), property);
+	}
+
+	void removePoint(ObjectIdentifier oid) {
+		points.remove(oid);
+		Iterator<Key> it = properties.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().oid.equals(oid))
+				it.remove();
+		}
+	}
+
+	EditablePoint getPoint(ObjectIdentifier oid) {
+		return points.get(oid);
+	}
+
+	LocalBacnetProperty getProperty(ObjectIdentifier oid, PropertyIdentifier pid) {
+		return properties.get(new Key(oid, pid));
+	}
+
+	private static final class Key {
+		final ObjectIdentifier oid;
+		final PropertyIdentifier pid;
+		private final int hash;
+
+		Key(ObjectIdentifier oid, PropertyIdentifier pid) {
+			this.oid = oid;
+			this.pid = pid;
+			this.hash = 31 * oid.hashCode() + pid.intValue();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return oid.equals(k.oid) && pid.intValue() == k.pid.intValue();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadRangeAck;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByPosition;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.BySequenceNumber;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByTime;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.DateTime;
+import com.serotonin.bacnet4j.type.constructed.LogRecord;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.enumerated.Segmentation;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.SignedInteger;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+
+/*
+ * Reads a range of a trend log's buffer in pages small enough for the device
+ * to answer without segmentation, handing each page over as it arrives. After
+ * the first page the read continues by sequence number when the device
+ * reports them, otherwise by position or time as it started.
+ */
+class LogReader {
+	static final int BY_POSITION = 0;
+	static final int BY_SEQUENCE_NUMBER = 1;
+	static final int BY_TIME = 2;
+
+	static final int MAX_PAGE_SIZE = 100;
+	static final int MIN_PAGE_SIZE = 5;
+	// encoded size of a log record holding a real value, with some slack
+	private static final int RECORD_BYTES = 24;
+	// ReadRange-ACK header: object, property, flags, count, first sequence number
+	private static final int ACK_OVERHEAD = 32;
+
+	interface PageHandler {
+		void page(List<LogRecord> records);
+	}
+
+	private final LocalDevice ld;
+	private final RemoteDevice rd;
+	private final ObjectIdentifier oid;
+	private volatile boolean cancelled = false;
+
+	LogReader(LocalDevice ld, RemoteDevice rd, ObjectIdentifier oid) {
+		this.ld = ld;
+		this.rd = rd;
+		this.oid = oid;
+	}
+
+	/*
+	 * Records per ReadRange request: as many as fit in one APDU of the device,
+	 * or MAX_PAGE_SIZE if the device can send segmented responses.
+	 */
+	static int pageSize(RemoteDevice rd) {
+		Segmentation seg = rd.getSegmentationSupported();
+		if (seg != null && seg.hasTransmitSegmentation())
+			return MAX_PAGE_SIZE;
+		int n = (rd.getMaxAPDULengthAccepted() - ACK_OVERHEAD) / RECORD_BYTES;
+		return Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, n));
+	}
+
+	/*
+	 * Stops the read after the page in flight; that page is not handed over.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	/*
+	 * Reads count records starting at the reference, which is a position or
+	 * sequence number for BY_POSITION and BY_SEQUENCE_NUMBER and ignored for
+	 * BY_TIME. A negative count reads backwards from the reference, as in
+	 * ReadRange itself; records within a page are always oldest first.
+	 */
+	void read(int kind, long reference, DateTime time, int count, PageHandler handler) throws BACnetException {
+		int direction = count < 0 ? -1 : 1;
+		long remaining = Math.abs((long) count);
+		int pageSize = pageSize(rd);
+
+		while (remaining > 0 && !cancelled) {
+			SignedInteger n = new SignedInteger((int) (direction * Math.min(remaining, pageSize)));
+			ReadRangeRequest request;
+			if (kind == BY_POSITION)
+				request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null,
+						new ByPosition(new UnsignedInteger(reference), n));
+			else if (kind == BY_SEQUENCE_NUMBER)
+				request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null,
+						new BySequenceNumber(new UnsignedInteger(reference), n));
+			else
+				request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null, new ByTime(time, n));
+			ReadRangeAck ack = send(request);
+
+			List<LogRecord> items = new ArrayList<LogRecord>();
+			for (Encodable item : ack.getItemData())
+				items.add((LogRecord) item);
+			if (items.isEmpty() || cancelled)
+				return;
+			handler.page(items);
+			remaining -= items.size();
+
+			if (ack.getFirstSequenceNumber() != null) {
+				long first = ack.getFirstSequenceNumber().longValue();
+				kind = BY_SEQUENCE_NUMBER;
+				reference = direction > 0 ? first + items.size() : first - 1;
+			} else if (kind == BY_TIME) {
+				// by time is exclusive of the reference time
+				time = items.get(direction > 0 ? items.size() - 1 : 0).getTimestamp();
+			} else {
+				reference += direction * items.size();
+			}
+			// a short page without more items means the end of the buffer was reached
+			if (items.size() < Math.abs(n.intValue()) && !ack.getResultFlags().isMoreItems())
+				return;
+			if (kind != BY_TIME && reference < 1)
+				return;
+		}
+	}
+
+	/*
+	 * Sends one request and waits for its acknowledgement.
+	 */
+	ReadRangeAck send(ReadRangeRequest request) throws BACnetException {
+		return (ReadRangeAck) ld.send(rd, request).get();
+	}
+}
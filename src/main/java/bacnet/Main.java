@@ -3,6 +3,7 @@ package bacnet;
 import org.dsa.iot.dslink.DSLink;
 import org.dsa.iot.dslink.DSLinkFactory;
 import org.dsa.iot.dslink.DSLinkHandler;
+import org.dsa.iot.dslink.link.Requester;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.NodeManager;
@@ -18,6 +19,9 @@ public class Main extends DSLinkHandler {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
+	private BacnetLink bacnetLink;
+	private Requester requester;
+
 	public static void main(String[] args) {
 		DSLinkFactory.start(args, new Main());
 	}
@@ -27,6 +31,11 @@ public class Main extends DSLinkHandler {
 		return true;
 	}
 
+	@Override
+	public boolean isRequester() {
+		return true;
+	}
+
 	@Override
 	public void onResponderInitialized(DSLink link) {
 		LOGGER.info("Initialized");
@@ -50,7 +59,21 @@ public class Main extends DSLinkHandler {
 		b.setAction(act);
 		b.build();
 
-		BacnetLink.start(superRoot, copyser, copydeser);
+		synchronized (this) {
+			bacnetLink = BacnetLink.start(superRoot, copyser, copydeser);
+			if (requester != null)
+				bacnetLink.sourceBindings.setRequester(requester);
+		}
+	}
+
+	@Override
+	public void onRequesterInitialized(DSLink link) {
+		// local objects bound to DSA nodes subscribe through the requester
+		synchronized (this) {
+			requester = link.getRequester();
+			if (bacnetLink != null)
+				bacnetLink.sourceBindings.setRequester(requester);
+		}
 	}
 
 	@Override
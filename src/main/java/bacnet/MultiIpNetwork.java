@@ -0,0 +1,217 @@
+package bacnet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.npdu.ip.IpNetwork;
+import com.serotonin.bacnet4j.npdu.ip.IpNetworkUtils;
+import com.serotonin.bacnet4j.transport.Transport;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import com.serotonin.bacnet4j.type.primitive.OctetString;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/*
+ * A BACnet/IP network with one socket per subnet, so that a single
+ * connection, with one local device and one device tree, can reach devices
+ * behind several NICs. The connection's own bind address is the primary
+ * socket; each additional bind address is given with its prefix length, e.g.
+ * "10.1.0.5/24", and optionally its own port, "10.1.0.5/24:47809".
+ *
+ * Every socket hands what it receives to the same transport. Unicasts go out
+ * on the socket whose subnet contains the destination, or the router for a
+ * remote network, and everything else goes out on the primary socket. Global
+ * and local broadcasts, such as discovery's WhoIs, go out on every socket.
+ */
+class MultiIpNetwork extends IpNetwork {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(MultiIpNetwork.class);
+	}
+
+	private static final Pattern BIND_PATTERN = Pattern.compile("^\\s*([\\d.]+)/(\\d+)(?::(\\d+))?\\s*$");
+
+	private final List<Port> ports;
+
+	// IpNetworkBuilder only builds IpNetwork itself, so subclasses use the constructor
+	@SuppressWarnings("deprecation")
+	MultiIpNetwork(String broadcastIp, int port, String localBindAddress, int localNetworkNumber, List<Port> ports) {
+		// the sockets may share a port number, so each of them reuses addresses;
+		// the subnet mask is IpNetworkBuilder's default
+		super(broadcastIp, port, localBindAddress, "0.0.0.0", localNetworkNumber, true);
+		this.ports = ports;
+	}
+
+	/*
+	 * Parses a comma separated list of additional bind addresses. Entries
+	 * without a port use defaultPort; malformed entries are skipped.
+	 */
+	static List<Port> parsePorts(String list, int defaultPort, int localNetworkNumber) {
+		List<Port> ports = new ArrayList<Port>();
+		if (list == null)
+			return ports;
+		for (String entry : list.split(",")) {
+			if (entry.trim().isEmpty())
+				continue;
+			Matcher m = BIND_PATTERN.matcher(entry);
+			if (!m.matches()) {
+				LOGGER.debug("ignoring bind address " + entry);
+				continue;
+			}
+			try {
+				byte[] ip = InetAddress.getByName(m.group(1)).getAddress();
+				int prefix = Math.min(32, Integer.parseInt(m.group(2)));
+				int port = m.group(3) != null ? Integer.parseInt(m.group(3)) : defaultPort;
+				ports.add(new Port(ip, prefix, port, localNetworkNumber));
+			} catch (UnknownHostException e) {
+				LOGGER.debug("error: ", e);
+			}
+		}
+		return ports;
+	}
+
+	@Override
+	public void initialize(Transport transport) throws Exception {
+		super.initialize(transport);
+		for (Port port : ports) {
+			try {
+				port.initialize(transport);
+			} catch (Exception e) {
+				LOGGER.debug("cannot bind " + port.bindIp() + ": ", e);
+			}
+		}
+	}
+
+	@Override
+	public void terminate() {
+		for (Port port : ports)
+			port.terminate();
+		super.terminate();
+	}
+
+	@Override
+	public long getBytesOut() {
+		long bytes = super.getBytesOut();
+		for (Port port : ports)
+			bytes += port.getBytesOut();
+		return bytes;
+	}
+
+	@Override
+	public long getBytesIn() {
+		long bytes = super.getBytesIn();
+		for (Port port : ports)
+			bytes += port.getBytesIn();
+		return bytes;
+	}
+
+	@Override
+	public Address[] getAllLocalAddresses() {
+		List<Address> addresses = new ArrayList<Address>(Arrays.asList(super.getAllLocalAddresses()));
+		for (Port port : ports) {
+			if (port.getLocalBindAddress() != null)
+				addresses.add(IpNetworkUtils.toAddress(port.getLocalBindAddress()));
+		}
+		return addresses.toArray(new Address[addresses.size()]);
+	}
+
+	/*
+	 * The socket that unicasts to the address go out on.
+	 */
+	IpNetwork networkFor(InetAddress address) {
+		byte[] ip = address.getAddress();
+		for (Port port : ports) {
+			if (port.contains(ip))
+				return port;
+		}
+		return this;
+	}
+
+	@Override
+	protected void sendNPDU(Address recipient, OctetString router, ByteQueue npdu, boolean broadcast,
+			boolean expectsReply) throws BACnetException {
+		OctetString dest = getDestination(recipient, router);
+		if (recipient.isGlobal() || getBroadcastMAC().equals(dest)) {
+			byte[] data = npdu.popAll();
+			for (Port port : ports) {
+				// a local broadcast goes to each subnet's own broadcast address
+				Address to = recipient.isGlobal() ? recipient : port.getLocalBroadcastAddress();
+				try {
+					port.send(to, null, new ByteQueue(data), broadcast, expectsReply);
+				} catch (BACnetException e) {
+					LOGGER.debug("error: ", e);
+				}
+			}
+			super.sendNPDU(recipient, router, new ByteQueue(data), broadcast, expectsReply);
+			return;
+		}
+		byte[] ip = IpNetworkUtils.getIpBytes(dest);
+		for (Port port : ports) {
+			if (port.contains(ip)) {
+				port.send(recipient, router, npdu, broadcast, expectsReply);
+				return;
+			}
+		}
+		super.sendNPDU(recipient, router, npdu, broadcast, expectsReply);
+	}
+
+	static class Port extends IpNetwork {
+		private final byte[] ip;
+		private final byte[] mask;
+
+		// as above, IpNetworkBuilder cannot build a subclass
+		@SuppressWarnings("deprecation")
+		Port(byte[] ip, int prefix, int port, int localNetworkNumber) throws UnknownHostException {
+			super(broadcast(ip, mask(prefix)), port, InetAddress.getByAddress(ip).getHostAddress(),
+					InetAddress.getByAddress(mask(prefix)).getHostAddress(), localNetworkNumber, true);
+			this.ip = ip;
+			this.mask = mask(prefix);
+		}
+
+		private static byte[] mask(int prefix) {
+			byte[] mask = new byte[4];
+			for (int i = 0; i < prefix; i++)
+				mask[i / 8] |= 0x80 >> (i % 8);
+			return mask;
+		}
+
+		private static String broadcast(byte[] ip, byte[] mask) throws UnknownHostException {
+			byte[] bcast = new byte[4];
+			for (int i = 0; i < 4; i++)
+				bcast[i] = (byte) (ip[i] | ~mask[i]);
+			return InetAddress.getByAddress(bcast).getHostAddress();
+		}
+
+		String bindIp() {
+			try {
+				return InetAddress.getByAddress(ip).getHostAddress();
+			} catch (UnknownHostException e) {
+				return Arrays.toString(ip);
+			}
+		}
+
+		boolean contains(byte[] other) {
+			if (other == null || other.length != 4)
+				return false;
+			for (int i = 0; i < 4; i++) {
+				if ((other[i] & mask[i]) != (ip[i] & mask[i]))
+					return false;
+			}
+			return true;
+		}
+
+		void send(Address recipient, OctetString router, ByteQueue npdu, boolean broadcast, boolean expectsReply)
+				throws BACnetException {
+			sendNPDU(recipient, router, npdu, broadcast, expectsReply);
+		}
+	}
+}
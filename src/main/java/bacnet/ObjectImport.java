@@ -0,0 +1,208 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.exception.BACnetServiceException;
+import com.serotonin.bacnet4j.type.enumerated.EngineeringUnits;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+
+/*
+ * One run of a local folder's "import objects" action. The manifest lists
+ * objects by name, type, instance number, units, state texts and the DSA path
+ * they mirror. All object nodes are built first, then the objects are added
+ * to the local device in one pass, with a result row per object.
+ */
+class ObjectImport {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(ObjectImport.class);
+	}
+
+	private final LocalDeviceFolder folder;
+	private final boolean useCov;
+	private final boolean settable;
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	ObjectImport(LocalDeviceFolder folder, boolean useCov, boolean settable) {
+		this.folder = folder;
+		this.useCov = useCov;
+		this.settable = settable;
+	}
+
+	/*
+	 * Accepts a JSON array of objects with "name", "type", "instance",
+	 * "units", "state texts" (an array) and "source path" keys, or CSV with
+	 * one "name,type,instance,units,state texts,source path" row per line,
+	 * state texts separated by '|'. A CSV header row is skipped.
+	 */
+	void parse(String text) {
+		text = text.trim();
+		if (text.startsWith("[")) {
+			for (Object o : new JsonArray(text)) {
+				if (!(o instanceof JsonObject))
+					continue;
+				JsonObject jo = (JsonObject) o;
+				List<String> states = new ArrayList<String>();
+				Object texts = jo.get("state texts");
+				if (texts instanceof JsonArray) {
+					for (Object s : (JsonArray) texts)
+						states.add(String.valueOf(s));
+				}
+				entries.add(new Entry(string(jo.get("name")), string(jo.get("type")), string(jo.get("instance")),
+						string(jo.get("units")), states, string(jo.get("source path"))));
+			}
+		} else {
+			for (String line : text.split("\\r?\\n")) {
+				if (line.trim().isEmpty())
+					continue;
+				String[] cols = line.split(",", -1);
+				if (entries.isEmpty() && "name".equalsIgnoreCase(cols[0].trim()))
+					continue;
+				List<String> states = new ArrayList<String>();
+				if (cols.length > 4) {
+					for (String s : cols[4].split("\\|")) {
+						if (!s.trim().isEmpty())
+							states.add(s.trim());
+					}
+				}
+				entries.add(new Entry(col(cols, 0), col(cols, 1), col(cols, 2), col(cols, 3), states, col(cols, 5)));
+			}
+		}
+	}
+
+	private static String string(Object o) {
+		return o == null ? null : o.toString().trim();
+	}
+
+	private static String col(String[] cols, int i) {
+		return i < cols.length && !cols[i].trim().isEmpty() ? cols[i].trim() : null;
+	}
+
+	void run(Table table) {
+		LocalDevice ld = folder.getLocalDevice();
+		if (ld == null)
+			throw new IllegalStateException("local device is not running");
+		LOGGER.debug("importing " + entries.size() + " objects into " + folder.node.getName());
+
+		// build every object's node tree first ...
+		Set<ObjectIdentifier> seen = new HashSet<ObjectIdentifier>();
+		List<Entry> built = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			try {
+				build(entry, seen);
+				built.add(entry);
+			} catch (Exception e) {
+				entry.error = e.getMessage();
+			}
+		}
+		// ... then register them with the local device in one pass
+		for (Entry entry : built) {
+			try {
+				ld.addObject(entry.point.getBacnetObj());
+			} catch (BACnetServiceException e) {
+				entry.error = e.getMessage();
+				entry.point.unbindSource();
+				entry.point.getNode().clearChildren();
+				folder.node.removeChild(entry.point.getNode(), false);
+				folder.conn.localIndex.removePoint(entry.oid);
+			}
+		}
+
+		for (Entry entry : entries) {
+			table.addRow(Row.make(new Value(String.valueOf(entry.name)),
+					new Value(entry.oid != null ? entry.oid.toString() : ""),
+					new Value(entry.error == null ? "ok" : "failed"),
+					new Value(entry.error == null ? "" : entry.error)));
+		}
+	}
+
+	private void build(Entry entry, Set<ObjectIdentifier> seen) {
+		if (entry.name == null || entry.name.isEmpty())
+			throw new IllegalArgumentException("missing name");
+		if (entry.type == null)
+			throw new IllegalArgumentException("missing type");
+		ObjectType type = Utils.parseObjectType(entry.type);
+		if (type == null && entry.type.matches("\\d+"))
+			type = new ObjectType(Integer.parseInt(entry.type));
+		if (type == null)
+			throw new IllegalArgumentException("unknown object type: " + entry.type);
+		if (entry.instance == null)
+			throw new IllegalArgumentException("missing instance number");
+		int instance = (int) Double.parseDouble(entry.instance);
+		ObjectIdentifier oid = new ObjectIdentifier(type, instance);
+		if (!seen.add(oid) || folder.conn.localIndex.getPoint(oid) != null)
+			throw new IllegalArgumentException("duplicate object " + oid);
+		if (folder.node.getChild(entry.name, true) != null)
+			throw new IllegalArgumentException("a node named " + entry.name + " already exists");
+		if (entry.units != null && !isKnownUnits(entry.units))
+			throw new IllegalArgumentException("unknown units: " + entry.units);
+		entry.oid = oid;
+
+		Node pointNode = folder.node.createChild(entry.name, true).build();
+		pointNode.setAttribute(EditableFolder.ATTRIBUTE_OBJECT_TYPE, new Value(type.toString()));
+		pointNode.setAttribute(EditableFolder.ATTRIBUTE_OBJECT_INSTANCE_NUMBER, new Value(instance));
+		pointNode.setAttribute(EditableFolder.ATTRIBUTE_USE_COV, new Value(useCov));
+		pointNode.setAttribute(EditableFolder.ATTRIBUTE_SETTABLE, new Value(settable));
+		pointNode.setAttribute(EditableFolder.ATTRIBUTE_RESTORE_TYPE, new Value(EditableFolder.ATTRIBUTE_EDITABLE_POINT));
+		if (entry.units != null)
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_UNITS, new Value(entry.units));
+		if (!entry.stateTexts.isEmpty()) {
+			JsonArray texts = new JsonArray();
+			for (String s : entry.stateTexts)
+				texts.add(s);
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_STATE_TEXTS, new Value(texts));
+		}
+		if (entry.sourcePath != null)
+			pointNode.setAttribute(EditableFolder.ATTRIBUTE_SOURCE_PATH, new Value(entry.sourcePath));
+
+		entry.point = new LocalBacnetPoint(folder, folder.node, pointNode, false);
+	}
+
+	/*
+	 * The units property ignores names it does not know, so they are
+	 * rejected here instead of being stored.
+	 */
+	private static boolean isKnownUnits(String units) {
+		for (EngineeringUnits u : EngineeringUnits.ALL) {
+			if (u.toString().equals(units))
+				return true;
+		}
+		return false;
+	}
+
+	private static class Entry {
+		final String name;
+		final String type;
+		final String instance;
+		final String units;
+		final List<String> stateTexts;
+		final String sourcePath;
+		ObjectIdentifier oid;
+		LocalBacnetPoint point;
+		String error;
+
+		Entry(String name, String type, String instance, String units, List<String> stateTexts, String sourcePath) {
+			this.name = name;
+			this.type = type;
+			this.instance = instance;
+			this.units = units;
+			this.stateTexts = stateTexts;
+			this.sourcePath = sourcePath;
+		}
+	}
+}
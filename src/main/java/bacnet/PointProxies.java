@@ -0,0 +1,125 @@
+package bacnet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.dsa.iot.dslink.node.Node;
+
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+
+/*
+ * Local objects that mirror points of remote devices, so that the remote
+ * points can be read by other BACnet devices on another network. The local
+ * objects are the cache: other devices read them from the local device, and
+ * the remote point is only read by the link's own polling or COV
+ * subscription, which runs while it has at least one mirror. Mirrors are
+ * keyed by the path of the remote point's node and may live on any
+ * connection's local device.
+ */
+class PointProxies {
+	private final Node root;
+	// LocalBacnetPoint compares by object identifier, so mirrors are kept in
+	// lists and matched by identity
+	private final Map<String, List<LocalBacnetPoint>> mirrors = new ConcurrentHashMap<String, List<LocalBacnetPoint>>();
+	private final Map<String, Encodable> lastValues = new ConcurrentHashMap<String, Encodable>();
+
+	PointProxies(Node root) {
+		this.root = root;
+	}
+
+	/*
+	 * Starts mirroring the remote point at sourcePath into the local point.
+	 * The first mirror of a point starts its polling or COV subscription.
+	 */
+	synchronized void addMirror(String sourcePath, LocalBacnetPoint local) {
+		List<LocalBacnetPoint> list = mirrors.get(sourcePath);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<LocalBacnetPoint>();
+			mirrors.put(sourcePath, list);
+		}
+		for (LocalBacnetPoint p : list) {
+			if (p == local)
+				return;
+		}
+		list.add(local);
+		Encodable last = lastValues.get(sourcePath);
+		if (last != null)
+			local.writeSourceValue(last);
+		if (list.size() == 1) {
+			BacnetPoint source = find(sourcePath);
+			if (source != null)
+				source.subscribeProxy();
+		}
+	}
+
+	synchronized void removeMirror(String sourcePath, LocalBacnetPoint local) {
+		List<LocalBacnetPoint> list = mirrors.get(sourcePath);
+		if (list == null)
+			return;
+		for (LocalBacnetPoint p : list) {
+			if (p == local)
+				list.remove(p);
+		}
+		if (list.isEmpty()) {
+			mirrors.remove(sourcePath);
+			lastValues.remove(sourcePath);
+			BacnetPoint source = find(sourcePath);
+			if (source != null)
+				source.unsubscribeProxy();
+		}
+	}
+
+	/*
+	 * Removes the mirrors under the node at parentPath, for when a folder or
+	 * connection is removed.
+	 */
+	synchronized void removeAll(String parentPath) {
+		String prefix = parentPath + "/";
+		for (Map.Entry<String, List<LocalBacnetPoint>> entry : mirrors.entrySet()) {
+			for (LocalBacnetPoint p : entry.getValue()) {
+				if (p.getNode().getPath().startsWith(prefix))
+					removeMirror(entry.getKey(), p);
+			}
+		}
+	}
+
+	/*
+	 * Called once a remote point's node is set up, which may be after its
+	 * mirrors were restored.
+	 */
+	void sourceReady(BacnetPoint point) {
+		if (point.node != null && mirrors.containsKey(point.node.getPath()))
+			point.subscribeProxy();
+	}
+
+	/*
+	 * Called with every value read from a remote point, by polling or COV.
+	 */
+	void valueReceived(BacnetPoint point, PropertyIdentifier pid, Encodable value) {
+		if (point.node == null || !PropertyIdentifier.presentValue.equals(pid))
+			return;
+		String path = point.node.getPath();
+		List<LocalBacnetPoint> list = mirrors.get(path);
+		if (list == null)
+			return;
+		lastValues.put(path, value);
+		for (LocalBacnetPoint local : list)
+			local.writeSourceValue(value);
+	}
+
+	private BacnetPoint find(String path) {
+		Node node = root;
+		for (String name : path.split("/")) {
+			if (name.isEmpty())
+				continue;
+			node = node.getChild(name, true);
+			if (node == null)
+				return null;
+		}
+		Object meta = node.getMetaData();
+		return meta instanceof BacnetPoint ? (BacnetPoint) meta : null;
+	}
+}
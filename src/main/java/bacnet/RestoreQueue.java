@@ -0,0 +1,135 @@
+package bacnet;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Restores the devices of a connection a few at a time rather than all at
+ * once. Devices that were healthy most recently go first, and the number of
+ * restored, pending and failed devices is published on the connection.
+ */
+class RestoreQueue {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(RestoreQueue.class);
+	}
+
+	static final String NODE_RESTORE_PROGRESS = "RESTORE PROGRESS";
+	static final int DEFAULT_CONCURRENCY = 4;
+
+	private final Node progressNode;
+	private final PriorityQueue<Task> pending = new PriorityQueue<Task>();
+	private int concurrency = DEFAULT_CONCURRENCY;
+	private int running;
+	private int restored;
+	private int failed;
+	private long sequence;
+	// set between reset() and release() so a full batch is ordered before any task starts
+	private boolean held;
+
+	RestoreQueue(Node connNode) {
+		Node n = connNode.getChild(NODE_RESTORE_PROGRESS, true);
+		if (n == null) {
+			n = connNode.createChild(NODE_RESTORE_PROGRESS, true).setValueType(ValueType.MAP).build();
+		}
+		n.setSerializable(false);
+		this.progressNode = n;
+		publish();
+	}
+
+	synchronized void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+		startNext();
+	}
+
+	/*
+	 * Called when the connection (re)starts. Tasks already running finish
+	 * and are counted in the new totals. Nothing new starts until release().
+	 */
+	synchronized void reset() {
+		pending.clear();
+		restored = 0;
+		failed = 0;
+		held = true;
+		publish();
+	}
+
+	synchronized void release() {
+		held = false;
+		startNext();
+	}
+
+	/*
+	 * Queues a restore. The task returns true if the device was reached.
+	 */
+	synchronized void submit(long lastHealthy, Callable<Boolean> restore) {
+		pending.add(new Task(lastHealthy, sequence++, restore));
+		startNext();
+	}
+
+	private synchronized void startNext() {
+		while (!held && running < concurrency && !pending.isEmpty()) {
+			final Task task = pending.poll();
+			running++;
+			Objects.getDaemonThreadPool().execute(new Runnable() {
+				public void run() {
+					boolean ok = false;
+					try {
+						ok = task.restore.call();
+					} catch (Exception e) {
+						LOGGER.debug("error: ", e);
+					} finally {
+						finished(ok);
+					}
+				}
+			});
+		}
+		publish();
+	}
+
+	private synchronized void finished(boolean ok) {
+		running--;
+		if (ok)
+			restored++;
+		else
+			failed++;
+		startNext();
+	}
+
+	private void publish() {
+		JsonObject jo = new JsonObject();
+		jo.put("restored", restored);
+		jo.put("pending", pending.size() + running);
+		jo.put("failed", failed);
+		progressNode.setValue(new Value(jo));
+	}
+
+	private static class Task implements Comparable<Task> {
+		final long lastHealthy;
+		final long seq;
+		final Callable<Boolean> restore;
+
+		Task(long lastHealthy, long seq, Callable<Boolean> restore) {
+			this.lastHealthy = lastHealthy;
+			this.seq = seq;
+			this.restore = restore;
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			// most recently healthy first, then in submission order
+			if (lastHealthy != o.lastHealthy)
+				return lastHealthy > o.lastHealthy ? -1 : 1;
+			return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+		}
+	}
+}
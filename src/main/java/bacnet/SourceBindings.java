@@ -0,0 +1,193 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.link.Requester;
+import org.dsa.iot.dslink.methods.responses.UnsubscribeResponse;
+import org.dsa.iot.dslink.node.value.SubscriptionValue;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.type.Encodable;
+
+/*
+ * Local objects whose present value mirrors a DSA node. Each DSA path is
+ * subscribed to once, however many local objects are bound to it, and every
+ * update is fanned out to the bound objects. An object is only written when
+ * the converted value differs from the last one written to it, and at most
+ * once per its minimum interval; updates in between are coalesced and the
+ * latest is written when the interval is up.
+ */
+class SourceBindings {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(SourceBindings.class);
+	}
+
+	private final Map<String, Source> sources = new ConcurrentHashMap<String, Source>();
+	// points compare by object identifier, which is only unique per connection
+	private final Map<LocalBacnetPoint, Binding> bindings = new IdentityHashMap<LocalBacnetPoint, Binding>();
+	private final Handler<SubscriptionValue> updateHandler = new UpdateHandler();
+	private Requester requester = null;
+
+	/*
+	 * Called once the link's requester is up; subscribes to the paths bound
+	 * before then.
+	 */
+	synchronized void setRequester(Requester requester) {
+		this.requester = requester;
+		for (String path : sources.keySet())
+			requester.subscribe(path, updateHandler);
+	}
+
+	/*
+	 * Binds the point to the path, replacing any earlier binding, and writes
+	 * the path's last known value to it.
+	 */
+	synchronized void bind(LocalBacnetPoint point, String path, long minIntervalMillis) {
+		unbind(point);
+		Binding binding = new Binding(point, path, minIntervalMillis);
+		bindings.put(point, binding);
+		Source source = sources.get(path);
+		if (source == null) {
+			source = new Source();
+			sources.put(path, source);
+			if (requester != null)
+				requester.subscribe(path, updateHandler);
+		}
+		source.bindings.add(binding);
+		Value last = source.last;
+		if (last != null)
+			binding.update(last);
+	}
+
+	synchronized void unbind(LocalBacnetPoint point) {
+		Binding binding = bindings.remove(point);
+		if (binding == null)
+			return;
+		binding.cancel();
+		Source source = sources.get(binding.path);
+		if (source == null)
+			return;
+		source.bindings.remove(binding);
+		if (source.bindings.isEmpty()) {
+			sources.remove(binding.path);
+			if (requester != null)
+				requester.unsubscribe(binding.path, (Handler<UnsubscribeResponse>) null);
+		}
+	}
+
+	/*
+	 * Unbinds every point under the node at parentPath, for when a folder or
+	 * connection is removed.
+	 */
+	synchronized void unbindAll(String parentPath) {
+		String prefix = parentPath + "/";
+		for (LocalBacnetPoint point : new ArrayList<LocalBacnetPoint>(bindings.keySet())) {
+			if (point.getNode().getPath().startsWith(prefix))
+				unbind(point);
+		}
+	}
+
+	private class UpdateHandler implements Handler<SubscriptionValue> {
+		public void handle(SubscriptionValue event) {
+			Value value = event.getValue();
+			Source source = sources.get(event.getPath());
+			if (source == null || value == null)
+				return;
+			source.last = value;
+			for (Binding binding : source.bindings)
+				binding.update(value);
+		}
+	}
+
+	private static class Source {
+		final Set<Binding> bindings = new CopyOnWriteArraySet<Binding>();
+		volatile Value last = null;
+	}
+
+	private static class Binding {
+		final LocalBacnetPoint point;
+		final String path;
+		final long minIntervalMillis;
+		private Encodable lastWritten = null;
+		private long lastWriteTime = 0;
+		private Encodable pending = null;
+		private ScheduledFuture<?> flushFuture = null;
+		private boolean cancelled = false;
+
+		Binding(LocalBacnetPoint point, String path, long minIntervalMillis) {
+			this.point = point;
+			this.path = path;
+			this.minIntervalMillis = Math.max(0, minIntervalMillis);
+		}
+
+		synchronized void update(Value value) {
+			if (cancelled)
+				return;
+			Encodable enc;
+			try {
+				enc = point.toPresentValue(value);
+			} catch (Exception e) {
+				LOGGER.debug("cannot convert value from " + path + " for " + point.getNode().getName());
+				return;
+			}
+			if (enc == null)
+				return;
+			if (flushFuture != null) {
+				// a write is already scheduled, it will pick this value up
+				pending = enc;
+				return;
+			}
+			if (enc.equals(lastWritten))
+				return;
+			long wait = lastWriteTime + minIntervalMillis - System.currentTimeMillis();
+			if (wait <= 0) {
+				write(enc);
+				return;
+			}
+			pending = enc;
+			flushFuture = Objects.getDaemonThreadPool().schedule(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, wait, TimeUnit.MILLISECONDS);
+		}
+
+		private synchronized void flush() {
+			flushFuture = null;
+			if (cancelled || pending == null)
+				return;
+			Encodable enc = pending;
+			pending = null;
+			if (!enc.equals(lastWritten))
+				write(enc);
+		}
+
+		private void write(Encodable enc) {
+			if (point.writeSourceValue(enc)) {
+				lastWritten = enc;
+				lastWriteTime = System.currentTimeMillis();
+			}
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			if (flushFuture != null) {
+				flushFuture.cancel(false);
+				flushFuture = null;
+			}
+		}
+	}
+}
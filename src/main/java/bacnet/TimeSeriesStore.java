@@ -0,0 +1,579 @@
+package bacnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.StringUtils;
+import org.dsa.iot.dslink.util.handler.CompleteHandler;
+import org.dsa.iot.historian.utils.QueryData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Disk-backed store of the samples a connection receives from polling and
+ * COV. Each series (one point's property) is a directory of append-only
+ * segment files. A segment is named by the timestamp of its first sample and
+ * is appended to through a FileChannel; when it is full a new one is started.
+ * At most MAX_OPEN_SERIES channels are open at once, and a series that has
+ * not been written for IDLE_MINUTES gives up its channel. Hourly maintenance
+ * rewrites sealed segments as CompressedSegments and drops segments older
+ * than the connection's retention period. A segment is sealed when it is full
+ * or, so that slow and COV-only series get compressed too, once it spans
+ * SEAL_HOURS.
+ */
+class TimeSeriesStore {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(TimeSeriesStore.class);
+	}
+
+	static final String HISTORY_DIR = "history";
+	static final int SEGMENT_SIZE = 1 << 20;
+	static final int DEFAULT_RETENTION_DAYS = 365;
+	private static final long MAINTENANCE_INTERVAL_MINUTES = 60;
+	static final int MAX_OPEN_SERIES = 256;
+	static final long IDLE_MINUTES = 10;
+	static final long SEAL_HOURS = 24;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int MAX_STRING_BYTES = 4096;
+	private static final byte TYPE_NUMBER = 1;
+	private static final byte TYPE_BOOL = 2;
+	private static final byte TYPE_STRING = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File dir;
+	// keyed by directory name
+	private final ConcurrentMap<String, Series> series = new ConcurrentHashMap<String, Series>();
+	// series holding an open channel
+	private final Set<Series> open = new HashSet<Series>();
+	// 0 keeps history forever
+	private volatile int retentionDays = DEFAULT_RETENTION_DAYS;
+	private ScheduledFuture<?> maintenanceFuture;
+	private ScheduledFuture<?> idleFuture;
+	// set by close(), after which appends are dropped so the directory is not
+	// recreated once moved or deleted
+	private volatile boolean closed = false;
+
+	TimeSeriesStore(String connName) {
+		this.dir = new File(HISTORY_DIR, StringUtils.encodeName(connName));
+		this.maintenanceFuture = Objects.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				maintain();
+			}
+		}, MAINTENANCE_INTERVAL_MINUTES, MAINTENANCE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+		this.idleFuture = Objects.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				closeIdle();
+			}
+		}, IDLE_MINUTES, IDLE_MINUTES, TimeUnit.MINUTES);
+	}
+
+	void setRetentionDays(int days) {
+		this.retentionDays = Math.max(0, days);
+	}
+
+	Series getSeries(String key) {
+		return getSeriesByDir(StringUtils.encodeName(key));
+	}
+
+	/*
+	 * Releases a series whose point is gone. Its samples stay on disk until
+	 * retention drops them.
+	 */
+	void closeSeries(String key) {
+		Series s = series.remove(StringUtils.encodeName(key));
+		if (s != null)
+			s.close();
+	}
+
+	private Series getSeriesByDir(String name) {
+		Series s = series.get(name);
+		if (s == null) {
+			Series created = new Series(this, new File(dir, name));
+			s = series.putIfAbsent(name, created);
+			if (s == null)
+				s = created;
+		}
+		return s;
+	}
+
+	/*
+	 * Compresses sealed segments and applies retention to every series on
+	 * disk, including ones no point has touched since startup.
+	 */
+	void maintain() {
+		File[] dirs = dir.listFiles();
+		if (dirs == null)
+			return;
+		long cutoff = retentionDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays)
+				: Long.MIN_VALUE;
+		for (File d : dirs) {
+			if (!d.isDirectory())
+				continue;
+			try {
+				getSeriesByDir(d.getName()).maintain(cutoff);
+			} catch (Exception e) {
+				LOGGER.debug("error: ", e);
+			}
+		}
+	}
+
+	/*
+	 * Flushes the open segments and stops maintenance.
+	 */
+	void close() {
+		closed = true;
+		if (maintenanceFuture != null) {
+			maintenanceFuture.cancel(false);
+			maintenanceFuture = null;
+		}
+		if (idleFuture != null) {
+			idleFuture.cancel(false);
+			idleFuture = null;
+		}
+		for (Series s : series.values())
+			s.close();
+		series.clear();
+	}
+
+	/*
+	 * Closes the store and hands its history to the connection's new name,
+	 * replacing whatever an earlier connection of that name left.
+	 */
+	void moveTo(String connName) {
+		close();
+		File target = new File(HISTORY_DIR, StringUtils.encodeName(connName));
+		if (!dir.exists() || target.equals(dir))
+			return;
+		deleteTree(target);
+		if (!dir.renameTo(target))
+			LOGGER.debug("could not move " + dir + " to " + target);
+	}
+
+	/*
+	 * Closes the store and deletes its history, for a removed connection.
+	 */
+	void delete() {
+		close();
+		deleteTree(dir);
+	}
+
+	private static void deleteTree(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children)
+				deleteTree(child);
+		}
+		if (!f.delete() && f.exists())
+			LOGGER.debug("could not delete " + f);
+	}
+
+	/*
+	 * Called by a series that opened its channel. If that makes too many, the
+	 * least recently written other series is closed.
+	 */
+	private void opened(Series s) {
+		Series victim = null;
+		synchronized (open) {
+			open.add(s);
+			if (open.size() <= MAX_OPEN_SERIES)
+				return;
+			for (Series o : open) {
+				if (o != s && (victim == null || o.lastWrite < victim.lastWrite))
+					victim = o;
+			}
+		}
+		// closed outside the set's lock, the victim takes its own lock
+		if (victim != null)
+			victim.close();
+	}
+
+	private void closed(Series s) {
+		synchronized (open) {
+			open.remove(s);
+		}
+	}
+
+	private void closeIdle() {
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(IDLE_MINUTES);
+		List<Series> idle = new ArrayList<Series>();
+		synchronized (open) {
+			for (Series s : open) {
+				if (s.lastWrite < cutoff)
+					idle.add(s);
+			}
+		}
+		for (Series s : idle)
+			s.close();
+	}
+
+	static class Series {
+		private final TimeSeriesStore store;
+		private final File dir;
+		// segment being appended to, null until the first append and while closed
+		private FileChannel active = null;
+		private long activeStart;
+		private long activeSize;
+		private volatile long lastWrite = 0;
+		// the newest sample, null until the first append
+		private Value lastValue = null;
+
+		Series(TimeSeriesStore store, File dir) {
+			this.store = store;
+			this.dir = dir;
+		}
+
+		void append(long ts, Value value) {
+			if (write(ts, value, false))
+				store.opened(this);
+		}
+
+		/*
+		 * As append(), but a value equal to the newest sample is not stored.
+		 */
+		void appendIfChanged(long ts, Value value) {
+			if (write(ts, value, true))
+				store.opened(this);
+		}
+
+		/*
+		 * Returns true if the series opened its channel.
+		 */
+		private synchronized boolean write(long ts, Value value, boolean skipUnchanged) {
+			if (ts <= 0 || value == null || store.closed)
+				return false;
+			boolean opened = false;
+			try {
+				if (active == null) {
+					openLastSegment();
+					opened = active != null;
+				}
+				if (skipUnchanged && lastValue != null && value.equals(lastValue))
+					return opened;
+				byte[] record = encode(ts, value);
+				if (active == null || activeSize + record.length > SEGMENT_SIZE) {
+					startSegment(ts);
+					opened = true;
+				}
+				ByteBuffer buf = ByteBuffer.wrap(record);
+				while (buf.hasRemaining())
+					active.write(buf, activeSize + buf.position());
+				activeSize += record.length;
+				lastValue = value;
+				lastWrite = System.currentTimeMillis();
+			} catch (IOException e) {
+				LOGGER.debug("error: ", e);
+			}
+			return opened;
+		}
+
+		synchronized void query(long from, long to, CompleteHandler<QueryData> handler) {
+			File[] segments = listSegments();
+			for (int i = 0; i < segments.length; i++) {
+				long start = segmentStart(segments[i]);
+				if (start > to)
+					break;
+				// the next segment starts before the range, so this one ends before it
+				if (i + 1 < segments.length && segmentStart(segments[i + 1]) <= from)
+					continue;
+				try {
+					scanAny(segments[i], from, to, handler);
+				} catch (IOException e) {
+					LOGGER.debug("error: ", e);
+				}
+			}
+		}
+
+		synchronized QueryData first() {
+			File[] segments = listSegments();
+			FirstHandler h = new FirstHandler();
+			for (File f : segments) {
+				try {
+					scanAny(f, Long.MIN_VALUE, Long.MAX_VALUE, h);
+				} catch (IOException e) {
+					LOGGER.debug("error: ", e);
+				}
+				if (h.first != null)
+					break;
+			}
+			return h.first;
+		}
+
+		synchronized QueryData last() {
+			File[] segments = listSegments();
+			LastHandler h = new LastHandler();
+			for (int i = segments.length - 1; i >= 0 && h.last == null; i--) {
+				try {
+					scanAny(segments[i], Long.MIN_VALUE, Long.MAX_VALUE, h);
+				} catch (IOException e) {
+					LOGGER.debug("error: ", e);
+				}
+			}
+			return h.last;
+		}
+
+		void close() {
+			synchronized (this) {
+				if (active == null)
+					return;
+				try {
+					active.close();
+				} catch (IOException e) {
+					LOGGER.debug("error: ", e);
+				}
+				active = null;
+			}
+			store.closed(this);
+		}
+
+		/*
+		 * Drops segments that end before the cutoff and compresses the sealed
+		 * raw segments: all but the last one, and the last one once it is
+		 * SEAL_HOURS old.
+		 */
+		synchronized void maintain(long cutoff) throws IOException {
+			File[] segments = listSegments();
+			for (int i = 0; i + 1 < segments.length; i++) {
+				File f = segments[i];
+				// a segment ends where the next one starts
+				if (segmentStart(segments[i + 1]) <= cutoff) {
+					if (!f.delete())
+						LOGGER.debug("could not delete " + f);
+					continue;
+				}
+				if (f.getName().endsWith(SEGMENT_SUFFIX))
+					compress(f);
+			}
+			if (segments.length == 0)
+				return;
+			File last = segments[segments.length - 1];
+			if (last.getName().endsWith(SEGMENT_SUFFIX)
+					&& System.currentTimeMillis() - segmentStart(last) >= TimeUnit.HOURS.toMillis(SEAL_HOURS)) {
+				// the next append starts a new segment
+				close();
+				compress(last);
+			}
+		}
+
+		private void compress(File f) throws IOException {
+			final List<QueryData> samples = new ArrayList<QueryData>();
+			scan(f, Long.MIN_VALUE, Long.MAX_VALUE, new CompleteHandler<QueryData>() {
+				public void handle(QueryData event) {
+					samples.add(event);
+				}
+
+				public void complete() {
+				}
+			});
+			String base = String.format("%020d", segmentStart(f));
+			File tmp = new File(dir, base + CompressedSegment.SUFFIX + ".tmp");
+			File out = new File(dir, base + CompressedSegment.SUFFIX);
+			if (!samples.isEmpty()) {
+				CompressedSegment.write(tmp, samples);
+				if (!tmp.renameTo(out))
+					throw new IOException("could not rename " + tmp);
+			}
+			if (!f.delete())
+				LOGGER.debug("could not delete " + f);
+		}
+
+		private File[] listSegments() {
+			File[] files = dir.listFiles();
+			if (files == null)
+				return new File[0];
+			List<File> segments = new ArrayList<File>();
+			for (File f : files) {
+				if (f.getName().endsWith(SEGMENT_SUFFIX) || f.getName().endsWith(CompressedSegment.SUFFIX))
+					segments.add(f);
+			}
+			File[] arr = segments.toArray(new File[segments.size()]);
+			// names are zero padded, so name order is time order
+			Arrays.sort(arr);
+			return arr;
+		}
+
+		/*
+		 * Reopens the newest raw segment for appending. Anything after its last
+		 * complete record, a record cut short by a crash or the zero padding of
+		 * segments written by older versions, is cut off.
+		 */
+		private void openLastSegment() throws IOException {
+			File[] segments = listSegments();
+			if (segments.length == 0)
+				return;
+			File last = segments[segments.length - 1];
+			activeStart = segmentStart(last);
+			// the newest segment has been compressed, so appends go to a new one
+			if (!last.getName().endsWith(SEGMENT_SUFFIX)) {
+				if (lastValue == null) {
+					LastHandler h = new LastHandler();
+					CompressedSegment.scan(last, Long.MIN_VALUE, Long.MAX_VALUE, h);
+					lastValue = h.last != null ? h.last.getValue() : null;
+				}
+				return;
+			}
+			ByteBuffer buf = read(last);
+			int end = 0;
+			int next;
+			while ((next = next(buf, end)) > 0) {
+				lastValue = decode(buf, end + 8);
+				end = next;
+			}
+			FileChannel ch = FileChannel.open(last.toPath(), StandardOpenOption.WRITE);
+			if (ch.size() > end)
+				ch.truncate(end);
+			active = ch;
+			activeSize = end;
+		}
+
+		private void startSegment(long ts) throws IOException {
+			if (active != null)
+				active.close();
+			active = null;
+			// never go back in time: a clock change must not reorder segments
+			long start = Math.max(ts, activeStart + 1);
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("could not create " + dir);
+			File f = new File(dir, String.format("%020d", start) + SEGMENT_SUFFIX);
+			active = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			activeSize = active.size();
+			activeStart = start;
+		}
+
+		private static ByteBuffer read(File f) throws IOException {
+			return ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+		}
+
+		private static long segmentStart(File f) {
+			String name = f.getName();
+			return Long.parseLong(name.substring(0, name.indexOf('.')));
+		}
+
+		private static void scanAny(File f, long from, long to, CompleteHandler<QueryData> handler)
+				throws IOException {
+			if (f.getName().endsWith(CompressedSegment.SUFFIX))
+				CompressedSegment.scan(f, from, to, handler);
+			else
+				scan(f, from, to, handler);
+		}
+
+		private static void scan(File f, long from, long to, CompleteHandler<QueryData> handler)
+				throws IOException {
+			ByteBuffer buf = read(f);
+			int pos = 0;
+			int next;
+			while ((next = next(buf, pos)) > 0) {
+				long ts = buf.getLong(pos);
+				if (ts > to)
+					break;
+				if (ts >= from)
+					handler.handle(new QueryData(decode(buf, pos + 8), ts));
+				pos = next;
+			}
+		}
+
+		/*
+		 * Returns the position after the record at pos, or -1 if there is no
+		 * complete record there.
+		 */
+		private static int next(ByteBuffer buf, int pos) {
+			if (pos + 9 > buf.limit() || buf.getLong(pos) == 0)
+				return -1;
+			int end;
+			switch (buf.get(pos + 8)) {
+			case TYPE_NUMBER:
+				end = pos + 9 + 8;
+				break;
+			case TYPE_BOOL:
+				end = pos + 9 + 1;
+				break;
+			case TYPE_STRING:
+				if (pos + 11 > buf.limit())
+					return -1;
+				end = pos + 9 + 2 + (buf.getShort(pos + 9) & 0xffff);
+				break;
+			default:
+				return -1;
+			}
+			return end <= buf.limit() ? end : -1;
+		}
+
+		private static Value decode(ByteBuffer buf, int pos) {
+			byte type = buf.get(pos);
+			switch (type) {
+			case TYPE_NUMBER:
+				return new Value(buf.getDouble(pos + 1));
+			case TYPE_BOOL:
+				return new Value(buf.get(pos + 1) != 0);
+			default:
+				byte[] b = new byte[buf.getShort(pos + 1) & 0xffff];
+				for (int i = 0; i < b.length; i++)
+					b[i] = buf.get(pos + 3 + i);
+				return new Value(new String(b, UTF8));
+			}
+		}
+
+		/*
+		 * Layout: timestamp (8 bytes), type (1 byte), then a double, a byte, or
+		 * a length-prefixed UTF-8 string.
+		 */
+		private static byte[] encode(long ts, Value value) {
+			ByteBuffer buf;
+			if (value.getType() == ValueType.NUMBER && value.getNumber() != null) {
+				buf = ByteBuffer.allocate(17);
+				buf.putLong(ts).put(TYPE_NUMBER).putDouble(value.getNumber().doubleValue());
+			} else if (value.getType().compare(ValueType.BOOL) && value.getBool() != null) {
+				buf = ByteBuffer.allocate(10);
+				buf.putLong(ts).put(TYPE_BOOL).put((byte) (value.getBool() ? 1 : 0));
+			} else {
+				String str = value.getString() != null ? value.getString() : value.toString();
+				byte[] s = str.getBytes(UTF8);
+				int len = Math.min(s.length, MAX_STRING_BYTES);
+				buf = ByteBuffer.allocate(11 + len);
+				buf.putLong(ts).put(TYPE_STRING).putShort((short) len).put(s, 0, len);
+			}
+			return buf.array();
+		}
+	}
+
+	private static class FirstHandler implements CompleteHandler<QueryData> {
+		QueryData first;
+
+		public void handle(QueryData event) {
+			if (first == null)
+				first = event;
+		}
+
+		public void complete() {
+		}
+	}
+
+	private static class LastHandler implements CompleteHandler<QueryData> {
+		QueryData last;
+
+		public void handle(QueryData event) {
+			last = event;
+		}
+
+		public void complete() {
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.CompleteHandler;
+import org.dsa.iot.historian.utils.QueryData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadRangeAck;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.BySequenceNumber;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByTime;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.DateTime;
+import com.serotonin.bacnet4j.type.constructed.LogRecord;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Real;
+import com.serotonin.bacnet4j.type.primitive.SignedInteger;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import com.serotonin.bacnet4j.util.RequestUtils;
+
+/*
+ * Keeps a local copy of a trend log's buffer in the connection's history
+ * store, so it survives restarts and is bounded by the store's retention
+ * rather than held on the heap. New records are pulled in pages using the
+ * log's sequence numbers as a cursor, so each sync only transfers what was
+ * logged since the last one. History queries are answered from the local
+ * copy, followed by the gap as it is synced.
+ */
+class TrendLogSync {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(TrendLogSync.class);
+	}
+
+	static final long SYNC_INTERVAL_SECONDS = 300;
+	// the resolution of a BACnet DateTime
+	private static final long HUNDREDTH = 10;
+	private static final Random random = new Random();
+
+	private final BacnetPoint point;
+	// null until the first sync or query
+	private TimeSeriesStore.Series log = null;
+	// sequence number of the newest local record, -1 if unknown
+	private long lastSequence = -1;
+	private long lastTimestamp = 0;
+	// local records stamped lastTimestamp, skipped when reading by time
+	private int atLastTimestamp = 0;
+	// set if the device does not report sequence numbers; syncs then go by time
+	private boolean byTimeOnly = false;
+	private ScheduledFuture<?> syncFuture = null;
+
+	TrendLogSync(BacnetPoint point) {
+		this.point = point;
+	}
+
+	/*
+	 * Starts background syncing. Start times are spread over the interval so
+	 * that many trend logs do not all sync at once.
+	 */
+	synchronized void start() {
+		if (syncFuture != null)
+			return;
+		long delay = (long) (random.nextDouble() * SYNC_INTERVAL_SECONDS);
+		syncFuture = point.folder.conn.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (!point.isInTree()) {
+					stop();
+					return;
+				}
+				try {
+					sync();
+				} catch (Exception e) {
+					LOGGER.debug("error: ", e);
+				}
+			}
+		}, delay, SYNC_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	synchronized void stop() {
+		if (syncFuture != null) {
+			syncFuture.cancel(false);
+			syncFuture = null;
+		}
+	}
+
+	/*
+	 * Pulls the records logged since the last sync.
+	 */
+	synchronized void sync() throws BACnetException {
+		sync(null);
+	}
+
+	/*
+	 * As sync(), handing each page of new records to the listener as it is
+	 * stored.
+	 */
+	private void sync(LogReader.PageHandler listener) throws BACnetException {
+		LocalDevice ld = point.folder.conn.localDevice;
+		RemoteDevice rd = point.folder.root.getRemoteDevice();
+		if (ld == null || rd == null)
+			return;
+		open();
+
+		boolean bySequence = !byTimeOnly && lastSequence >= 0;
+		if (bySequence) {
+			// one property read tells whether anything was logged since the last sync
+			Encodable enc = RequestUtils.readProperty(ld, rd, point.oid, PropertyIdentifier.totalRecordCount, null);
+			long total = ((UnsignedInteger) enc).longValue();
+			if (total == lastSequence)
+				return;
+			// the counter wrapped or the log was reset
+			if (total < lastSequence)
+				bySequence = false;
+		}
+
+		int pageSize = LogReader.pageSize(rd);
+		while (true) {
+			ReadRangeRequest request;
+			if (bySequence)
+				request = new ReadRangeRequest(point.oid, PropertyIdentifier.logBuffer, null,
+						new BySequenceNumber(new UnsignedInteger(lastSequence + 1), new SignedInteger(pageSize)));
+			else
+				// ByTime returns records strictly after the reference, so start one tick early
+				// and skip the records at lastTimestamp that are already stored
+				request = new ReadRangeRequest(point.oid, PropertyIdentifier.logBuffer, null, new ByTime(
+						new DateTime(Math.max(0, lastTimestamp - HUNDREDTH)), new SignedInteger(pageSize)));
+			ReadRangeAck ack = (ReadRangeAck) ld.send(rd, request).get();
+
+			List<LogRecord> items = new ArrayList<LogRecord>();
+			for (Encodable item : ack.getItemData())
+				items.add((LogRecord) item);
+			if (items.isEmpty()) {
+				// the records after the cursor may have been overwritten; catch up by time instead
+				if (bySequence) {
+					bySequence = false;
+					continue;
+				}
+				return;
+			}
+
+			List<LogRecord> fresh = new ArrayList<LogRecord>();
+			long since = lastTimestamp;
+			int skip = atLastTimestamp;
+			for (LogRecord record : items) {
+				long ts = record.getTimestamp().getGC().getTimeInMillis();
+				if (!bySequence && ts <= since && (ts < since || skip-- > 0))
+					continue;
+				append(ts, record);
+				fresh.add(record);
+			}
+			if (listener != null && !fresh.isEmpty())
+				listener.page(fresh);
+			if (!bySequence && fresh.isEmpty() && ack.getFirstSequenceNumber() == null) {
+				// a full page of records at one timestamp; time gives no way past it
+				LOGGER.debug("trend log " + point.oid + " cannot be paged past " + lastTimestamp);
+				return;
+			}
+			if (ack.getFirstSequenceNumber() != null) {
+				lastSequence = ack.getFirstSequenceNumber().longValue() + items.size() - 1;
+				bySequence = !byTimeOnly;
+			} else {
+				byTimeOnly = true;
+				bySequence = false;
+			}
+			if (!ack.getResultFlags().isMoreItems())
+				return;
+		}
+	}
+
+	/*
+	 * Picks up where the stored copy ends. The sequence number is not stored,
+	 * so the first sync after a restart goes by time.
+	 */
+	private void open() {
+		if (log != null)
+			return;
+		log = point.getLogSeries();
+		QueryData last = log.last();
+		if (last == null)
+			return;
+		lastTimestamp = last.getTimestamp();
+		final int[] count = new int[1];
+		log.query(lastTimestamp, lastTimestamp, new CompleteHandler<QueryData>() {
+			public void handle(QueryData event) {
+				count[0]++;
+			}
+
+			public void complete() {
+			}
+		});
+		atLastTimestamp = count[0];
+	}
+
+	private void append(long ts, LogRecord record) {
+		log.append(ts, toValue(record.getEncodable()));
+		if (ts > lastTimestamp) {
+			lastTimestamp = ts;
+			atLastTimestamp = 1;
+		} else if (ts == lastTimestamp) {
+			atLastTimestamp++;
+		}
+	}
+
+	/*
+	 * Hands the local records between from and to to the handler, then syncs
+	 * the gap since the last sync and hands over the new records in range a
+	 * page at a time as they arrive. If the device could not be reached only
+	 * the local records are returned.
+	 */
+	synchronized void query(final long from, final long to, final CompleteHandler<QueryData> handler) {
+		open();
+		log.query(from, to, handler);
+		try {
+			sync(new LogReader.PageHandler() {
+				public void page(List<LogRecord> page) {
+					for (LogRecord record : page) {
+						long ts = record.getTimestamp().getGC().getTimeInMillis();
+						if (ts >= from && ts <= to)
+							handler.handle(new QueryData(toValue(record.getEncodable()), ts));
+					}
+				}
+			});
+		} catch (Exception e) {
+			LOGGER.debug("error: ", e);
+		}
+	}
+
+	static Value toValue(Encodable enc) {
+		if (enc instanceof com.serotonin.bacnet4j.type.primitive.Boolean) {
+			return new Value(((com.serotonin.bacnet4j.type.primitive.Boolean) enc).booleanValue());
+		} else if (enc instanceof Real) {
+			return new Value(((Real) enc).floatValue());
+		} else if (enc instanceof UnsignedInteger) {
+			return new Value(((UnsignedInteger) enc).bigIntegerValue());
+		} else if (enc instanceof SignedInteger) {
+			return new Value(((SignedInteger) enc).bigIntegerValue());
+		} else {
+			return new Value(enc.toString());
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.Abort;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.apdu.Reject;
+import com.serotonin.bacnet4j.exception.AbortAPDUException;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.exception.ErrorAPDUException;
+import com.serotonin.bacnet4j.exception.RejectAPDUException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.service.confirmed.WritePropertyMultipleRequest;
+import com.serotonin.bacnet4j.service.confirmed.WritePropertyRequest;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.PropertyValue;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.constructed.WriteAccessSpecification;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+/*
+ * Collects the writes aimed at one device for a short window and sends them
+ * as WritePropertyMultiple requests that each fit in a single APDU. Every
+ * write reports its own result. If a batch fails, or the device does not
+ * support WritePropertyMultiple, its writes are sent one by one.
+ */
+class WriteBatcher {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(WriteBatcher.class);
+	}
+
+	// how long writes are collected before a batch is sent
+	static final long WINDOW_MILLIS = 50;
+	// confirmed request header plus service choice, with some slack
+	private static final int APDU_OVERHEAD = 8;
+
+	interface Callback {
+		/*
+		 * error is null if the write was acknowledged.
+		 */
+		void done(Exception error);
+	}
+
+	private final DeviceNode device;
+	private final List<Write> pending = new ArrayList<Write>();
+	private ScheduledFuture<?> flushFuture = null;
+	// set once the device rejected a WritePropertyMultiple
+	private volatile boolean wpmRejected = false;
+
+	WriteBatcher(DeviceNode device) {
+		this.device = device;
+	}
+
+	synchronized void submit(BacnetPoint point, int priority, Encodable value, Callback callback) {
+		pending.add(new Write(point, priority, value, callback));
+		if (flushFuture == null) {
+			flushFuture = device.getDaemonThreadPool().schedule(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush() {
+		List<Write> batch;
+		synchronized (this) {
+			batch = new ArrayList<Write>(pending);
+			pending.clear();
+			flushFuture = null;
+		}
+		RemoteDevice rd = device.getRemoteDevice();
+		LocalDevice ld = device.conn.localDevice;
+		if (rd == null || ld == null) {
+			for (Write w : batch)
+				complete(w, new BACnetException("device not connected"), 0);
+			return;
+		}
+		if (batch.size() == 1 || !supportsWpm(rd)) {
+			for (Write w : batch)
+				sendSingle(ld, rd, w);
+			return;
+		}
+
+		int budget = rd.getMaxAPDULengthAccepted() - APDU_OVERHEAD;
+		List<Write> part = new ArrayList<Write>();
+		int size = 0;
+		for (Write w : batch) {
+			int len = w.encodedLength();
+			if (!part.isEmpty() && size + len > budget) {
+				sendMultiple(ld, rd, part);
+				part = new ArrayList<Write>();
+				size = 0;
+			}
+			part.add(w);
+			size += len;
+		}
+		if (part.size() == 1)
+			sendSingle(ld, rd, part.get(0));
+		else if (!part.isEmpty())
+			sendMultiple(ld, rd, part);
+	}
+
+	private boolean supportsWpm(RemoteDevice rd) {
+		if (wpmRejected)
+			return false;
+		return rd.getServicesSupported() == null || rd.getServicesSupported().isWritePropertyMultiple();
+	}
+
+	private void sendSingle(LocalDevice ld, RemoteDevice rd, final Write w) {
+		w.sent();
+		send(ld, rd, w.toRequest(), new Completion() {
+			public void done(Exception error, long millis) {
+				complete(w, error, millis);
+			}
+		});
+	}
+
+	/*
+	 * Records the write in the connection's write latency histogram once,
+	 * from its first request to its final result, so a write retried singly
+	 * after a failed batch is not counted twice.
+	 */
+	private void complete(Write w, Exception error, long millis) {
+		if (w.firstSent != 0)
+			device.conn.writeLatency.record(System.currentTimeMillis() - w.firstSent, error != null);
+		w.point.writeCompleted(error, millis);
+		w.callback.done(error);
+	}
+
+	private void sendMultiple(final LocalDevice ld, final RemoteDevice rd, final List<Write> part) {
+		List<WriteAccessSpecification> specs = new ArrayList<WriteAccessSpecification>();
+		for (Write w : part) {
+			w.sent();
+			specs.add(w.toSpecification());
+		}
+		send(ld, rd, new WritePropertyMultipleRequest(new SequenceOf<WriteAccessSpecification>(specs)),
+				new Completion() {
+					public void done(Exception error, long millis) {
+						if (error == null) {
+							for (Write w : part)
+								complete(w, null, millis);
+							return;
+						}
+						if (error instanceof RejectAPDUException)
+							wpmRejected = true;
+						// the error only names the first failed write, so find out exactly which ones failed
+						LOGGER.debug("WritePropertyMultiple of " + part.size() + " writes failed, writing singly",
+								error);
+						for (Write w : part)
+							sendSingle(ld, rd, w);
+					}
+				});
+	}
+
+	/*
+	 * Sends a request without blocking. The completion is told the result and
+	 * the round-trip time.
+	 */
+	private void send(LocalDevice ld, RemoteDevice rd, ConfirmedRequestService request, Completion completion) {
+		TimedConsumer consumer = new TimedConsumer(completion);
+		try {
+			ld.send(rd, request, consumer);
+		} catch (Exception e) {
+			consumer.finish(e);
+		}
+	}
+
+	private interface Completion {
+		void done(Exception error, long millis);
+	}
+
+	private static class TimedConsumer implements ResponseConsumer {
+		private final long start = System.currentTimeMillis();
+		private final Completion completion;
+
+		TimedConsumer(Completion completion) {
+			this.completion = completion;
+		}
+
+		public void success(AcknowledgementService ack) {
+			finish(null);
+		}
+
+		public void fail(AckAPDU ack) {
+			if (ack instanceof com.serotonin.bacnet4j.apdu.Error)
+				finish(new ErrorAPDUException((com.serotonin.bacnet4j.apdu.Error) ack));
+			else if (ack instanceof Reject)
+				finish(new RejectAPDUException((Reject) ack));
+			else if (ack instanceof Abort)
+				finish(new AbortAPDUException((Abort) ack));
+			else
+				finish(new BACnetException(String.valueOf(ack)));
+		}
+
+		public void ex(BACnetException e) {
+			finish(e);
+		}
+
+		void finish(Exception error) {
+			long millis = System.currentTimeMillis() - start;
+			completion.done(error, millis);
+		}
+	}
+
+	private static class Write {
+		final BacnetPoint point;
+		final int priority;
+		final Encodable value;
+		final Callback callback;
+		// when the first request carrying this write went out, 0 before that
+		long firstSent = 0;
+
+		Write(BacnetPoint point, int priority, Encodable value, Callback callback) {
+			this.point = point;
+			this.priority = priority;
+			this.value = value;
+			this.callback = callback;
+		}
+
+		void sent() {
+			if (firstSent == 0)
+				firstSent = System.currentTimeMillis();
+		}
+
+		WritePropertyRequest toRequest() {
+			return new WritePropertyRequest(point.oid, point.getPropertyIdentifier(), null, value,
+					new UnsignedInteger(priority));
+		}
+
+		WriteAccessSpecification toSpecification() {
+			PropertyValue pv = new PropertyValue(point.getPropertyIdentifier(), null, value,
+					new UnsignedInteger(priority));
+			return new WriteAccessSpecification(point.oid, new SequenceOf<PropertyValue>(pv));
+		}
+
+		int encodedLength() {
+			ByteQueue queue = new ByteQueue();
+			toSpecification().write(queue);
+			return queue.size();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package bacnet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import com.serotonin.bacnet4j.exception.AbortAPDUException;
+import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
+import com.serotonin.bacnet4j.exception.ErrorAPDUException;
+import com.serotonin.bacnet4j.exception.RejectAPDUException;
+
+/*
+ * Histogram of write round-trip times for a connection, published on the
+ * connection as a map of bucket upper bounds to counts, so that timeouts
+ * can be sized from what the devices actually do.
+ */
+class WriteLatency {
+	static final String NODE_WRITE_LATENCY = "WRITE LATENCY";
+	// upper bounds of the buckets in milliseconds; the last bucket is open
+	private static final long[] BOUNDS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+	private static final long PUBLISH_DELAY_MILLIS = 1000;
+
+	private final Node latencyNode;
+	private final long[] counts = new long[BOUNDS.length + 1];
+	private long writes;
+	private long failures;
+	private long totalMillis;
+	private long maxMillis;
+	private boolean publishScheduled;
+
+	WriteLatency(Node connNode) {
+		Node n = connNode.getChild(NODE_WRITE_LATENCY, true);
+		if (n == null) {
+			n = connNode.createChild(NODE_WRITE_LATENCY, true).setValueType(ValueType.MAP).build();
+		}
+		n.setSerializable(false);
+		this.latencyNode = n;
+		publish();
+	}
+
+	synchronized void record(long millis, boolean failed) {
+		int i = 0;
+		while (i < BOUNDS.length && millis > BOUNDS[i])
+			i++;
+		counts[i]++;
+		writes++;
+		if (failed)
+			failures++;
+		totalMillis += millis;
+		maxMillis = Math.max(maxMillis, millis);
+		// a burst of writes is published once
+		if (!publishScheduled) {
+			publishScheduled = true;
+			Objects.getDaemonThreadPool().schedule(new Runnable() {
+				public void run() {
+					publish();
+				}
+			}, PUBLISH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void publish() {
+		publishScheduled = false;
+		JsonObject buckets = new JsonObject();
+		for (int i = 0; i < BOUNDS.length; i++)
+			buckets.put("<=" + BOUNDS[i], counts[i]);
+		buckets.put(">" + BOUNDS[BOUNDS.length - 1], counts[BOUNDS.length]);
+		JsonObject jo = new JsonObject();
+		jo.put("writes", writes);
+		jo.put("failures", failures);
+		jo.put("mean", writes > 0 ? totalMillis / writes : 0);
+		jo.put("max", maxMillis);
+		jo.put("buckets", buckets);
+		latencyNode.setValue(new Value(jo));
+	}
+
+	/*
+	 * A short name for the kind of failure, e.g. "error: property/unknownProperty",
+	 * "reject: ...", "abort: ..." or "timeout".
+	 */
+	static String errorClass(Exception e) {
+		if (e == null)
+			return "";
+		if (e instanceof ErrorAPDUException) {
+			ErrorAPDUException ee = (ErrorAPDUException) e;
+			if (ee.getBACnetError() != null)
+				return "error: " + ee.getBACnetError().getErrorClass() + "/" + ee.getBACnetError().getErrorCode();
+			return "error";
+		}
+		if (e instanceof RejectAPDUException)
+			return "reject: " + ((RejectAPDUException) e).getApdu().getRejectReason();
+		if (e instanceof AbortAPDUException)
+			return "abort: " + ((AbortAPDUException) e).getApdu().getAbortReason();
+		if (e instanceof BACnetTimeoutException)
+			return "timeout";
+		return e.getClass().getSimpleName();
+	}
+}
@@ -0,0 +1,156 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.serotonin.bacnet4j.type.Encodable;
+
+/*
+ * Serializes the writes of one point. Pending writes collapse to the latest
+ * value per priority, at most one write is on the wire at a time, and the
+ * priority array is read back once after the burst has settled instead of
+ * after every write. Writes go through the device's WriteBatcher so that
+ * writes to different points of one device can share a request.
+ */
+class WriteQueue {
+	private static final Logger LOGGER;
+
+	static {
+		LOGGER = LoggerFactory.getLogger(WriteQueue.class);
+	}
+
+	// quiet time after the last write before the priority array is refreshed
+	static final long SETTLE_MILLIS = 500;
+
+	private final BacnetPoint point;
+	// priority -> latest value, in order of first arrival
+	private final Map<Integer, Pending> pending = new LinkedHashMap<Integer, Pending>();
+	private boolean draining = false;
+	private boolean cancelled = false;
+	private ScheduledFuture<?> refreshFuture = null;
+
+	WriteQueue(BacnetPoint point) {
+		this.point = point;
+	}
+
+	synchronized void enqueue(int priority, Encodable value) {
+		enqueue(priority, value, null);
+	}
+
+	/*
+	 * The callback is told the result of the write that carries this value,
+	 * or of the later write at the same priority that replaced it.
+	 */
+	synchronized void enqueue(int priority, Encodable value, WriteBatcher.Callback callback) {
+		if (cancelled) {
+			if (callback != null)
+				callback.done(new IllegalStateException("point removed"));
+			return;
+		}
+		Pending p = pending.get(priority);
+		if (p == null) {
+			p = new Pending();
+			pending.put(priority, p);
+		}
+		p.value = value;
+		if (callback != null)
+			p.callbacks.add(callback);
+		if (refreshFuture != null) {
+			refreshFuture.cancel(false);
+			refreshFuture = null;
+		}
+		if (!draining) {
+			draining = true;
+			sendNext();
+		}
+	}
+
+	/*
+	 * Hands the next pending write to the device's WriteBatcher, which calls
+	 * back when it has been acknowledged or has failed.
+	 */
+	private void sendNext() {
+		int priority;
+		final Pending p;
+		synchronized (this) {
+			Iterator<Map.Entry<Integer, Pending>> it = pending.entrySet().iterator();
+			if (!it.hasNext()) {
+				draining = false;
+				scheduleRefresh();
+				return;
+			}
+			Map.Entry<Integer, Pending> entry = it.next();
+			it.remove();
+			priority = entry.getKey();
+			p = entry.getValue();
+		}
+		point.folder.root.getWriteBatcher().submit(point, priority, p.value, new WriteBatcher.Callback() {
+			public void done(Exception error) {
+				finished(p, error);
+			}
+		});
+	}
+
+	private void finished(Pending p, Exception error) {
+		if (error != null)
+			LOGGER.debug("error: ", error);
+		for (WriteBatcher.Callback callback : p.callbacks) {
+			try {
+				callback.done(error);
+			} catch (Exception e) {
+				LOGGER.debug("error: ", e);
+			}
+		}
+		sendNext();
+	}
+
+	/*
+	 * Called when the point is removed. Pending writes are dropped and their
+	 * callbacks fail; a write already on the wire completes as usual.
+	 */
+	void cancel() {
+		List<Pending> dropped;
+		synchronized (this) {
+			cancelled = true;
+			dropped = new ArrayList<Pending>(pending.values());
+			pending.clear();
+			if (refreshFuture != null) {
+				refreshFuture.cancel(false);
+				refreshFuture = null;
+			}
+		}
+		Exception error = new IllegalStateException("point removed");
+		for (Pending p : dropped) {
+			for (WriteBatcher.Callback callback : p.callbacks) {
+				try {
+					callback.done(error);
+				} catch (Exception e) {
+					LOGGER.debug("error: ", e);
+				}
+			}
+		}
+	}
+
+	private void scheduleRefresh() {
+		if (cancelled)
+			return;
+		refreshFuture = point.folder.root.getDaemonThreadPool().schedule(new Runnable() {
+			public void run() {
+				point.refreshPriorities();
+			}
+		}, SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private static class Pending {
+		Encodable value;
+		final List<WriteBatcher.Callback> callbacks = new ArrayList<WriteBatcher.Callback>();
+	}
+}
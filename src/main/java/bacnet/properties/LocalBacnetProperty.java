@@ -1,6 +1,7 @@
 package bacnet.properties;
 
 import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +46,21 @@ public abstract class LocalBacnetProperty {
 
 	}
 
+	/*
+	 * Writes a value to the property as if it had been set on its node.
+	 */
+	public void set(Value newVal) {
+
+	}
+
+	/*
+	 * Shows the value on the property's node and writes it to the property.
+	 */
+	public void apply(Value newVal) {
+		node.setValue(newVal);
+		set(newVal);
+	}
+
 	public abstract void updatePropertyValue(Encodable enc);
 
 }
@@ -40,10 +40,12 @@ public class LocalCharacterStringProperty extends LocalBacnetProperty {
 				return;
 			Value newVal = event.getCurrent();
 			set(newVal);
+			bacnetPoint.propertyEdited(propertyId, newVal);
 
 		}
 	}
 
+	@Override
 	public void set(Value newVal) {
 		String str = newVal.getString();
 
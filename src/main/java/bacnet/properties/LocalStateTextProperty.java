@@ -44,9 +44,11 @@ public class LocalStateTextProperty extends LocalBacnetProperty {
 				return;
 			Value newVal = event.getCurrent();
 			set(newVal);
+			bacnetPoint.propertyEdited(propertyId, newVal);
 		}
 	}
 
+	@Override
 	public void set(Value newVal) {
 		JsonArray jsonArray = newVal.getArray();
 
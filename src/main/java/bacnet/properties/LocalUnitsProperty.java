@@ -59,12 +59,21 @@ public class LocalUnitsProperty extends LocalBacnetProperty {
 			if (!event.isFromExternalSource())
 				return;
 			Value newVal = event.getCurrent();
-			units = parseEngineeringUnits(newVal.getString());
-			bacnetObj.writeProperty(propertyId, units);
-			node.setAttribute(propertyId.toString(), newVal);
+			set(newVal);
+			bacnetPoint.propertyEdited(propertyId, newVal);
 		}
 	}
 
+	@Override
+	public void set(Value newVal) {
+		EngineeringUnits parsed = parseEngineeringUnits(newVal.getString());
+		if (parsed == null)
+			return;
+		units = parsed;
+		bacnetObj.writeProperty(propertyId, units);
+		node.setAttribute(propertyId.toString(), newVal);
+	}
+
 	protected EngineeringUnits parseEngineeringUnits(String unitsString) {
 
 		for (EngineeringUnits unit : EngineeringUnits.ALL) {
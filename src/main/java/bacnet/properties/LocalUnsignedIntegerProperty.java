@@ -53,6 +53,7 @@ public class LocalUnsignedIntegerProperty extends LocalBacnetProperty {
 		}
 	}
 
+	@Override
 	public void set(Value newVal) {
 		Number num = newVal.getNumber();
 		String str = newVal.getString();
@@ -0,0 +1,184 @@
+package bacnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+
+public class BulkWriteTest {
+
+	private Node node;
+	private DeviceFolder device;
+	private Table table;
+	private TestPoint av3;
+	private TestPoint bv1;
+
+	@Before
+	public void setUp() {
+		node = new Node("device", null, null);
+		device = new DeviceFolder(null, node);
+		device.root = device;
+		table = new Table();
+		av3 = addPoint(node, "AV3", new ObjectIdentifier(ObjectType.analogValue, 3));
+		Node folder = node.createChild("folder", true).build();
+		bv1 = addPoint(folder, "BV1", new ObjectIdentifier(ObjectType.binaryValue, 1));
+	}
+
+	private TestPoint addPoint(Node parent, String name, ObjectIdentifier oid) {
+		TestPoint point = new TestPoint(device, parent, oid);
+		parent.createChild(name, true).build().setMetaData(point);
+		return point;
+	}
+
+	@Test
+	public void parsesJsonObjectsAndArrays() {
+		BulkWrite bulk = new BulkWrite(device, table, 4);
+		bulk.parse("[{\"point\": \"AV3\", \"value\": 1.5, \"priority\": 9}, [\"folder/BV1\", \"active\"]]");
+		bulk.start();
+
+		assertEquals(1, av3.writes.size());
+		assertEquals(1.5, av3.writes.get(0).value.getNumber().doubleValue(), 0);
+		assertEquals(9, av3.writes.get(0).priority);
+		assertEquals(1, bv1.writes.size());
+		assertEquals("active", bv1.writes.get(0).value.getString());
+		// no priority given, so the point's default
+		assertEquals(8, bv1.writes.get(0).priority);
+		assertEquals(2, table.getRows().size());
+		assertEquals("ok", status(0));
+		assertEquals("ok", status(1));
+	}
+
+	@Test
+	public void parsesCsvAndResolvesPointsByPathOrObjectIdentifier() {
+		BulkWrite bulk = new BulkWrite(device, table, 4);
+		bulk.parse("/device/folder/BV1, 1, 16\r\n\nAnalog Value:3,2,\nBinary Value 1,0\nnowhere,1\n");
+		bulk.start();
+
+		assertEquals(2, bv1.writes.size());
+		assertEquals("1", bv1.writes.get(0).value.getString());
+		assertEquals(16, bv1.writes.get(0).priority);
+		assertEquals("0", bv1.writes.get(1).value.getString());
+		assertEquals(1, av3.writes.size());
+		assertEquals("2", av3.writes.get(0).value.getString());
+		assertEquals(4, table.getRows().size());
+		assertEquals("failed", status(3));
+		assertEquals("no such point", message(3));
+	}
+
+	@Test
+	public void rejectsBadRowsWithoutWriting() {
+		BulkWrite bulk = new BulkWrite(device, table, 4);
+		bulk.parse("[[\"AV3\", 1, 17], [\"AV3\"]]");
+		bulk.start();
+
+		assertEquals(0, av3.writes.size());
+		assertEquals(2, table.getRows().size());
+		assertEquals("priority must be between 1 and 16", message(0));
+		assertEquals("missing value", message(1));
+	}
+
+	@Test
+	public void boundsWritesInFlight() {
+		av3.deferred = true;
+		BulkWrite bulk = new BulkWrite(device, table, 2);
+		bulk.parse("AV3,1,1\nAV3,2,2\nAV3,3,3\nAV3,4,4\nAV3,5,5\n");
+		bulk.start();
+
+		assertEquals(2, av3.writes.size());
+		assertEquals(0, table.getRows().size());
+
+		av3.complete(0, null);
+		assertEquals(3, av3.writes.size());
+		assertEquals(1, table.getRows().size());
+
+		av3.complete(2, new Exception("timeout"));
+		av3.complete(1, null);
+		assertEquals(5, av3.writes.size());
+		av3.complete(3, null);
+		av3.complete(4, null);
+
+		assertEquals(5, table.getRows().size());
+		assertEquals(2, av3.maxOutstanding);
+		assertEquals("failed", status(1));
+		assertEquals("timeout", message(1));
+	}
+
+	@Test
+	public void cancelStopsQueuedRows() {
+		av3.deferred = true;
+		BulkWrite bulk = new BulkWrite(device, table, 1);
+		bulk.parse("AV3,1\nAV3,2\nAV3,3\n");
+		bulk.start();
+		bulk.cancel();
+		av3.complete(0, null);
+
+		assertEquals(1, av3.writes.size());
+		assertEquals(1, table.getRows().size());
+		assertTrue(av3.outstanding == 0);
+	}
+
+	private String status(int row) {
+		return column(row, 3);
+	}
+
+	private String message(int row) {
+		return column(row, 4);
+	}
+
+	private String column(int row, int col) {
+		Row r = table.getRows().get(row);
+		return r.getValues().get(col).getString();
+	}
+
+	private static class Write {
+		final Value value;
+		final int priority;
+		final WriteBatcher.Callback callback;
+
+		Write(Value value, int priority, WriteBatcher.Callback callback) {
+			this.value = value;
+			this.priority = priority;
+			this.callback = callback;
+		}
+	}
+
+	/*
+	 * Records writes instead of sending them. Deferred writes complete when
+	 * the test says so, immediate ones complete inside set().
+	 */
+	private static class TestPoint extends BacnetPoint {
+		final List<Write> writes = new ArrayList<Write>();
+		boolean deferred = false;
+		int outstanding = 0;
+		int maxOutstanding = 0;
+
+		TestPoint(DeviceFolder folder, Node parent, ObjectIdentifier oid) {
+			super(folder, parent, oid);
+		}
+
+		@Override
+		void set(Value newval, int priority, WriteBatcher.Callback callback) {
+			writes.add(new Write(newval, priority, callback));
+			outstanding++;
+			maxOutstanding = Math.max(maxOutstanding, outstanding);
+			if (!deferred)
+				complete(writes.size() - 1, null);
+		}
+
+		void complete(int index, Exception error) {
+			outstanding--;
+			writes.get(index).callback.done(error);
+		}
+	}
+}
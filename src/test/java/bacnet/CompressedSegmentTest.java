@@ -0,0 +1,153 @@
+package bacnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.CompleteHandler;
+import org.dsa.iot.historian.utils.QueryData;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressedSegmentTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void roundTripsSpecialNumbers() throws IOException {
+		double[] values = { 0.0, -0.0, 0.0, Double.NaN, Double.NaN, 1.5, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, 21.3, 21.3, 21.4,
+				-0.0, 1e-300, 42 };
+		List<QueryData> samples = new ArrayList<QueryData>();
+		long ts = 1500000000000L;
+		for (double v : values) {
+			samples.add(new QueryData(new Value(v), ts));
+			ts += 5000;
+		}
+		assertSame(samples, roundTrip(samples));
+	}
+
+	@Test
+	public void roundTripsNonMonotonicTimestamps() throws IOException {
+		long[] times = { 1000, 2000, 3000, 2500, 2500, 2500, 0, 1L << 40, 5, 5, 6, -7, Long.MAX_VALUE / 4, 1000,
+				1001, 3049, 3050, 1000 };
+		List<QueryData> samples = new ArrayList<QueryData>();
+		for (int i = 0; i < times.length; i++)
+			samples.add(new QueryData(new Value(i * 0.25), times[i]));
+		assertSame(samples, roundTrip(samples));
+	}
+
+	@Test
+	public void roundTripsDeltaOfDeltaWidths() throws IOException {
+		// deltas of delta around each of the encoder's width limits
+		long[] dods = { 0, 1, -1, 63, 64, 65, -63, -64, 255, 256, 257, -255, -256, 2047, 2048, 2049, -2047, -2048,
+				1 << 20, -(1 << 20) };
+		List<QueryData> samples = new ArrayList<QueryData>();
+		long ts = 1500000000000L;
+		long delta = 10000;
+		samples.add(new QueryData(new Value(1), ts));
+		for (long dod : dods) {
+			delta += dod;
+			ts += delta;
+			samples.add(new QueryData(new Value(1), ts));
+		}
+		assertSame(samples, roundTrip(samples));
+	}
+
+	@Test
+	public void roundTripsMixedTypes() throws IOException {
+		List<QueryData> samples = new ArrayList<QueryData>();
+		long ts = 1500000000000L;
+		samples.add(new QueryData(new Value(1.0), ts++));
+		samples.add(new QueryData(new Value(true), ts++));
+		samples.add(new QueryData(new Value(true), ts++));
+		samples.add(new QueryData(new Value(false), ts++));
+		samples.add(new QueryData(new Value("auto"), ts++));
+		samples.add(new QueryData(new Value("auto"), ts++));
+		samples.add(new QueryData(new Value(""), ts++));
+		samples.add(new QueryData(new Value(2.0), ts++));
+		samples.add(new QueryData(new Value(3.0), ts++));
+		samples.add(new QueryData(new Value(false), ts++));
+		assertSame(samples, roundTrip(samples));
+	}
+
+	@Test
+	public void rangeScansIncludeBlockBoundaries() throws IOException {
+		// three blocks: numbers at 0..9, booleans at 10..19, numbers at 20..29
+		List<QueryData> samples = new ArrayList<QueryData>();
+		for (int i = 0; i < 30; i++) {
+			long ts = 1000 + i * 100;
+			Value v = i >= 10 && i < 20 ? new Value(i % 3 == 0) : new Value(i * 1.5);
+			samples.add(new QueryData(v, ts));
+		}
+		File f = write(samples);
+
+		assertSame(samples.subList(9, 21), scan(f, 1900, 3000));
+		assertSame(samples.subList(10, 20), scan(f, 2000, 2900));
+		assertSame(samples.subList(0, 1), scan(f, 1000, 1000));
+		assertSame(samples.subList(29, 30), scan(f, 3900, 5000));
+		assertSame(samples.subList(12, 13), scan(f, 2150, 2250));
+		assertTrue(scan(f, 0, 999).isEmpty());
+		assertTrue(scan(f, 3901, 9999).isEmpty());
+		assertTrue(scan(f, 1950, 1999).isEmpty());
+	}
+
+	@Test
+	public void singleSampleSegment() throws IOException {
+		List<QueryData> samples = new ArrayList<QueryData>();
+		samples.add(new QueryData(new Value(-0.0), 1500000000000L));
+		assertSame(samples, roundTrip(samples));
+	}
+
+	private List<QueryData> roundTrip(List<QueryData> samples) throws IOException {
+		return scan(write(samples), Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	private File write(List<QueryData> samples) throws IOException {
+		File f = tmp.newFile("segment" + CompressedSegment.SUFFIX);
+		CompressedSegment.write(f, samples);
+		return f;
+	}
+
+	private static List<QueryData> scan(File f, long from, long to) throws IOException {
+		final List<QueryData> out = new ArrayList<QueryData>();
+		CompressedSegment.scan(f, from, to, new CompleteHandler<QueryData>() {
+			public void handle(QueryData event) {
+				out.add(event);
+			}
+
+			public void complete() {
+			}
+		});
+		return out;
+	}
+
+	private static void assertSame(List<QueryData> expected, List<QueryData> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			QueryData e = expected.get(i);
+			QueryData a = actual.get(i);
+			assertEquals("timestamp of sample " + i, e.getTimestamp(), a.getTimestamp());
+			Value ev = e.getValue();
+			Value av = a.getValue();
+			if (ev.getType() == ValueType.NUMBER) {
+				assertEquals("type of sample " + i, ValueType.NUMBER, av.getType());
+				// bit for bit, so that -0.0 and NaN are checked too
+				assertEquals("value of sample " + i, Double.doubleToRawLongBits(ev.getNumber().doubleValue()),
+						Double.doubleToRawLongBits(av.getNumber().doubleValue()));
+			} else if (ev.getType().compare(ValueType.BOOL)) {
+				assertEquals("value of sample " + i, ev.getBool(), av.getBool());
+			} else {
+				assertEquals("value of sample " + i, ev.getString(), av.getString());
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package bacnet;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.junit.Test;
+
+public class DeviceFolderTest {
+
+	@Test
+	public void restoreKeepsDeviceValueNodes() {
+		Node node = new Node("device", null, null);
+		final Node status = node.createChild("STATUS", true).setValueType(ValueType.STRING)
+				.setValue(new Value("enabled")).build();
+		final Node events = node.createChild("EVENTS", true).setValueType(ValueType.ARRAY)
+				.setValue(new Value(new JsonArray())).build();
+		final Node lastEvent = node.createChild(EventBuffer.NODE_LAST_EVENT, true).setValueType(ValueType.MAP)
+				.setValue(new Value(new JsonObject())).build();
+		node.createChild("leftover", true).build();
+
+		// stands in for the DeviceNode, which is built with the same children
+		DeviceFolder device = new DeviceFolder(null, node) {
+			@Override
+			public Node getStatusNode() {
+				return status;
+			}
+
+			@Override
+			public Node getEventNode() {
+				return events;
+			}
+
+			@Override
+			public Node getLastEventNode() {
+				return lastEvent;
+			}
+		};
+		device.root = device;
+		device.restoreLastSession();
+
+		assertSame(status, node.getChild("STATUS", true));
+		assertSame(events, node.getChild("EVENTS", true));
+		assertSame(lastEvent, node.getChild(EventBuffer.NODE_LAST_EVENT, true));
+		assertNotNull(node.getChild("remove", true));
+		assertNull(node.getChild("leftover", true));
+	}
+}
@@ -0,0 +1,100 @@
+package bacnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.dsa.iot.dslink.util.StringUtils;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.junit.After;
+import org.junit.Test;
+
+public class EventJournalTest {
+
+	private final String name = "EventJournalTest " + System.nanoTime();
+	private final String renamed = name + " renamed";
+
+	@After
+	public void tearDown() {
+		new EventJournal(name).delete();
+		new EventJournal(renamed).delete();
+		// only goes if no other connection has a journal there
+		new File(EventJournal.EVENTS_DIR).delete();
+	}
+
+	@Test
+	public void replaysQueuedAndWrittenEventsInOrder() {
+		EventJournal journal = new EventJournal(name);
+		assertEquals(1, journal.append("dev", event("a")));
+		assertEquals(2, journal.append("dev", event("b")));
+		// nothing written yet, so these come from the queue
+		assertSequences(journal.replay(1, 10), 1, 2);
+
+		journal.flush();
+		journal.append("dev", event("c"));
+		journal.append("dev", event("d"));
+		// two from the file, then two from the queue
+		List<JsonObject> events = journal.replay(2, 10);
+		assertSequences(events, 2, 3, 4);
+		assertEquals("dev", events.get(0).get(EventJournal.KEY_DEVICE));
+		assertEquals("c", events.get(1).get("Message Text"));
+
+		assertSequences(journal.replay(1, 2), 1, 2);
+		assertSequences(journal.replay(4, 10), 4);
+		journal.close();
+	}
+
+	@Test
+	public void continuesAfterATornLine() throws IOException {
+		File dir = new File(EventJournal.EVENTS_DIR, StringUtils.encodeName(name));
+		assertTrue(dir.mkdirs());
+		FileOutputStream out = new FileOutputStream(new File(dir, String.format("%020d", 1) + ".log"));
+		try {
+			out.write(("{\"Sequence\":1,\"Message Text\":\"a\"}\n" + "{\"Sequence\":2,\"Message Text\":\"b\"}\n"
+					+ "{\"Sequence\":3,\"Mess").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		EventJournal journal = new EventJournal(name);
+		// the torn event was never completely written, so its number is reused
+		assertEquals(3, journal.append("dev", event("c")));
+		journal.close();
+
+		List<JsonObject> events = new EventJournal(name).replay(1, 10);
+		assertSequences(events, 1, 2, 3);
+		assertEquals("c", events.get(2).get("Message Text"));
+	}
+
+	@Test
+	public void moveToContinuesTheSequenceUnderTheNewName() {
+		EventJournal journal = new EventJournal(name);
+		journal.append("dev", event("a"));
+		journal.append("dev", event("b"));
+		journal.moveTo(renamed);
+		assertEquals(-1, journal.append("dev", event("late")));
+
+		EventJournal moved = new EventJournal(renamed);
+		assertEquals(3, moved.append("dev", event("c")));
+		assertSequences(moved.replay(0, 10), 1, 2, 3);
+		moved.close();
+		assertFalse(new File(EventJournal.EVENTS_DIR, StringUtils.encodeName(name)).exists());
+	}
+
+	private static JsonObject event(String text) {
+		JsonObject event = new JsonObject();
+		event.put("Message Text", text);
+		return event;
+	}
+
+	private static void assertSequences(List<JsonObject> events, long... expected) {
+		assertEquals(expected.length, events.size());
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], ((Number) events.get(i).get(EventJournal.KEY_SEQUENCE)).longValue());
+	}
+}
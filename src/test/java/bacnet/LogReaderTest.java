@@ -0,0 +1,201 @@
+package bacnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadRangeAck;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByPosition;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.BySequenceNumber;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByTime;
+import com.serotonin.bacnet4j.type.constructed.DateTime;
+import com.serotonin.bacnet4j.type.constructed.LogRecord;
+import com.serotonin.bacnet4j.type.constructed.ResultFlags;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.constructed.StatusFlags;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.enumerated.Segmentation;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Real;
+import com.serotonin.bacnet4j.type.primitive.SignedInteger;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import com.serotonin.bacnet4j.util.sero.ByteQueue;
+
+public class LogReaderTest {
+
+	private static final ObjectIdentifier OID = new ObjectIdentifier(ObjectType.trendLog, 1);
+	private static final long T0 = 1500000000000L;
+
+	private RemoteDevice rd;
+	private ScriptedReader reader;
+	private List<Integer> pages;
+
+	@Before
+	public void setUp() {
+		rd = new RemoteDevice(1, null);
+		// (206 - 32) / 24 records fit in one APDU
+		rd.setMaxAPDULengthAccepted(206);
+		rd.setSegmentationSupported(Segmentation.noSegmentation);
+		reader = new ScriptedReader(rd);
+		pages = new ArrayList<Integer>();
+	}
+
+	@Test
+	public void pageSizeFitsTheDevice() {
+		assertEquals(7, LogReader.pageSize(rd));
+		rd.setMaxAPDULengthAccepted(50);
+		assertEquals(LogReader.MIN_PAGE_SIZE, LogReader.pageSize(rd));
+		rd.setMaxAPDULengthAccepted(1476);
+		assertEquals(60, LogReader.pageSize(rd));
+		rd.setSegmentationSupported(Segmentation.segmentedBoth);
+		assertEquals(LogReader.MAX_PAGE_SIZE, LogReader.pageSize(rd));
+	}
+
+	@Test
+	public void advancesByPositionWithoutSequenceNumbers() throws BACnetException {
+		reader.expect(byPosition(1, 7), ack(7, null, true));
+		reader.expect(byPosition(8, 7), ack(7, null, true));
+		reader.expect(byPosition(15, 2), ack(2, null, true));
+		read(LogReader.BY_POSITION, 1, null, 16);
+
+		assertEquals(Arrays.asList(7, 7, 2), pages);
+		assertTrue(reader.done());
+	}
+
+	@Test
+	public void continuesBySequenceNumberOnceReported() throws BACnetException {
+		DateTime from = new DateTime(T0);
+		reader.expect(byTime(from, 7), ack(7, 100L, true));
+		reader.expect(bySequence(107, 3), ack(3, 107L, false));
+		read(LogReader.BY_TIME, 0, from, 10);
+
+		assertEquals(Arrays.asList(7, 3), pages);
+		assertTrue(reader.done());
+	}
+
+	@Test
+	public void readsBackwards() throws BACnetException {
+		reader.expect(byPosition(20, -7), ack(7, 14L, true));
+		reader.expect(bySequence(13, -3), ack(3, 11L, true));
+		read(LogReader.BY_POSITION, 20, null, -10);
+
+		assertEquals(Arrays.asList(7, 3), pages);
+		assertTrue(reader.done());
+	}
+
+	@Test
+	public void continuesByTimeFromTheLastRecord() throws BACnetException {
+		DateTime from = new DateTime(T0);
+		reader.expect(byTime(from, 7), ack(7, null, true));
+		// records are a minute apart from T0
+		reader.expect(byTime(new DateTime(T0 + 7 * 60000L), 7), ack(1, null, false));
+		read(LogReader.BY_TIME, 0, from, 20);
+
+		assertEquals(Arrays.asList(7, 1), pages);
+		assertTrue(reader.done());
+	}
+
+	@Test
+	public void stopsAtTheEndOfTheBuffer() throws BACnetException {
+		reader.expect(bySequence(50, 7), ack(3, 50L, false));
+		read(LogReader.BY_SEQUENCE_NUMBER, 50, null, 20);
+
+		assertEquals(Arrays.asList(3), pages);
+		assertTrue(reader.done());
+	}
+
+	@Test
+	public void stopsAfterCancel() throws BACnetException {
+		reader.expect(byPosition(1, 7), ack(7, null, true));
+		reader.read(LogReader.BY_POSITION, 1, null, 20, new LogReader.PageHandler() {
+			public void page(List<LogRecord> records) {
+				pages.add(records.size());
+				reader.cancel();
+			}
+		});
+
+		assertEquals(Arrays.asList(7), pages);
+		assertTrue(reader.done());
+	}
+
+	private void read(int kind, long reference, DateTime time, int count) throws BACnetException {
+		reader.read(kind, reference, time, count, new LogReader.PageHandler() {
+			public void page(List<LogRecord> records) {
+				pages.add(records.size());
+			}
+		});
+	}
+
+	private static ReadRangeRequest byPosition(long position, int count) {
+		return new ReadRangeRequest(OID, PropertyIdentifier.logBuffer, null,
+				new ByPosition(new UnsignedInteger(position), new SignedInteger(count)));
+	}
+
+	private static ReadRangeRequest bySequence(long sequence, int count) {
+		return new ReadRangeRequest(OID, PropertyIdentifier.logBuffer, null,
+				new BySequenceNumber(new UnsignedInteger(sequence), new SignedInteger(count)));
+	}
+
+	private static ReadRangeRequest byTime(DateTime time, int count) {
+		return new ReadRangeRequest(OID, PropertyIdentifier.logBuffer, null, new ByTime(time, new SignedInteger(count)));
+	}
+
+	/*
+	 * An ack of count records a minute apart, the first at T0 + 1 minute.
+	 */
+	private static ReadRangeAck ack(int count, Long firstSequence, boolean moreItems) {
+		List<LogRecord> records = new ArrayList<LogRecord>();
+		for (int i = 1; i <= count; i++)
+			records.add(new LogRecord(new DateTime(T0 + i * 60000L), new Real(i),
+					new StatusFlags(false, false, false, false)));
+		return new ReadRangeAck(OID, PropertyIdentifier.logBuffer, null, new ResultFlags(false, false, moreItems),
+				new UnsignedInteger(count), new SequenceOf<LogRecord>(records),
+				firstSequence != null ? new UnsignedInteger(firstSequence) : null);
+	}
+
+	private static String encode(ReadRangeRequest request) {
+		ByteQueue queue = new ByteQueue();
+		request.write(queue);
+		return queue.toString();
+	}
+
+	/*
+	 * Answers each request with the next scripted ack, after checking that
+	 * the request is the one expected.
+	 */
+	private static class ScriptedReader extends LogReader {
+		private final LinkedList<ReadRangeRequest> requests = new LinkedList<ReadRangeRequest>();
+		private final LinkedList<ReadRangeAck> acks = new LinkedList<ReadRangeAck>();
+
+		ScriptedReader(RemoteDevice rd) {
+			super(null, rd, OID);
+		}
+
+		void expect(ReadRangeRequest request, ReadRangeAck ack) {
+			requests.add(request);
+			acks.add(ack);
+		}
+
+		boolean done() {
+			return requests.isEmpty();
+		}
+
+		@Override
+		ReadRangeAck send(ReadRangeRequest request) {
+			assertTrue("unexpected request " + encode(request), !requests.isEmpty());
+			assertEquals(encode(requests.poll()), encode(request));
+			return acks.poll();
+		}
+	}
+}
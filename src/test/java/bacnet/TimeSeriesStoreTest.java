@@ -0,0 +1,175 @@
+package bacnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.StringUtils;
+import org.dsa.iot.dslink.util.handler.CompleteHandler;
+import org.dsa.iot.historian.utils.QueryData;
+import org.junit.After;
+import org.junit.Test;
+
+public class TimeSeriesStoreTest {
+
+	private final String name = "TimeSeriesStoreTest " + System.nanoTime();
+	private final String renamed = name + " renamed";
+	private final List<TimeSeriesStore> stores = new ArrayList<TimeSeriesStore>();
+
+	@After
+	public void tearDown() {
+		for (TimeSeriesStore store : stores)
+			store.close();
+		new TimeSeriesStore(name).delete();
+		new TimeSeriesStore(renamed).delete();
+		// only goes if no other connection has history there
+		new File(TimeSeriesStore.HISTORY_DIR).delete();
+	}
+
+	private TimeSeriesStore open(String connName) {
+		TimeSeriesStore store = new TimeSeriesStore(connName);
+		stores.add(store);
+		return store;
+	}
+
+	@Test
+	public void queriesWhatWasAppended() {
+		TimeSeriesStore.Series series = open(name).getSeries("AV3");
+		series.append(1000, new Value(1.5));
+		series.append(2000, new Value(true));
+		series.append(3000, new Value("x"));
+
+		List<QueryData> samples = query(series, 0, 2500);
+		assertEquals(2, samples.size());
+		assertEquals(1000, samples.get(0).getTimestamp());
+		assertEquals(1.5, samples.get(0).getValue().getNumber().doubleValue(), 0);
+		assertEquals(true, samples.get(1).getValue().getBool());
+		assertEquals(1000, series.first().getTimestamp());
+		assertEquals("x", series.last().getValue().getString());
+		assertEquals(1, query(series, 2500, 5000).size());
+	}
+
+	@Test
+	public void skipsUnchangedValuesAcrossRestarts() {
+		TimeSeriesStore store = open(name);
+		TimeSeriesStore.Series series = store.getSeries("AV3");
+		series.appendIfChanged(1000, new Value(1.0));
+		series.appendIfChanged(2000, new Value(1.0));
+		series.appendIfChanged(3000, new Value(2.0));
+		store.close();
+
+		series = open(name).getSeries("AV3");
+		series.appendIfChanged(4000, new Value(2.0));
+		series.appendIfChanged(5000, new Value(3.0));
+
+		List<QueryData> samples = query(series, 0, Long.MAX_VALUE);
+		assertEquals(3, samples.size());
+		assertEquals(1000, samples.get(0).getTimestamp());
+		assertEquals(3000, samples.get(1).getTimestamp());
+		assertEquals(5000, samples.get(2).getTimestamp());
+	}
+
+	@Test
+	public void reopenCutsOffATornRecord() throws IOException {
+		TimeSeriesStore store = open(name);
+		TimeSeriesStore.Series series = store.getSeries("AV3");
+		series.append(1000, new Value(1.0));
+		series.append(2000, new Value(2.0));
+		store.close();
+
+		File[] segments = seriesDir(name, "AV3").listFiles();
+		assertEquals(1, segments.length);
+		FileOutputStream out = new FileOutputStream(segments[0], true);
+		try {
+			// the start of a record cut short by a crash
+			out.write(new byte[] { 0, 0, 0, 0, 0, 0, 11, -72, 1, 63 });
+		} finally {
+			out.close();
+		}
+
+		series = open(name).getSeries("AV3");
+		series.append(3000, new Value(3.0));
+		List<QueryData> samples = query(series, 0, Long.MAX_VALUE);
+		assertEquals(3, samples.size());
+		assertEquals(3000, samples.get(2).getTimestamp());
+		assertEquals(3.0, samples.get(2).getValue().getNumber().doubleValue(), 0);
+	}
+
+	@Test
+	public void maintenanceCompressesSealedSegmentsAndAppliesRetention() {
+		TimeSeriesStore store = open(name);
+		TimeSeriesStore.Series series = store.getSeries("AV3");
+		long now = System.currentTimeMillis();
+		long t1 = now - TimeUnit.DAYS.toMillis(3);
+		long t2 = now - TimeUnit.DAYS.toMillis(2);
+		long t3 = now - TimeUnit.HOURS.toMillis(1);
+
+		// each segment is sealed, being more than SEAL_HOURS old, and compressed
+		series.append(t1, new Value(1.0));
+		store.maintain();
+		series.append(t2, new Value(2.0));
+		store.maintain();
+		series.append(t3, new Value(3.0));
+		assertEquals(3, seriesDir(name, "AV3").listFiles().length);
+
+		// the first segment ends when the second starts, before the cutoff
+		store.setRetentionDays(1);
+		store.maintain();
+
+		List<QueryData> samples = query(series, 0, Long.MAX_VALUE);
+		assertEquals(2, samples.size());
+		assertEquals(t2, samples.get(0).getTimestamp());
+		assertEquals(2.0, samples.get(0).getValue().getNumber().doubleValue(), 0);
+		assertEquals(t3, samples.get(1).getTimestamp());
+		File[] segments = seriesDir(name, "AV3").listFiles();
+		assertEquals(2, segments.length);
+		int compressed = 0;
+		for (File f : segments) {
+			if (f.getName().endsWith(CompressedSegment.SUFFIX))
+				compressed++;
+		}
+		assertEquals(1, compressed);
+	}
+
+	@Test
+	public void moveToKeepsHistoryAndDropsLateAppends() {
+		TimeSeriesStore store = open(name);
+		TimeSeriesStore.Series series = store.getSeries("AV3");
+		series.append(1000, new Value(1.0));
+		store.moveTo(renamed);
+		series.append(2000, new Value(2.0));
+
+		assertFalse(new File(TimeSeriesStore.HISTORY_DIR, StringUtils.encodeName(name)).exists());
+		List<QueryData> samples = query(open(renamed).getSeries("AV3"), 0, Long.MAX_VALUE);
+		assertEquals(1, samples.size());
+		assertEquals(1000, samples.get(0).getTimestamp());
+	}
+
+	private static File seriesDir(String connName, String key) {
+		File dir = new File(new File(TimeSeriesStore.HISTORY_DIR, StringUtils.encodeName(connName)),
+				StringUtils.encodeName(key));
+		assertTrue(dir.isDirectory());
+		return dir;
+	}
+
+	private static List<QueryData> query(TimeSeriesStore.Series series, long from, long to) {
+		final List<QueryData> samples = new ArrayList<QueryData>();
+		series.query(from, to, new CompleteHandler<QueryData>() {
+			public void handle(QueryData event) {
+				samples.add(event);
+			}
+
+			public void complete() {
+			}
+		});
+		return samples;
+	}
+}